@@ -0,0 +1,413 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+// Overview:
+// ad-hoc measurements run from the command line against a synthetic corpus,
+// e.g. "java Benchmarks footprint"
+public class Benchmarks {
+    private static final long SEED = 20170701L;
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // the count layout fit used before the vocabulary was interned: every term kept as a String key
+    // in a set and in a nested map per category, with boxed Integer counts
+    private static Object buildNestedMapLayout(List<List<String>> termsList, List<String> targets) {
+        Set<String> words = new HashSet<>();
+        Map<String, Map<String, Integer>> termGivenCategoryToCount = new HashMap<>();
+        Map<String, Integer> categoryToSentenceCount = new HashMap<>();
+        Map<String, Integer> categoryToTermCount = new HashMap<>();
+        for (int i = 0; i < termsList.size(); i++) {
+            String category = targets.get(i);
+            Map<String, Integer> termCounts = termGivenCategoryToCount.computeIfAbsent(category, k -> new HashMap<>());
+            for (String term : termsList.get(i)) {
+                words.add(term);
+                termCounts.merge(term, 1, Integer::sum);
+                categoryToTermCount.merge(category, 1, Integer::sum);
+            }
+            categoryToSentenceCount.merge(category, 1, Integer::sum);
+        }
+        return new Object[]{words, termGivenCategoryToCount, categoryToSentenceCount, categoryToTermCount};
+    }
+
+    private static NaiveBayesTextClassifier buildInternedLayout(List<List<String>> termsList, List<String> targets) {
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(new TermSegmentor(new HashSet<>()));
+        for (int i = 0; i < termsList.size(); i++) {
+            classifier.learnTerms(termsList.get(i), targets.get(i));
+        }
+        return classifier;
+    }
+
+    // compare the retained heap of the nested-map count layout against the interned primitive layout
+    // the term strings of the corpus are alive in both cases, so only the count structures are measured
+    public static void footprint(int sentenceCount, int vocabularySize, int categoryCount) {
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(SEED, vocabularySize, categoryCount);
+        Map.Entry<List<List<String>>, List<String>> corpus = generator.generateSegmented(sentenceCount, 2, 8);
+        List<List<String>> termsList = corpus.getKey();
+        List<String> targets = corpus.getValue();
+
+        long baseline = usedHeap();
+        Object nestedMaps = buildNestedMapLayout(termsList, targets);
+        long nestedMapBytes = usedHeap() - baseline;
+        nestedMaps = null;
+
+        baseline = usedHeap();
+        NaiveBayesTextClassifier interned = buildInternedLayout(termsList, targets);
+        long internedBytes = usedHeap() - baseline;
+
+        System.out.println(String.format("sentences: %d\tvocabulary: %d\tcategories: %d",
+                sentenceCount, vocabularySize, categoryCount));
+        System.out.println(String.format("nested maps:\t%.1f MB", nestedMapBytes / 1048576.0));
+        System.out.println(String.format("interned:\t%.1f MB\t(%.1fx smaller)",
+                internedBytes / 1048576.0, (double) nestedMapBytes / Math.max(1, internedBytes)));
+        // keep the measured layout reachable until here
+        System.out.println(interned.getCategories().size() + " categories retained");
+    }
+
+    private static double sentencesPerSecond(NaiveBayesTextClassifier classifier, List<String> sentences,
+                                             ExecutorService executor, int rounds) {
+        // warm up the segmentor and the scoring loop before timing
+        classifier.predict(sentences, executor);
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            classifier.predict(sentences, executor);
+        }
+        long elapsed = System.nanoTime() - start;
+        return (double) sentences.size() * rounds / (elapsed / 1e9);
+    }
+
+    // throughput of the concurrent batch predict from 1 thread up to maxThreads
+    public static void batchPredictScaling(int sentenceCount, int categoryCount, int maxThreads) {
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(SEED, 20000, categoryCount);
+        Map.Entry<List<String>, List<String>> corpus = generator.generate(sentenceCount, 2, 8);
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(new TermSegmentor(new HashSet<>()));
+        classifier.fit(corpus.getKey(), corpus.getValue());
+        List<String> queries = generator.generate(sentenceCount, 1, 4).getKey();
+
+        System.out.println("threads\tsentences/s\tspeedup");
+        double singleThreaded = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ExecutorService executor = PredictionExecutors.fixed(threads);
+            double throughput = sentencesPerSecond(classifier, queries, executor, 3);
+            executor.shutdown();
+            if (threads == 1) {
+                singleThreaded = throughput;
+            }
+            System.out.println(String.format("%d\t%.0f\t%.2fx", threads, throughput, throughput / singleThreaded));
+        }
+        ExecutorService executor = PredictionExecutors.virtualThreadPerTask();
+        double throughput = sentencesPerSecond(classifier, queries, executor, 3);
+        executor.shutdown();
+        System.out.println(String.format("%s\t%.0f\t%.2fx",
+                PredictionExecutors.hasVirtualThreads() ? "virtual" : "cached", throughput, throughput / singleThreaded));
+    }
+
+    // throughput and accuracy of every tokenizer engine on the data file of Main,
+    // or on a synthetic corpus if the data file is missing
+    public static void tokenizers(double testRatio) {
+        Map.Entry<List<String>, List<String>> corpus = Main.readSentencesWithTargets();
+        String source = "data file";
+        if (corpus.getKey().isEmpty()) {
+            corpus = new SyntheticCorpusGenerator(SEED, 20000, 50).generate(50000, 1, 5);
+            source = "synthetic corpus";
+        }
+        TrainTestSplitter<String> trainTestSplitter = new TrainTestSplitter<>(corpus.getKey(), corpus.getValue(), testRatio);
+        Map.Entry<List<String>, List<String>> trainSet = trainTestSplitter.trainSplit();
+        Map.Entry<List<String>, List<String>> testSet = trainTestSplitter.testSplit();
+
+        System.out.println("tokenizers on the " + source + " of " + corpus.getKey().size() + " sentences");
+        System.out.println("engine\tsentences/s\taccuracy");
+        for (TokenizerEngine engine : TokenizerEngine.values()) {
+            TermSegmentor termSegmentor = new TermSegmentor(engine, null);
+            List<String> sentences = trainSet.getKey();
+            // warm up, then time one pass over the training sentences
+            termSegmentor.segmentSentences(sentences.subList(0, Math.min(1000, sentences.size())));
+            long start = System.nanoTime();
+            termSegmentor.segmentSentences(sentences);
+            double throughput = sentences.size() / ((System.nanoTime() - start) / 1e9);
+
+            NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(termSegmentor);
+            classifier.fit(trainSet.getKey(), trainSet.getValue());
+            List<String> predictions = classifier.predict(testSet.getKey());
+            int correct = 0;
+            for (int i = 0; i < predictions.size(); i++) {
+                if (predictions.get(i).equals(testSet.getValue().get(i))) {
+                    correct++;
+                }
+            }
+            System.out.println(String.format("%s\t%.0f\t%.3f", engine, throughput,
+                    (double) correct / Math.max(1, predictions.size())));
+        }
+    }
+
+    // the segmented data file, or a synthetic corpus when there is none, announced under the title
+    private static Map.Entry<List<List<String>>, List<String>> segmentedCorpus(String title) {
+        Map.Entry<List<String>, List<String>> rawCorpus = Main.readSentencesWithTargets();
+        Map.Entry<List<List<String>>, List<String>> corpus;
+        String source = "data file";
+        if (rawCorpus.getKey().isEmpty()) {
+            corpus = new SyntheticCorpusGenerator(SEED, 100000, 100).generateSegmented(200000, 2, 8);
+            source = "synthetic corpus";
+        } else {
+            corpus = new AbstractMap.SimpleEntry<>(new TermSegmentor().segmentSentences(rawCorpus.getKey()), rawCorpus.getValue());
+        }
+        System.out.println(title + " on the " + source + " of " + corpus.getKey().size() + " sentences");
+        return corpus;
+    }
+
+    // accuracy against model size of the hashed mode at several bucket counts, next to the exact vocabulary,
+    // on the data file of Main, or on a synthetic corpus if the data file is missing
+    public static void hashing(double testRatio) {
+        Map.Entry<List<List<String>>, List<String>> corpus = segmentedCorpus("hashed features");
+        TrainTestSplitter<List<String>> trainTestSplitter =
+                new TrainTestSplitter<>(corpus.getKey(), corpus.getValue(), testRatio);
+        Map.Entry<List<List<String>>, List<String>> trainSet = trainTestSplitter.trainSplit();
+        Map.Entry<List<List<String>>, List<String>> testSet = trainTestSplitter.testSplit();
+
+        System.out.println("buckets\tmodel MB\taccuracy\tmacro F1");
+        TermSegmentor termSegmentor = new TermSegmentor(new HashSet<>());
+        for (int buckets = 1 << 10; buckets <= 1 << 20; buckets <<= 2) {
+            NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(termSegmentor, buckets);
+            classifier.fitSegmented(trainSet.getKey(), trainSet.getValue());
+            printTradeoff(String.valueOf(buckets), classifier, testSet);
+        }
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(termSegmentor);
+        classifier.fitSegmented(trainSet.getKey(), trainSet.getValue());
+        printTradeoff("exact", classifier, testSet);
+    }
+
+    // wall-clock time of full collections with only the classifier live, and the heap it takes
+    private static void printGcPauses(String label, int collections) {
+        long baseline = usedHeap();
+        long totalNanos = 0;
+        long maxNanos = 0;
+        for (int i = 0; i < collections; i++) {
+            long start = System.nanoTime();
+            System.gc();
+            long elapsed = System.nanoTime() - start;
+            totalNanos += elapsed;
+            maxNanos = Math.max(maxNanos, elapsed);
+        }
+        System.out.println(String.format("%s\t%.1f\t%.1f\t%.1f", label, baseline / 1048576.0,
+                totalNanos / 1e6 / collections, maxNanos / 1e6));
+    }
+
+    private static NaiveBayesTextClassifier fitSynthetic(int sentenceCount, int vocabularySize, int categoryCount) {
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(SEED, vocabularySize, categoryCount);
+        Map.Entry<List<List<String>>, List<String>> corpus = generator.generateSegmented(sentenceCount, 2, 8);
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(new TermSegmentor(new HashSet<>()));
+        classifier.fitSegmented(corpus.getKey(), corpus.getValue());
+        return classifier;
+    }
+
+    // full GC pauses with the counts and model on the heap, then with the model moved to direct memory
+    public static void gcPauses(int sentenceCount, int vocabularySize, int categoryCount) throws IOException {
+        NaiveBayesTextClassifier classifier = fitSynthetic(sentenceCount, vocabularySize, categoryCount);
+        System.out.println(String.format("sentences: %d\tvocabulary: %d\tcategories: %d\tterms: %d",
+                sentenceCount, vocabularySize, categoryCount, classifier.getModel().getTermCount()));
+        // the first prediction loads the segmentor's dictionary, which stays on the heap in both layouts
+        String query = "玉兰油水";
+        String before = classifier.predict(query);
+        System.out.println("layout\theap MB\tmean full GC ms\tmax full GC ms");
+        printGcPauses("on heap", 10);
+        MappedNaiveBayesModel model = classifier.moveOffHeap();
+        printGcPauses("off heap", 10);
+        System.out.println(String.format("direct memory: %.1f MB, same prediction: %b",
+                model.estimateBytes() / 1048576.0, before.equals(classifier.predict(query))));
+        classifier.close();
+    }
+
+    // latency and throughput of ClassificationServer under closed-loop load, per micro-batching setting
+    public static void server(int clients, int requestsPerClient) throws IOException {
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(SEED, 100000, 100);
+        Map.Entry<List<String>, List<String>> corpus = generator.generate(200000, 2, 8);
+        List<String> queries = generator.generate(10000, 1, 6).getKey();
+        TermSegmentor termSegmentor = new TermSegmentor(new HashSet<>());
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(termSegmentor);
+        classifier.fit(corpus.getKey(), corpus.getValue());
+
+        System.out.println(String.format("%d clients, %d requests each, %d cores",
+                clients, requestsPerClient, Runtime.getRuntime().availableProcessors()));
+        System.out.println("batch size\tmax wait us\tmean batch\tQPS\tp50 us\tp99 us");
+        int workers = Runtime.getRuntime().availableProcessors();
+        int[][] settings = {{1, 0}, {8, 100}, {32, 500}, {128, 2000}};
+        for (int[] setting : settings) {
+            // the next setting serves the same classifier, so the server must not close it
+            ClassificationServer server = new ClassificationServer(classifier,
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), workers, setting[0], setting[1], false);
+            server.start();
+            String baseUrl = "http://localhost:" + server.getPort();
+            // warm up the server and the JIT, then measure from fresh counters
+            LoadGenerator.run(baseUrl, queries, clients, requestsPerClient / 4, 0);
+            long requests = server.getRequestCount();
+            long batches = server.getBatchCount();
+            LoadGenerator.Result result = LoadGenerator.run(baseUrl, queries, clients, requestsPerClient, 0);
+            double meanBatch = (double) (server.getRequestCount() - requests) / (server.getBatchCount() - batches);
+            System.out.println(String.format("%d\t%d\t%.1f\t%.0f\t%.1f\t%.1f", setting[0], setting[1], meanBatch,
+                    result.getQps(), result.getLatency().getP50Micros(), result.getLatency().getP99Micros()));
+            server.stop();
+        }
+        classifier.close();
+    }
+
+    // BulkClassifier streaming a file at several stage parallelisms, against predict(List) over the lines in memory
+    public static void bulk(int lineCount) throws IOException {
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(SEED, 100000, 100);
+        Map.Entry<List<String>, List<String>> corpus = generator.generate(200000, 2, 8);
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(new TermSegmentor(new HashSet<>()));
+        classifier.fit(corpus.getKey(), corpus.getValue());
+        java.nio.file.Path input = java.nio.file.Files.createTempFile("bulk", ".in");
+        java.nio.file.Path output = java.nio.file.Files.createTempFile("bulk", ".out");
+        input.toFile().deleteOnExit();
+        output.toFile().deleteOnExit();
+        List<String> lines = generator.generate(lineCount, 1, 6).getKey();
+        java.nio.file.Files.write(input, lines, java.nio.charset.StandardCharsets.UTF_8);
+
+        // warm up the segmentor and the JIT
+        new BulkClassifier(classifier, 1, 1).classify(input, output);
+        System.out.println(String.format("%d lines, %d cores", lineCount, Runtime.getRuntime().availableProcessors()));
+        int[][] settings = {{1, 1}, {2, 1}, {4, 2}};
+        for (int[] setting : settings) {
+            System.out.println(String.format("segment threads: %d, score threads: %d", setting[0], setting[1]));
+            System.out.print(new BulkClassifier(classifier, setting[0], setting[1]).classify(input, output));
+        }
+
+        ExecutorService executor = PredictionExecutors.perCore();
+        long start = System.nanoTime();
+        classifier.predict(lines, executor);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+        System.out.println(String.format("predict(List) in memory: %.0f lines/s", lineCount / seconds));
+    }
+
+    // the examples of a fresh generator, produced as they are consumed, with the terms joined by spaces
+    private static java.util.stream.Stream<Map.Entry<String, String>> syntheticExamples(
+            int sentenceCount, int vocabularySize, int categoryCount) {
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(SEED, vocabularySize, categoryCount);
+        return java.util.stream.IntStream.range(0, sentenceCount / 1000).boxed().flatMap(chunk -> {
+            Map.Entry<List<List<String>>, List<String>> corpus = generator.generateSegmented(1000, 2, 8);
+            return java.util.stream.IntStream.range(0, 1000).mapToObj(i -> new AbstractMap.SimpleEntry<>(
+                    String.join(" ", corpus.getKey().get(i)), corpus.getValue().get(i)));
+        });
+    }
+
+    // the highest heap occupancy since the last call, summed over the heap pools
+    private static long peakHeapSinceLastCall() {
+        long peak = 0;
+        for (java.lang.management.MemoryPoolMXBean pool : java.lang.management.ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == java.lang.management.MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+                pool.resetPeakUsage();
+            }
+        }
+        return peak;
+    }
+
+    // peak heap of fitOutOfCore against a streaming fit over the same examples, neither holding the corpus
+    // run with a small -Xmx to see which of the two fits in it; the peaks include garbage not yet collected
+    public static void outOfCore(int sentenceCount, int vocabularySize, int categoryCount, int budgetMegabytes)
+            throws IOException {
+        // the terms are joined by spaces and split back, so that the vocabulary is exactly the generator's
+        Tokenizer spaceTokenizer = sentence -> Arrays.asList(sentence.split(" "));
+        TermSegmentor termSegmentor = new TermSegmentor(new HashSet<>(), spaceTokenizer, null);
+        System.out.println(String.format("sentences: %d\tvocabulary: %d\tcategories: %d\tbudget: %d MB\tmax heap: %d MB",
+                sentenceCount, vocabularySize, categoryCount, budgetMegabytes, Runtime.getRuntime().maxMemory() >> 20));
+        System.out.println("fit\tpeak heap MB\tretained MB\tseconds\tterms");
+
+        long baseline = usedHeap();
+        peakHeapSinceLastCall();
+        java.io.File spillDirectory = java.nio.file.Files.createTempDirectory("spill").toFile();
+        long start = System.nanoTime();
+        NaiveBayesTextClassifier outOfCore = new NaiveBayesTextClassifier(termSegmentor);
+        outOfCore.fitOutOfCore(syntheticExamples(sentenceCount, vocabularySize, categoryCount), spillDirectory,
+                (long) budgetMegabytes << 20);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long peak = peakHeapSinceLastCall();
+        spillDirectory.delete();
+        System.out.println(String.format("out of core\t%.1f\t%.1f\t%.1f\t%d", (peak - baseline) / 1048576.0,
+                (usedHeap() - baseline) / 1048576.0, seconds, outOfCore.getModel().getTermCount()));
+        outOfCore = null;
+
+        baseline = usedHeap();
+        peakHeapSinceLastCall();
+        start = System.nanoTime();
+        try {
+            NaiveBayesTextClassifier inMemory = new NaiveBayesTextClassifier(termSegmentor);
+            inMemory.fit(syntheticExamples(sentenceCount, vocabularySize, categoryCount));
+            seconds = (System.nanoTime() - start) / 1e9;
+            peak = peakHeapSinceLastCall();
+            System.out.println(String.format("in memory\t%.1f\t%.1f\t%.1f\t%d", (peak - baseline) / 1048576.0,
+                    (usedHeap() - baseline) / 1048576.0, seconds, inMemory.getModel().getTermCount()));
+        } catch (OutOfMemoryError e) {
+            System.out.println("in memory\tout of memory");
+        }
+    }
+
+    // min-count pruning and quantization against the full model
+    public static void compaction(double testRatio) {
+        Map.Entry<List<List<String>>, List<String>> corpus = segmentedCorpus("model compaction");
+        TrainTestSplitter<List<String>> trainTestSplitter =
+                new TrainTestSplitter<>(corpus.getKey(), corpus.getValue(), testRatio);
+        Map.Entry<List<List<String>>, List<String>> trainSet = trainTestSplitter.trainSplit();
+        Map.Entry<List<List<String>>, List<String>> testSet = trainTestSplitter.testSplit();
+
+        System.out.println("model\tmodel MB\taccuracy\tmacro F1");
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(new TermSegmentor(new HashSet<>()));
+        classifier.fitSegmented(trainSet.getKey(), trainSet.getValue());
+        printTradeoff("full", classifier, testSet);
+        for (int minCount : new int[]{1, 2, 5}) {
+            for (CompactNaiveBayesModel.Precision precision : CompactNaiveBayesModel.Precision.values()) {
+                CompactNaiveBayesModel model = classifier.compact(minCount, 0, precision);
+                printTradeoff(String.format("min count %d, %s, %d terms", minCount, precision, model.getTermCount()),
+                        classifier, testSet);
+            }
+        }
+        CompactNaiveBayesModel model = classifier.compact(2, 0.5, CompactNaiveBayesModel.Precision.INT8);
+        printTradeoff(String.format("min count 2, min spread 0.5, INT8, %d terms", model.getTermCount()), classifier, testSet);
+    }
+
+    private static void printTradeoff(String label, NaiveBayesTextClassifier classifier,
+                                      Map.Entry<List<List<String>>, List<String>> testSet) {
+        EvaluationReport report = classifier.evaluateSegmented(testSet.getKey(), testSet.getValue());
+        System.out.println(String.format("%s\t%.1f\t%.4f\t%.4f", label,
+                classifier.getModel().estimateBytes() / 1048576.0, report.getAccuracy(), report.getMacroF1()));
+    }
+
+    public static void main(String[] args) throws IOException {
+        String benchmark = args.length > 0 ? args[0] : "footprint";
+        if (benchmark.equalsIgnoreCase("footprint")) {
+            footprint(1000000, 200000, 200);
+        } else if (benchmark.equalsIgnoreCase("batchPredict")) {
+            batchPredictScaling(200000, 200, Runtime.getRuntime().availableProcessors());
+        } else if (benchmark.equalsIgnoreCase("tokenizers")) {
+            tokenizers(0.2);
+        } else if (benchmark.equalsIgnoreCase("hashing")) {
+            hashing(0.2);
+        } else if (benchmark.equalsIgnoreCase("compaction")) {
+            compaction(0.2);
+        } else if (benchmark.equalsIgnoreCase("gcPauses")) {
+            gcPauses(1000000, 1000000, 20);
+        } else if (benchmark.equalsIgnoreCase("server")) {
+            server(32, 2000);
+        } else if (benchmark.equalsIgnoreCase("bulk")) {
+            bulk(200000);
+        } else if (benchmark.equalsIgnoreCase("outOfCore")) {
+            outOfCore(2000000, 1000000, 100, 64);
+        } else {
+            System.out.println("Unknown benchmark: " + benchmark);
+        }
+    }
+}
@@ -0,0 +1,353 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Overview:
+// classifies a file of sentences, one per line, too large to hold in memory, by streaming it through four stages:
+// read -> segment -> score -> write, each on its own threads, connected by bounded queues
+// lines travel in numbered chunks; the segment and score stages run on as many threads as configured,
+// and the writer puts the chunks back in input order, writing "<sentence>\t<category>" per line
+// at most MAX_CHUNKS_IN_FLIGHT chunks exist at any time, counting the ones waiting to be reordered,
+// so memory stays flat however long the input is, and a slow stage holds back the reader
+// each stage times the work it does apart from waiting on its queues, reported per stage at the end
+public class BulkClassifier {
+    private static final int CHUNK_SIZE = 256;
+    private static final int QUEUE_CAPACITY = 16;
+    private static final int MAX_CHUNKS_IN_FLIGHT = 64;
+
+    private final NaiveBayesTextClassifier classifier;
+    private final int segmentThreads;
+    private final int scoreThreads;
+
+    public BulkClassifier(NaiveBayesTextClassifier classifier, int segmentThreads, int scoreThreads) {
+        assert segmentThreads > 0 && scoreThreads > 0;
+
+        this.classifier = classifier;
+        this.segmentThreads = segmentThreads;
+        this.scoreThreads = scoreThreads;
+    }
+
+    private static class Chunk {
+        // chunk number in input order, or -1 for the end of the input
+        final long sequence;
+        final List<String> sentences;
+        List<List<String>> termsList;
+        String[] categories;
+
+        Chunk(long sequence, List<String> sentences) {
+            this.sequence = sequence;
+            this.sentences = sentences;
+        }
+    }
+
+    private static final Chunk END = new Chunk(-1, Collections.emptyList());
+
+    // busy and waiting nanoseconds of the threads of one stage
+    private static class StageTimer {
+        final String name;
+        final int threads;
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicLong waitNanos = new AtomicLong();
+
+        StageTimer(String name, int threads) {
+            this.name = name;
+            this.threads = threads;
+        }
+    }
+
+    public static class Report {
+        private final long lineCount;
+        private final double seconds;
+        private final List<StageTimer> stages;
+
+        private Report(long lineCount, double seconds, List<StageTimer> stages) {
+            this.lineCount = lineCount;
+            this.seconds = seconds;
+            this.stages = stages;
+        }
+
+        public long getLineCount() {
+            return lineCount;
+        }
+
+        public double getSeconds() {
+            return seconds;
+        }
+
+        public double getLinesPerSecond() {
+            return lineCount / seconds;
+        }
+
+        // summed over the threads of the stage
+        public double getBusySeconds(String stage) {
+            for (StageTimer timer : stages) {
+                if (timer.name.equals(stage)) {
+                    return timer.busyNanos.get() / 1e9;
+                }
+            }
+            throw new IllegalArgumentException("no stage " + stage);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(String.format("%d lines in %.2f s, %.0f lines/s%n",
+                    lineCount, seconds, getLinesPerSecond()));
+            builder.append(String.format("stage\tthreads\tbusy s\twaiting s\tbusy us/line%n"));
+            for (StageTimer timer : stages) {
+                builder.append(String.format("%s\t%d\t%.2f\t%.2f\t%.2f%n", timer.name, timer.threads,
+                        timer.busyNanos.get() / 1e9, timer.waitNanos.get() / 1e9,
+                        lineCount == 0 ? 0 : timer.busyNanos.get() / 1e3 / lineCount));
+            }
+            return builder.toString();
+        }
+    }
+
+    public Report classify(Path input, Path output) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             BufferedWriter out = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            return classify(in, out);
+        }
+    }
+
+    // a failure in any stage stops the others and is thrown here
+    public Report classify(BufferedReader in, Writer out) throws IOException {
+        BlockingQueue<Chunk> segmentQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Chunk> scoreQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Chunk> writeQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        Semaphore chunksInFlight = new Semaphore(MAX_CHUNKS_IN_FLIGHT);
+        AtomicInteger segmentersLeft = new AtomicInteger(segmentThreads);
+        AtomicInteger scorersLeft = new AtomicInteger(scoreThreads);
+        AtomicLong lineCount = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        StageTimer readTimer = new StageTimer("read", 1);
+        StageTimer segmentTimer = new StageTimer("segment", segmentThreads);
+        StageTimer scoreTimer = new StageTimer("score", scoreThreads);
+        StageTimer writeTimer = new StageTimer("write", 1);
+        TermSegmentor termSegmentor = classifier.getTermSegmentor();
+
+        List<Thread> threads = new ArrayList<>();
+        threads.add(stage("bulk-read", failure, threads, () -> {
+            long sequence = 0;
+            while (true) {
+                long start = System.nanoTime();
+                chunksInFlight.acquire();
+                long acquired = System.nanoTime();
+                List<String> sentences = new ArrayList<>(CHUNK_SIZE);
+                for (String line; sentences.size() < CHUNK_SIZE && (line = in.readLine()) != null; ) {
+                    sentences.add(line);
+                }
+                long read = System.nanoTime();
+                readTimer.busyNanos.addAndGet(read - acquired);
+                if (sentences.isEmpty()) {
+                    for (int i = 0; i < segmentThreads; i++) {
+                        segmentQueue.put(END);
+                    }
+                    return;
+                }
+                lineCount.addAndGet(sentences.size());
+                segmentQueue.put(new Chunk(sequence++, sentences));
+                readTimer.waitNanos.addAndGet(acquired - start + System.nanoTime() - read);
+            }
+        }));
+        for (int t = 0; t < segmentThreads; t++) {
+            threads.add(stage("bulk-segment-" + t, failure, threads, () -> {
+                while (true) {
+                    long start = System.nanoTime();
+                    Chunk chunk = segmentQueue.take();
+                    long taken = System.nanoTime();
+                    if (chunk == END) {
+                        if (segmentersLeft.decrementAndGet() == 0) {
+                            for (int i = 0; i < scoreThreads; i++) {
+                                scoreQueue.put(END);
+                            }
+                        }
+                        return;
+                    }
+                    chunk.termsList = new ArrayList<>(chunk.sentences.size());
+                    for (String sentence : chunk.sentences) {
+                        chunk.termsList.add(termSegmentor.segmentSentence(sentence));
+                    }
+                    long segmented = System.nanoTime();
+                    segmentTimer.busyNanos.addAndGet(segmented - taken);
+                    scoreQueue.put(chunk);
+                    segmentTimer.waitNanos.addAndGet(taken - start + System.nanoTime() - segmented);
+                }
+            }));
+        }
+        for (int t = 0; t < scoreThreads; t++) {
+            threads.add(stage("bulk-score-" + t, failure, threads, () -> {
+                while (true) {
+                    long start = System.nanoTime();
+                    Chunk chunk = scoreQueue.take();
+                    long taken = System.nanoTime();
+                    if (chunk == END) {
+                        if (scorersLeft.decrementAndGet() == 0) {
+                            writeQueue.put(END);
+                        }
+                        return;
+                    }
+                    chunk.categories = new String[chunk.termsList.size()];
+                    for (int i = 0; i < chunk.categories.length; i++) {
+                        chunk.categories[i] = classifier.predictSegmented(chunk.termsList.get(i));
+                    }
+                    chunk.termsList = null;
+                    long scored = System.nanoTime();
+                    scoreTimer.busyNanos.addAndGet(scored - taken);
+                    writeQueue.put(chunk);
+                    scoreTimer.waitNanos.addAndGet(taken - start + System.nanoTime() - scored);
+                }
+            }));
+        }
+        threads.add(stage("bulk-write", failure, threads, () -> {
+            // chunks that arrived ahead of their turn
+            Map<Long, Chunk> early = new HashMap<>();
+            long next = 0;
+            while (true) {
+                long start = System.nanoTime();
+                Chunk chunk = writeQueue.take();
+                long taken = System.nanoTime();
+                writeTimer.waitNanos.addAndGet(taken - start);
+                if (chunk == END) {
+                    out.flush();
+                    writeTimer.busyNanos.addAndGet(System.nanoTime() - taken);
+                    return;
+                }
+                early.put(chunk.sequence, chunk);
+                for (Chunk ready; (ready = early.remove(next)) != null; next++) {
+                    for (int i = 0; i < ready.sentences.size(); i++) {
+                        out.write(ready.sentences.get(i));
+                        out.write('\t');
+                        out.write(ready.categories[i]);
+                        out.write('\n');
+                    }
+                    chunksInFlight.release();
+                }
+                writeTimer.busyNanos.addAndGet(System.nanoTime() - taken);
+            }
+        }));
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("bulk classification interrupted", e);
+        }
+        Throwable cause = failure.get();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause != null) {
+            throw new IllegalStateException("bulk classification failed", cause);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return new Report(lineCount.get(), seconds, Arrays.asList(readTimer, segmentTimer, scoreTimer, writeTimer));
+    }
+
+    private interface StageBody {
+        void run() throws IOException, InterruptedException;
+    }
+
+    // a stage thread that records the first failure of any stage and interrupts the others of the job,
+    // which are then blocked on a queue or about to block on one; the job's list is complete before any starts
+    private static Thread stage(String name, AtomicReference<Throwable> failure, List<Thread> jobThreads, StageBody body) {
+        return new Thread(() -> {
+            try {
+                body.run();
+            } catch (InterruptedException e) {
+                // stopped because another stage failed
+            } catch (Throwable t) {
+                if (failure.compareAndSet(null, t)) {
+                    for (Thread thread : jobThreads) {
+                        if (thread != Thread.currentThread()) {
+                            thread.interrupt();
+                        }
+                    }
+                }
+            }
+        }, name);
+    }
+
+    // java BulkClassifier <snapshot> <input> <output> [segment threads] [score threads]
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            test();
+            return;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        int segmentThreads = args.length > 3 ? Integer.parseInt(args[3]) : cores;
+        int scoreThreads = args.length > 4 ? Integer.parseInt(args[4]) : Math.max(1, cores / 2);
+        NaiveBayesTextClassifier classifier = NaiveBayesTextClassifier.load(args[0]);
+        System.out.print(new BulkClassifier(classifier, segmentThreads, scoreThreads).classify(Paths.get(args[1]), Paths.get(args[2])));
+        classifier.close();
+    }
+
+    // unit test
+    private static void test() throws IOException {
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(29, 5000, 30);
+        Map.Entry<List<String>, List<String>> corpus = generator.generate(20000, 1, 6);
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(new TermSegmentor(new HashSet<>()));
+        classifier.fit(corpus.getKey(), corpus.getValue());
+
+        List<String> sentences = new ArrayList<>(generator.generate(10000, 1, 6).getKey());
+        sentences.add(5000, "");
+        Path input = Files.createTempFile("bulk", ".in");
+        Path output = Files.createTempFile("bulk", ".out");
+        input.toFile().deleteOnExit();
+        output.toFile().deleteOnExit();
+        Files.write(input, sentences, StandardCharsets.UTF_8);
+
+        Report report = new BulkClassifier(classifier, 3, 2).classify(input, output);
+        System.out.print(report);
+        List<String> lines = Files.readAllLines(output, StandardCharsets.UTF_8);
+        int mismatches = lines.size() == sentences.size() ? 0 : Math.abs(lines.size() - sentences.size());
+        for (int i = 0; i < Math.min(lines.size(), sentences.size()); i++) {
+            if (!lines.get(i).equals(sentences.get(i) + "\t" + classifier.predict(sentences.get(i)))) {
+                mismatches++;
+            }
+        }
+        System.out.println((mismatches == 0 && report.getLineCount() == sentences.size() ? "√\t" : "X\t")
+                + "output in input order, " + mismatches + " mismatches out of " + sentences.size() + " lines");
+
+        // a failing stage stops the job instead of hanging it
+        boolean failed = false;
+        try {
+            new BulkClassifier(classifier, 2, 2).classify(new BufferedReader(new java.io.StringReader("a\nb\n")), new Writer() {
+                @Override
+                public void write(char[] buffer, int offset, int length) throws IOException {
+                    throw new IOException("disk full");
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+        } catch (IOException e) {
+            failed = e.getMessage().equals("disk full");
+        }
+        System.out.println((failed ? "√\t" : "X\t") + "a failing stage fails the job");
+    }
+}
@@ -0,0 +1,91 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Overview:
+// a dictionary-free tokenizer for short Chinese queries:
+// every run of CJK characters yields its single characters and its adjacent character pairs,
+// e.g. "玉兰油" -> "玉", "玉兰", "兰", "兰油", "油"
+// every run of letters or digits yields one lower-cased word, and anything else separates runs
+// the sink version hands out slices of the sentence and allocates nothing,
+// except a lower-cased copy of a word that has upper-case letters
+public class CharNGramTokenizer implements Tokenizer {
+    // never interned into, so it can be shared by every thread
+    private static final Vocabulary NO_STOP_WORDS = new Vocabulary();
+
+    private static boolean isCjk(char c) {
+        return Character.UnicodeScript.of(c) == Character.UnicodeScript.HAN;
+    }
+
+    // the end of the run of letters or digits starting at i
+    private static int wordEnd(String sentence, int i) {
+        int end = i + 1;
+        while (end < sentence.length() && Character.isLetterOrDigit(sentence.charAt(end)) && !isCjk(sentence.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    // true if toLowerCase(Locale.ROOT) leaves the slice unchanged, so it can be handed out in place
+    private static boolean isLowerCase(String sentence, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = sentence.charAt(i);
+            if (Character.isSurrogate(c) || Character.toLowerCase(c) != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void emit(CharSequence chars, int start, int end, Vocabulary stopWords, TermSink sink) {
+        if (stopWords.indexOf(chars, start, end) < 0) {
+            sink.accept(chars, start, end);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "CharNGramTokenizer";
+    }
+
+    @Override
+    public void tokenize(String sentence, Vocabulary stopWords, TermSink sink) {
+        int length = sentence.length();
+        int i = 0;
+        while (i < length) {
+            char c = sentence.charAt(i);
+            if (isCjk(c)) {
+                int end = i + 1;
+                while (end < length && isCjk(sentence.charAt(end))) {
+                    end++;
+                }
+                for (int j = i; j < end; j++) {
+                    emit(sentence, j, j + 1, stopWords, sink);
+                    if (j + 1 < end) {
+                        emit(sentence, j, j + 2, stopWords, sink);
+                    }
+                }
+                i = end;
+            } else if (Character.isLetterOrDigit(c)) {
+                int end = wordEnd(sentence, i);
+                if (isLowerCase(sentence, i, end)) {
+                    emit(sentence, i, end, stopWords, sink);
+                } else {
+                    String word = sentence.substring(i, end).toLowerCase(Locale.ROOT);
+                    emit(word, 0, word.length(), stopWords, sink);
+                }
+                i = end;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    // the tokens of the sink version, each copied out as a String
+    @Override
+    public List<String> tokenize(String sentence) {
+        List<String> tokens = new ArrayList<>(sentence.length() * 2);
+        tokenize(sentence, NO_STOP_WORDS, (chars, start, end) -> tokens.add(chars.subSequence(start, end).toString()));
+        return tokens;
+    }
+}
@@ -0,0 +1,492 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Overview:
+// an HTTP front end for a NaiveBayesTextClassifier on the JDK's built-in server, answering in UTF-8 plain text:
+//   GET or POST /classify?text=...        the most probable category
+//   GET or POST /topk?k=3&text=...        one "category<TAB>posterior" line per category, the most probable first
+//   POST /reload?path=...                 load a snapshot written by save() and swap it in
+// the text may also come as the request body
+// the HTTP threads only parse requests and queue them; batch workers take them off the queue in micro-batches
+// of up to maxBatchSize requests, waiting at most maxWaitMicros after the first one for more to arrive,
+// and answer every request of the batch against the same model
+// a full queue answers 503 at once instead of letting latency grow without bound
+//
+// Exposure:
+// the server binds to the loopback interface unless given another address; requests are not authenticated,
+// and /reload opens any path the server can read, so it is only served on a loopback address
+//
+// Model swaps:
+// the served classifier is held through a generation with a reference count; every batch holds the generation
+// it started with, so a swap never drops a request, and a swapped-out classifier is closed only after its last
+// batch is done. The server owns the classifiers it serves and closes the last one on stop(), unless it is
+// created with ownsClassifiers false, for a classifier its caller keeps using; the ones /reload loads are always its own
+public class ClassificationServer {
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int MAX_K = 1000;
+
+    // the built-in server writes headers and body separately, and without TCP_NODELAY every small answer
+    // waits for the client's delayed ACK; it reads the property once, when the first server is created
+    static {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final HttpServer httpServer;
+    private final ExecutorService httpExecutor;
+    private final BlockingQueue<PendingRequest> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final List<Thread> workers = new ArrayList<>();
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final AtomicReference<Generation> current;
+    // true if the classifiers given to the constructor and to swap() are closed once they are no longer served
+    private final boolean ownsClassifiers;
+    private volatile boolean running;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong swapCount = new AtomicLong();
+
+    // serve on the loopback interface; port 0 picks a free port, see getPort()
+    public ClassificationServer(NaiveBayesTextClassifier classifier, int port, int workerCount,
+                                int maxBatchSize, long maxWaitMicros) throws IOException {
+        this(classifier, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), workerCount,
+                maxBatchSize, maxWaitMicros);
+    }
+
+    // serve on the given address, e.g. new InetSocketAddress(8080) for every interface, without /reload
+    // unless the address is a loopback one
+    public ClassificationServer(NaiveBayesTextClassifier classifier, InetSocketAddress address, int workerCount,
+                                int maxBatchSize, long maxWaitMicros) throws IOException {
+        this(classifier, address, workerCount, maxBatchSize, maxWaitMicros, true);
+    }
+
+    public ClassificationServer(NaiveBayesTextClassifier classifier, InetSocketAddress address, int workerCount,
+                                int maxBatchSize, long maxWaitMicros, boolean ownsClassifiers) throws IOException {
+        assert workerCount > 0 && maxBatchSize > 0 && maxWaitMicros >= 0;
+
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.ownsClassifiers = ownsClassifiers;
+        this.current = new AtomicReference<>(new Generation(classifier, ownsClassifiers));
+        this.httpServer = HttpServer.create(address, 0);
+        this.httpExecutor = PredictionExecutors.fixed(Math.max(2, workerCount));
+        httpServer.setExecutor(httpExecutor);
+        httpServer.createContext("/classify", exchange -> enqueue(exchange, 0));
+        httpServer.createContext("/topk", this::enqueueTopK);
+        if (address.getAddress() != null && address.getAddress().isLoopbackAddress()) {
+            httpServer.createContext("/reload", this::reload);
+        } else {
+            httpServer.createContext("/reload", exchange -> respond(exchange, 403, "reload is only served on loopback\n"));
+        }
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::runWorker, "classification-batch-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+    }
+
+    public ClassificationServer(NaiveBayesTextClassifier classifier, int port) throws IOException {
+        this(classifier, port, Runtime.getRuntime().availableProcessors(), 32, 500);
+    }
+
+    public void start() {
+        running = true;
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        httpServer.start();
+    }
+
+    // stop accepting requests, answer the queued ones with 503, and close the served classifier if the server owns it
+    public void stop() {
+        httpServer.stop(0);
+        running = false;
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        List<PendingRequest> leftover = new ArrayList<>();
+        queue.drainTo(leftover);
+        for (PendingRequest request : leftover) {
+            respond(request.exchange, 503, "server stopping\n");
+        }
+        httpExecutor.shutdown();
+        release(current.get());
+    }
+
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    // serve the classifier from the next batch on; the previous one is closed once its batches are done,
+    // if the server owns it
+    public void swap(NaiveBayesTextClassifier classifier) {
+        swap(classifier, ownsClassifiers);
+    }
+
+    private void swap(NaiveBayesTextClassifier classifier, boolean owned) {
+        Generation previous = current.getAndSet(new Generation(classifier, owned));
+        swapCount.incrementAndGet();
+        release(previous);
+    }
+
+    public NaiveBayesTextClassifier getClassifier() {
+        return current.get().classifier;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getSwapCount() {
+        return swapCount.get();
+    }
+
+    public double getMeanBatchSize() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0 : (double) requestCount.get() / batches;
+    }
+
+    private static class Generation {
+        final NaiveBayesTextClassifier classifier;
+        // true if the classifier is closed once the generation is swapped out
+        final boolean owned;
+        // the serving reference plus one per batch in flight
+        final AtomicInteger references = new AtomicInteger(1);
+
+        Generation(NaiveBayesTextClassifier classifier, boolean owned) {
+            this.classifier = classifier;
+            this.owned = owned;
+        }
+    }
+
+    // the served generation, held until release(); a generation whose last reference is gone has been swapped out
+    private Generation acquire() {
+        while (true) {
+            Generation generation = current.get();
+            int count = generation.references.get();
+            if (count > 0 && generation.references.compareAndSet(count, count + 1)) {
+                return generation;
+            }
+        }
+    }
+
+    private void release(Generation generation) {
+        if (generation.references.decrementAndGet() == 0 && generation.owned) {
+            generation.classifier.close();
+        }
+    }
+
+    private static class PendingRequest {
+        final HttpExchange exchange;
+        final String text;
+        // 0 for the single most probable category
+        final int k;
+
+        PendingRequest(HttpExchange exchange, String text, int k) {
+            this.exchange = exchange;
+            this.text = text;
+            this.k = k;
+        }
+    }
+
+    private void enqueueTopK(HttpExchange exchange) {
+        String k = parameterOf(exchange, "k");
+        try {
+            int parsed = k == null ? 5 : Integer.parseInt(k);
+            if (parsed < 1 || parsed > MAX_K) {
+                throw new NumberFormatException();
+            }
+            enqueue(exchange, parsed);
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, "k must be an integer from 1 to " + MAX_K + "\n");
+        }
+    }
+
+    private void enqueue(HttpExchange exchange, int k) {
+        String method = exchange.getRequestMethod();
+        if (!method.equals("GET") && !method.equals("POST")) {
+            respond(exchange, 405, "use GET or POST\n");
+            return;
+        }
+        String text = parameterOf(exchange, "text");
+        if (text == null && method.equals("POST")) {
+            try {
+                text = readBody(exchange);
+            } catch (IOException e) {
+                respond(exchange, 400, "unreadable request body\n");
+                return;
+            }
+        }
+        if (text == null) {
+            respond(exchange, 400, "missing text\n");
+            return;
+        }
+        // the exchange is answered by a batch worker
+        if (!running || !queue.offer(new PendingRequest(exchange, text, k))) {
+            rejectedCount.incrementAndGet();
+            respond(exchange, 503, "overloaded\n");
+        }
+    }
+
+    private void reload(HttpExchange exchange) {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, "use POST\n");
+            return;
+        }
+        String path = parameterOf(exchange, "path");
+        if (path == null) {
+            respond(exchange, 400, "missing path\n");
+            return;
+        }
+        NaiveBayesTextClassifier classifier;
+        try {
+            classifier = NaiveBayesTextClassifier.load(path, getClassifier().getTermSegmentor());
+        } catch (IOException | RuntimeException e) {
+            respond(exchange, 500, "cannot load " + path + ": " + e.getMessage() + "\n");
+            return;
+        }
+        swap(classifier, true);
+        respond(exchange, 200, "swapped in " + classifier.getModel().getCategoryCount() + " categories\n");
+    }
+
+    private void runWorker() {
+        List<PendingRequest> batch = new ArrayList<>(maxBatchSize);
+        String[] responses = new String[maxBatchSize];
+        while (running) {
+            try {
+                PendingRequest first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    // past the deadline the batch still takes whatever is already queued
+                    PendingRequest next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            Generation generation = acquire();
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    responses[i] = answer(generation.classifier, batch.get(i));
+                }
+            } finally {
+                release(generation);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                if (responses[i] == null) {
+                    respond(batch.get(i).exchange, 500, "prediction failed\n");
+                } else {
+                    respond(batch.get(i).exchange, 200, responses[i]);
+                }
+            }
+            requestCount.addAndGet(batch.size());
+            batchCount.incrementAndGet();
+            batch.clear();
+        }
+    }
+
+    // the response body, or null if the prediction failed
+    private static String answer(NaiveBayesTextClassifier classifier, PendingRequest request) {
+        try {
+            if (request.k == 0) {
+                return classifier.predict(request.text) + "\n";
+            }
+            StringBuilder builder = new StringBuilder();
+            for (Map.Entry<String, Double> posterior : classifier.predictTopK(request.text, request.k)) {
+                builder.append(posterior.getKey()).append('\t').append(posterior.getValue()).append('\n');
+            }
+            return builder.toString();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String parameterOf(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            if (key.equals(name)) {
+                try {
+                    return URLDecoder.decode(equals < 0 ? "" : pair.substring(equals + 1), "UTF-8");
+                } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try (InputStream in = exchange.getRequestBody()) {
+            for (int read; (read = in.read(buffer)) > 0; ) {
+                body.write(buffer, 0, read);
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        try (OutputStream out = exchange.getResponseBody()) {
+            exchange.sendResponseHeaders(status, bytes.length);
+            out.write(bytes);
+        } catch (IOException e) {
+            // the client went away
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // serve a snapshot written by NaiveBayesTextClassifier.save():
+    // java ClassificationServer <snapshot> [port] [bind address, e.g. 0.0.0.0 for every interface]
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            test();
+            return;
+        }
+        NaiveBayesTextClassifier classifier = NaiveBayesTextClassifier.load(args[0]);
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+        InetAddress bindAddress = args.length > 2 ? InetAddress.getByName(args[2]) : InetAddress.getLoopbackAddress();
+        ClassificationServer server = new ClassificationServer(classifier, new InetSocketAddress(bindAddress, port),
+                Runtime.getRuntime().availableProcessors(), 32, 500);
+        server.start();
+        System.out.println("serving " + args[0] + " on " + bindAddress.getHostAddress() + ":" + server.getPort());
+    }
+
+    // unit test
+    private static void test() throws IOException {
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(23, 5000, 30);
+        Map.Entry<List<String>, List<String>> corpus = generator.generate(20000, 1, 6);
+        TermSegmentor termSegmentor = new TermSegmentor(new HashSet<>());
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(termSegmentor);
+        classifier.fit(corpus.getKey(), corpus.getValue());
+        NaiveBayesTextClassifier reference = new NaiveBayesTextClassifier(termSegmentor);
+        reference.fit(corpus.getKey(), corpus.getValue());
+
+        ClassificationServer server = new ClassificationServer(classifier, 0, 2, 16, 2000);
+        server.start();
+        String baseUrl = "http://localhost:" + server.getPort();
+        List<String> queries = generator.generate(400, 1, 6).getKey();
+
+        int mismatches = 0;
+        for (String query : queries.subList(0, 50)) {
+            if (!LoadGenerator.get(baseUrl + "/classify?text=" + LoadGenerator.encode(query)).equals(reference.predict(query) + "\n")) {
+                mismatches++;
+            }
+        }
+        String topK = LoadGenerator.get(baseUrl + "/topk?k=3&text=" + LoadGenerator.encode(queries.get(0)));
+        List<Map.Entry<String, Double>> expected = reference.predictTopK(queries.get(0), 3);
+        boolean topKMatches = topK.split("\n").length == 3 && topK.startsWith(expected.get(0).getKey() + "\t");
+        System.out.println((mismatches == 0 && topKMatches ? "√\t" : "X\t") + "served predictions match the classifier, "
+                + mismatches + " mismatches");
+
+        String missing = LoadGenerator.get(baseUrl + "/classify");
+        String badK = LoadGenerator.get(baseUrl + "/topk?k=0&text=x");
+        System.out.println((missing.startsWith("400") && badK.startsWith("400") ? "√\t" : "X\t") + "bad requests answer 400");
+
+        // by default only the loopback interface is served, and a server bound more widely refuses to reload
+        NaiveBayesTextClassifier exposedClassifier = new NaiveBayesTextClassifier(termSegmentor);
+        exposedClassifier.fit(corpus.getKey().subList(0, 1000), corpus.getValue().subList(0, 1000));
+        ClassificationServer exposed = new ClassificationServer(exposedClassifier, new InetSocketAddress(0), 1, 16, 2000);
+        exposed.start();
+        String refused = LoadGenerator.post("http://127.0.0.1:" + exposed.getPort() + "/reload?path=x");
+        exposed.stop();
+        System.out.println((server.httpServer.getAddress().getAddress().isLoopbackAddress() && refused.startsWith("403")
+                ? "√\t" : "X\t") + "served on loopback by default, reload refused on every interface");
+
+        // concurrent clients get batched, and swapping models under load drops nothing
+        java.io.File file = java.io.File.createTempFile("served", ".model");
+        file.deleteOnExit();
+        reference.save(file.getPath());
+        Thread swapper = new Thread(() -> {
+            for (int i = 0; i < 5; i++) {
+                try {
+                    Thread.sleep(50);
+                    LoadGenerator.post(baseUrl + "/reload?path=" + LoadGenerator.encode(file.getPath()));
+                } catch (InterruptedException | IOException e) {
+                    return;
+                }
+            }
+        });
+        long batchesBefore = server.getBatchCount();
+        long requestsBefore = server.getRequestCount();
+        swapper.start();
+        LoadGenerator.Result result = LoadGenerator.run(baseUrl, queries, 16, 100, 0);
+        try {
+            swapper.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        double meanBatchSize = (double) (server.getRequestCount() - requestsBefore) / (server.getBatchCount() - batchesBefore);
+        System.out.println(result);
+        System.out.println((result.getFailures() == 0 && server.getSwapCount() == 5 && meanBatchSize > 1 ? "√\t" : "X\t")
+                + String.format("%d swaps under load, %d failures, %.1f requests per batch",
+                server.getSwapCount(), result.getFailures(), meanBatchSize));
+        server.stop();
+
+        // a server that does not own its classifier leaves it open for the caller once stopped
+        NaiveBayesTextClassifier shared = NaiveBayesTextClassifier.load(file.getPath(), termSegmentor);
+        ClassificationServer borrowing = new ClassificationServer(shared,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1, 16, 2000, false);
+        borrowing.start();
+        borrowing.stop();
+        boolean open;
+        try {
+            open = shared.predict(queries.get(0)).equals(reference.predict(queries.get(0)));
+        } catch (IllegalStateException e) {
+            open = false;
+        }
+        shared.close();
+        System.out.println((open ? "√\t" : "X\t") + "a classifier the server does not own stays open after stop()");
+    }
+}
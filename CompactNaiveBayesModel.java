@@ -0,0 +1,441 @@
+import java.util.*;
+
+// Overview:
+// a compacted copy of a CompiledNaiveBayesModel that keeps its postings small enough to stay in cache:
+// rare and uninformative terms are pruned, and the log-likelihoods of the remaining postings are stored
+// as floats, or quantized to 16 or 8 bits with an offset and a scale per category
+// a pruned term is scored like a term never seen in training, with the unseen log-likelihood;
+// a term is pruned if it occurred fewer than minCount times in all, or if its log-likelihoods
+// differ by less than minSpread nats across the categories, since a term scoring about the same
+// under every category hardly changes which category wins
+// quantized postings are scored in integers: the levels of a sentence are summed per category and
+// turned into a log-likelihood once, with the offset and scale of the category
+public class CompactNaiveBayesModel implements NaiveBayesModel {
+    public enum Precision {
+        FLOAT32(4),
+        INT16(2),
+        INT8(1);
+
+        private final int bytes;
+
+        Precision(int bytes) {
+            this.bytes = bytes;
+        }
+
+        public int getBytes() {
+            return bytes;
+        }
+    }
+
+    private final String[] categories;
+    private final double[] logPriors;
+    // kept term -> row
+    private final Vocabulary termRows;
+    private final Precision precision;
+    // row -> its postings, laid out like those of CompiledNaiveBayesModel
+    private final int[] postingOffsets;
+    private final int[] postingCategories;
+    // posting -> log-likelihood, or its quantized level; only one is not null
+    private final float[] floatLogLikelihoods;
+    private final short[] shortLevels;
+    private final byte[] byteLevels;
+    // category index -> log-likelihood of level 0, and the log-likelihood step between two levels
+    private final double[] levelOffsets;
+    private final double[] levelScales;
+    private final double unseenLogLikelihood;
+    private final long totalSentenceCount;
+    // #terms of the compiled model left out
+    private final int prunedTermCount;
+    // category indices by descending log prior, ties by index, and the log of the sum of the priors,
+    // as in CompiledNaiveBayesModel
+    private final int[] categoriesByPrior;
+    private final double logPriorMass;
+
+    // per-thread scores of score, predictIndex and predictTopK, shared by all the compacted models
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private CompactNaiveBayesModel(String[] categories, double[] logPriors, Vocabulary termRows, Precision precision,
+                                   int[] postingOffsets, int[] postingCategories, float[] floatLogLikelihoods,
+                                   short[] shortLevels, byte[] byteLevels, double[] levelOffsets, double[] levelScales,
+                                   double unseenLogLikelihood, long totalSentenceCount, int prunedTermCount) {
+        this.categories = categories;
+        this.logPriors = logPriors;
+        this.termRows = termRows;
+        this.precision = precision;
+        this.postingOffsets = postingOffsets;
+        this.postingCategories = postingCategories;
+        this.floatLogLikelihoods = floatLogLikelihoods;
+        this.shortLevels = shortLevels;
+        this.byteLevels = byteLevels;
+        this.levelOffsets = levelOffsets;
+        this.levelScales = levelScales;
+        this.unseenLogLikelihood = unseenLogLikelihood;
+        this.totalSentenceCount = totalSentenceCount;
+        this.prunedTermCount = prunedTermCount;
+
+        Integer[] order = new Integer[categories.length];
+        double priorMass = 0;
+        for (int c = 0; c < categories.length; c++) {
+            order[c] = c;
+            priorMass += Math.exp(logPriors[c]);
+        }
+        Arrays.sort(order, (a, b) -> logPriors[a] != logPriors[b] ? Double.compare(logPriors[b], logPriors[a]) : a - b);
+        this.categoriesByPrior = new int[categories.length];
+        for (int i = 0; i < categories.length; i++) {
+            this.categoriesByPrior[i] = order[i];
+        }
+        this.logPriorMass = Math.log(priorMass);
+    }
+
+    // termCounts[row] - #occurrences of the term of the row in all the categories
+    static CompactNaiveBayesModel compact(CompiledNaiveBayesModel model, int[] termCounts,
+                                          int minCount, double minSpread, Precision precision) {
+        int categoryCount = model.getCategoryCount();
+        int termCount = model.getTermCount();
+        assert termCounts.length == termCount;
+
+        // the levels of a category span the log-likelihoods of its kept postings
+        List<Integer> keptRows = new ArrayList<>();
+        int postingCount = 0;
+        double[] minima = new double[categoryCount];
+        double[] maxima = new double[categoryCount];
+        Arrays.fill(minima, Double.POSITIVE_INFINITY);
+        Arrays.fill(maxima, Double.NEGATIVE_INFINITY);
+        double[] logLikelihoods = new double[categoryCount];
+        for (int row = 0; row < termCount; row++) {
+            if (termCounts[row] < minCount || model.getPostingCount(row) == 0) {
+                continue;
+            }
+            model.getTermLogLikelihoods(row, logLikelihoods);
+            double low = Double.POSITIVE_INFINITY;
+            double high = Double.NEGATIVE_INFINITY;
+            for (double logLikelihood : logLikelihoods) {
+                low = Math.min(low, logLikelihood);
+                high = Math.max(high, logLikelihood);
+            }
+            if (high - low < minSpread) {
+                continue;
+            }
+            keptRows.add(row);
+            for (int c = 0; c < categoryCount; c++) {
+                if (logLikelihoods[c] != model.getUnseenLogLikelihood()) {
+                    postingCount++;
+                    minima[c] = Math.min(minima[c], logLikelihoods[c]);
+                    maxima[c] = Math.max(maxima[c], logLikelihoods[c]);
+                }
+            }
+        }
+
+        int levels = precision == Precision.INT16 ? 65536 : 256;
+        double[] levelOffsets = new double[categoryCount];
+        double[] levelScales = new double[categoryCount];
+        for (int c = 0; c < categoryCount; c++) {
+            if (minima[c] <= maxima[c]) {
+                levelOffsets[c] = minima[c];
+                levelScales[c] = (maxima[c] - minima[c]) / (levels - 1);
+            }
+        }
+
+        Vocabulary termRows = new Vocabulary(keptRows.size());
+        int[] postingOffsets = new int[keptRows.size() + 1];
+        int[] postingCategories = new int[postingCount];
+        float[] floatLogLikelihoods = precision == Precision.FLOAT32 ? new float[postingCount] : null;
+        short[] shortLevels = precision == Precision.INT16 ? new short[postingCount] : null;
+        byte[] byteLevels = precision == Precision.INT8 ? new byte[postingCount] : null;
+        int posting = 0;
+        for (int row : keptRows) {
+            int keptRow = termRows.intern(model.getTerm(row));
+            model.getTermLogLikelihoods(row, logLikelihoods);
+            for (int c = 0; c < categoryCount; c++) {
+                double logLikelihood = logLikelihoods[c];
+                if (logLikelihood == model.getUnseenLogLikelihood()) {
+                    continue;
+                }
+                postingCategories[posting] = c;
+                if (precision == Precision.FLOAT32) {
+                    floatLogLikelihoods[posting] = (float) logLikelihood;
+                } else {
+                    long level = levelScales[c] == 0 ? 0 : Math.round((logLikelihood - levelOffsets[c]) / levelScales[c]);
+                    if (precision == Precision.INT16) {
+                        shortLevels[posting] = (short) level;
+                    } else {
+                        byteLevels[posting] = (byte) level;
+                    }
+                }
+                posting++;
+            }
+            postingOffsets[keptRow + 1] = posting;
+        }
+
+        String[] categories = new String[categoryCount];
+        double[] logPriors = new double[categoryCount];
+        for (int c = 0; c < categoryCount; c++) {
+            categories[c] = model.getCategory(c);
+            logPriors[c] = model.getLogPrior(c);
+        }
+        return new CompactNaiveBayesModel(categories, logPriors, termRows, precision, postingOffsets, postingCategories,
+                floatLogLikelihoods, shortLevels, byteLevels, levelOffsets, levelScales,
+                model.getUnseenLogLikelihood(), model.getTotalSentenceCount(), termCount - keptRows.size());
+    }
+
+    private static final class Scratch {
+        private int[] stamps = new int[0];
+        private double[] scores = new double[0];
+        // category -> the sum of the levels of its postings, and how many there are
+        private long[] levelSums = new long[0];
+        private int[] postingCounts = new int[0];
+        private int[] touched = new int[0];
+        private int stamp;
+
+        private void ensureCapacity(int categoryCount) {
+            if (stamps.length < categoryCount) {
+                this.stamps = new int[categoryCount];
+                this.scores = new double[categoryCount];
+                this.levelSums = new long[categoryCount];
+                this.postingCounts = new int[categoryCount];
+                this.touched = new int[categoryCount];
+            }
+        }
+
+        private int nextStamp() {
+            if (++this.stamp == 0) {
+                Arrays.fill(stamps, 0);
+                this.stamp = 1;
+            }
+            return stamp;
+        }
+    }
+
+    // score the categories in the postings of the terms into the scratch, and return how many there are
+    // a category with n postings of levels summing to s scores its baseline plus
+    // n * (offset - unseen log-likelihood) + s * scale
+    private int scoreTouched(List<String> terms, Scratch scratch) {
+        scratch.ensureCapacity(categories.length);
+        int stamp = scratch.nextStamp();
+        int[] stamps = scratch.stamps;
+        double[] scores = scratch.scores;
+        long[] levelSums = scratch.levelSums;
+        int[] postingCounts = scratch.postingCounts;
+        int touchedCount = 0;
+        for (String term : terms) {
+            int row = termRows.indexOf(term);
+            if (row < 0) {
+                continue;
+            }
+            for (int i = postingOffsets[row]; i < postingOffsets[row + 1]; i++) {
+                int c = postingCategories[i];
+                if (stamps[c] != stamp) {
+                    stamps[c] = stamp;
+                    scores[c] = 0;
+                    levelSums[c] = 0;
+                    postingCounts[c] = 0;
+                    scratch.touched[touchedCount++] = c;
+                }
+                postingCounts[c]++;
+                if (precision == Precision.FLOAT32) {
+                    scores[c] += floatLogLikelihoods[i];
+                } else if (precision == Precision.INT16) {
+                    levelSums[c] += shortLevels[i] & 0xFFFF;
+                } else {
+                    levelSums[c] += byteLevels[i] & 0xFF;
+                }
+            }
+        }
+
+        double unseenScore = terms.size() * unseenLogLikelihood;
+        for (int t = 0; t < touchedCount; t++) {
+            int c = scratch.touched[t];
+            double logLikelihoods = precision == Precision.FLOAT32 ? scores[c]
+                    : postingCounts[c] * levelOffsets[c] + levelSums[c] * levelScales[c];
+            scores[c] = logPriors[c] + unseenScore + logLikelihoods - postingCounts[c] * unseenLogLikelihood;
+        }
+        return touchedCount;
+    }
+
+    // scored like CompiledNaiveBayesModel: a baseline per category, plus the postings of the kept terms
+    @Override
+    public void score(List<String> terms, double[] scores) {
+        assert scores.length >= categories.length;
+
+        Scratch scratch = SCRATCH.get();
+        int touchedCount = scoreTouched(terms, scratch);
+        double unseenScore = terms.size() * unseenLogLikelihood;
+        for (int c = 0; c < categories.length; c++) {
+            scores[c] = logPriors[c] + unseenScore;
+        }
+        for (int i = 0; i < touchedCount; i++) {
+            int c = scratch.touched[i];
+            scores[c] = scratch.scores[c];
+        }
+    }
+
+    // the best touched category or the untouched one with the highest prior, like CompiledNaiveBayesModel.Query
+    @Override
+    public int predictIndex(List<String> terms) {
+        Scratch scratch = SCRATCH.get();
+        int touchedCount = scoreTouched(terms, scratch);
+        int bestIndex = -1;
+        double bestScore = -Double.MAX_VALUE;
+        for (int i = 0; i < touchedCount; i++) {
+            int c = scratch.touched[i];
+            double score = scratch.scores[c];
+            if (score > bestScore || (score == bestScore && c < bestIndex)) {
+                bestScore = score;
+                bestIndex = c;
+            }
+        }
+        for (int c : categoriesByPrior) {
+            if (scratch.stamps[c] == scratch.stamp) {
+                continue;
+            }
+            double score = logPriors[c] + terms.size() * unseenLogLikelihood;
+            if (score > bestScore || (score == bestScore && c < bestIndex)) {
+                bestIndex = c;
+            }
+            break;
+        }
+        return bestIndex;
+    }
+
+    // the untouched categories are visited by descending prior until one cannot reach the top k,
+    // like CompiledNaiveBayesModel.Query
+    @Override
+    public List<Map.Entry<String, Double>> predictTopK(List<String> terms, int k) {
+        Scratch scratch = SCRATCH.get();
+        int touchedCount = scoreTouched(terms, scratch);
+        double unseenScore = terms.size() * unseenLogLikelihood;
+
+        TopKSelector selector = new TopKSelector(k);
+        double touchedPriorMass = 0;
+        for (int i = 0; i < touchedCount; i++) {
+            int c = scratch.touched[i];
+            selector.offer(c, scratch.scores[c]);
+            touchedPriorMass += Math.exp(logPriors[c]);
+        }
+        if (touchedCount == categories.length) {
+            return selector.toPosteriors(this);
+        }
+
+        for (int c : categoriesByPrior) {
+            if (scratch.stamps[c] == scratch.stamp) {
+                continue;
+            }
+            double score = logPriors[c] + unseenScore;
+            if (!selector.wouldKeep(c, score)) {
+                break;
+            }
+            selector.keep(c, score);
+        }
+        double untouchedPriorMass = Math.exp(logPriorMass) - touchedPriorMass;
+        if (untouchedPriorMass > 0) {
+            selector.addLogMass(Math.log(untouchedPriorMass) + unseenScore);
+        }
+        return selector.toPosteriors(this);
+    }
+
+    @Override
+    public int getCategoryCount() {
+        return categories.length;
+    }
+
+    @Override
+    public String getCategory(int index) {
+        return categories[index];
+    }
+
+    @Override
+    public int getTermCount() {
+        return termRows.size();
+    }
+
+    public int getPrunedTermCount() {
+        return prunedTermCount;
+    }
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    public long getTotalSentenceCount() {
+        return totalSentenceCount;
+    }
+
+    // the postings, the priors and level parameters, and the term strings
+    @Override
+    public long estimateBytes() {
+        long bytes = (4L + precision.getBytes()) * postingCategories.length + 4L * postingOffsets.length
+                + 8L * (logPriors.length + levelOffsets.length + levelScales.length) + termRows.estimateTableBytes();
+        for (String term : termRows) {
+            bytes += 40 + 2L * term.length();
+        }
+        return bytes;
+    }
+
+    // unit test
+    public static void main(String[] args) {
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(19, 20000, 50);
+        Map.Entry<List<List<String>>, List<String>> corpus = generator.generateSegmented(50000, 2, 8);
+        Map.Entry<List<List<String>>, List<String>> testSet = generator.generateSegmented(5000, 1, 5);
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(new TermSegmentor(new HashSet<>()));
+        classifier.fitSegmented(corpus.getKey(), corpus.getValue());
+        NaiveBayesModel full = classifier.getModel();
+
+        // without pruning, floats and 16-bit levels rank like the full model nearly always
+        for (Precision precision : Precision.values()) {
+            CompactNaiveBayesModel compact = classifier.compact(1, 0, precision);
+            int agreements = 0;
+            double maxError = 0;
+            double[] fullScores = new double[full.getCategoryCount()];
+            double[] compactScores = new double[compact.getCategoryCount()];
+            for (List<String> terms : testSet.getKey()) {
+                if (full.predict(terms).equals(compact.predict(terms))) {
+                    agreements++;
+                }
+                full.score(terms, fullScores);
+                compact.score(terms, compactScores);
+                for (int c = 0; c < fullScores.length; c++) {
+                    maxError = Math.max(maxError, Math.abs(fullScores[c] - compactScores[c]));
+                }
+            }
+            double agreement = (double) agreements / testSet.getKey().size();
+            boolean close = precision == Precision.INT8 ? agreement > 0.95 : agreement > 0.999;
+            System.out.println((close ? "√\t" : "X\t") + String.format("%s: %.1f%% of the full model's size, "
+                            + "%.2f%% same predictions, max score error %.4f", precision,
+                    100.0 * compact.estimateBytes() / full.estimateBytes(), 100 * agreement, maxError));
+        }
+
+        // the postings-driven predictions agree with the exhaustive ones over score()
+        CompactNaiveBayesModel quantized = classifier.compact(1, 0, Precision.INT8);
+        int mismatches = 0;
+        double[] quantizedScores = new double[quantized.getCategoryCount()];
+        for (List<String> terms : testSet.getKey()) {
+            quantized.score(terms, quantizedScores);
+            int bestIndex = 0;
+            for (int c = 1; c < quantizedScores.length; c++) {
+                if (quantizedScores[c] > quantizedScores[bestIndex]) {
+                    bestIndex = c;
+                }
+            }
+            List<String> expected = new ArrayList<>();
+            for (Map.Entry<String, Double> entry : TopKSelector.exhaustive(quantized, terms, 3)) {
+                expected.add(entry.getKey());
+            }
+            List<String> actual = new ArrayList<>();
+            for (Map.Entry<String, Double> entry : quantized.predictTopK(terms, 3)) {
+                actual.add(entry.getKey());
+            }
+            if (quantized.predictIndex(terms) != bestIndex || !actual.equals(expected)) {
+                mismatches++;
+            }
+        }
+        System.out.println((mismatches == 0 ? "√\t" : "X\t") + "compacted postings predict and prune like score(), "
+                + mismatches + " mismatches");
+
+        // pruned terms score like unseen ones
+        CompactNaiveBayesModel pruned = classifier.compact(3, 0, Precision.FLOAT32);
+        System.out.println((pruned.getPrunedTermCount() > 0
+                && pruned.getTermCount() + pruned.getPrunedTermCount() == full.getTermCount() ? "√\t" : "X\t")
+                + pruned.getPrunedTermCount() + " of " + full.getTermCount() + " terms pruned below 3 occurrences");
+        System.out.println((classifier.getModel() == pruned ? "√\t" : "X\t") + "the compacted model is published");
+    }
+}
@@ -0,0 +1,490 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// Overview:
+// a read-only view of a trained naive Bayes classifier,
+// where the log-priors and the per-term log-likelihoods are computed once at the end of training,
+// so that a sentence is segmented once and scored against the categories with plain array lookups
+// the log-likelihoods are kept as an inverted index: each term has postings for the categories it was seen
+// under only, and every other category gives it the unseen log-likelihood
+// a sentence of n terms therefore starts every category from its log prior plus n unseen log-likelihoods,
+// and each posting of its terms adds the difference of the seen log-likelihood from the unseen one,
+// so the work grows with the postings of the terms rather than with #terms * #categories
+public class CompiledNaiveBayesModel implements NaiveBayesModel {
+    // category index -> category name
+    private final String[] categories;
+    // category index -> log prior probability of the category
+    private final double[] logPriors;
+    // term -> row index into postingOffsets
+    private final Vocabulary termRows;
+    // row -> the categories the term was seen under, ascending,
+    // in postingCategories[postingOffsets[row]] .. postingCategories[postingOffsets[row + 1] - 1],
+    // with the log-likelihood of the term given the category at the same index of postingLogLikelihoods
+    private final int[] postingOffsets;
+    private final int[] postingCategories;
+    private final double[] postingLogLikelihoods;
+    // log-likelihood of a term never seen during training, or never seen under the category
+    private final double unseenLogLikelihood;
+    // #sentences the model was trained on
+    private final long totalSentenceCount;
+
+    // category indices by descending log prior, ties by index
+    private final int[] categoriesByPrior;
+    // log of the sum of the priors of all the categories, 0 up to rounding
+    private final double logPriorMass;
+    // per-thread query of startQuery, predictIndex and predictTopK, shared by all the models; it refers to a model
+    // only while a sentence is scored, so that a thread does not keep the models it once predicted with reachable
+    private static final ThreadLocal<Query> QUERIES = ThreadLocal.withInitial(Query::new);
+
+    CompiledNaiveBayesModel(String[] categories, double[] logPriors, Vocabulary termRows,
+                            int[] postingOffsets, int[] postingCategories, double[] postingLogLikelihoods,
+                            double unseenLogLikelihood, long totalSentenceCount) {
+        assert categories.length == logPriors.length;
+        assert postingOffsets.length == termRows.size() + 1;
+        assert postingCategories.length == postingOffsets[termRows.size()];
+        assert postingLogLikelihoods.length == postingCategories.length;
+
+        this.categories = categories;
+        this.logPriors = logPriors;
+        this.termRows = termRows;
+        this.postingOffsets = postingOffsets;
+        this.postingCategories = postingCategories;
+        this.postingLogLikelihoods = postingLogLikelihoods;
+        this.unseenLogLikelihood = unseenLogLikelihood;
+        this.totalSentenceCount = totalSentenceCount;
+
+        Integer[] order = new Integer[categories.length];
+        for (int c = 0; c < order.length; c++) {
+            order[c] = c;
+        }
+        Arrays.sort(order, (a, b) -> logPriors[a] != logPriors[b] ? Double.compare(logPriors[b], logPriors[a]) : a - b);
+        this.categoriesByPrior = new int[order.length];
+        double priorMass = 0;
+        for (int i = 0; i < order.length; i++) {
+            this.categoriesByPrior[i] = order[i];
+            priorMass += Math.exp(logPriors[i]);
+        }
+        this.logPriorMass = Math.log(priorMass);
+    }
+
+    // the postings are added in sentence order onto the baseline, the same sums as predictIndex and predictTopK
+    @Override
+    public void score(List<String> terms, double[] scores) {
+        assert scores.length >= categories.length;
+
+        int categoryCount = categories.length;
+        double unseenScore = terms.size() * unseenLogLikelihood;
+        for (int c = 0; c < categoryCount; c++) {
+            scores[c] = logPriors[c] + unseenScore;
+        }
+        for (String term : terms) {
+            int row = termRows.indexOf(term);
+            if (row < 0) {
+                // new term detected on the fly
+                continue;
+            }
+            for (int i = postingOffsets[row]; i < postingOffsets[row + 1]; i++) {
+                scores[postingCategories[i]] += postingLogLikelihoods[i] - unseenLogLikelihood;
+            }
+        }
+    }
+
+    // start scoring a sentence term by term on this thread, e.g. as the TermSink of TermSegmentor.segment(),
+    // so that no term list is built; the query is reused by the next startQuery() on the same thread,
+    // so it must be finished before another one starts
+    public Query startQuery() {
+        Query query = QUERIES.get();
+        query.start(this);
+        return query;
+    }
+
+    @Override
+    public int predictIndex(List<String> terms) {
+        Query query = startQuery();
+        for (String term : terms) {
+            query.add(term);
+        }
+        return query.predictIndex();
+    }
+
+    @Override
+    public List<Map.Entry<String, Double>> predictTopK(List<String> terms, int k) {
+        Query query = startQuery();
+        for (String term : terms) {
+            query.add(term);
+        }
+        return query.predictTopK(k);
+    }
+
+    // the rows of the terms are buffered as they arrive and scored once the sentence is complete,
+    // since the baseline of every category depends on the number of terms;
+    // the sums are then the same as score() makes, in the same order
+    public static final class Query implements TermSink {
+        // the model of the sentence being scored, null between sentences
+        private CompiledNaiveBayesModel model;
+        // category -> the last scoring that touched it, so that the arrays never need clearing;
+        // they are grown to the largest model the thread has scored with
+        private int[] stamps = new int[0];
+        private double[] scores = new double[0];
+        private int[] touched = new int[0];
+        private int stamp;
+        // the rows of the known terms so far, and the count of all the terms including unknown ones
+        private int[] rows = new int[16];
+        private int rowCount;
+        private int termCount;
+
+        private Query() {
+        }
+
+        private void start(CompiledNaiveBayesModel model) {
+            int categoryCount = model.categories.length;
+            if (stamps.length < categoryCount) {
+                this.stamps = new int[categoryCount];
+                this.scores = new double[categoryCount];
+                this.touched = new int[categoryCount];
+            }
+            this.model = model;
+            this.rowCount = 0;
+            this.termCount = 0;
+        }
+
+        // the model of the sentence, which the query lets go of once the sentence is scored
+        private CompiledNaiveBayesModel finish() {
+            CompiledNaiveBayesModel model = this.model;
+            assert model != null : "startQuery() first";
+            this.model = null;
+            return model;
+        }
+
+        @Override
+        public void accept(CharSequence chars, int start, int end) {
+            addRow(model.termRows.indexOf(chars, start, end));
+        }
+
+        public void add(String term) {
+            addRow(model.termRows.indexOf(term));
+        }
+
+        private void addRow(int row) {
+            this.termCount++;
+            if (row < 0) {
+                // new term detected on the fly
+                return;
+            }
+            if (rowCount == rows.length) {
+                this.rows = Arrays.copyOf(rows, rows.length * 2);
+            }
+            rows[rowCount++] = row;
+        }
+
+        // score the categories in the postings of the terms, and return how many there are
+        private int scoreTouched(CompiledNaiveBayesModel model) {
+            int stamp = nextStamp();
+            double unseenLogLikelihood = model.unseenLogLikelihood;
+            double unseenScore = termCount * unseenLogLikelihood;
+            int touchedCount = 0;
+            for (int t = 0; t < rowCount; t++) {
+                int row = rows[t];
+                for (int i = model.postingOffsets[row]; i < model.postingOffsets[row + 1]; i++) {
+                    int c = model.postingCategories[i];
+                    if (stamps[c] != stamp) {
+                        stamps[c] = stamp;
+                        scores[c] = model.logPriors[c] + unseenScore;
+                        touched[touchedCount++] = c;
+                    }
+                    scores[c] += model.postingLogLikelihoods[i] - unseenLogLikelihood;
+                }
+            }
+            return touchedCount;
+        }
+
+        // after 2^32 scorings the stamps would repeat, so they are cleared and restart at 1
+        private int nextStamp() {
+            if (++this.stamp == 0) {
+                Arrays.fill(stamps, 0);
+                this.stamp = 1;
+            }
+            return stamp;
+        }
+
+        // the best of the touched categories, or of the untouched one with the highest prior,
+        // which scores at least as high as every other untouched category; ties go to the lower index like score()
+        public int predictIndex() {
+            CompiledNaiveBayesModel model = finish();
+            int touchedCount = scoreTouched(model);
+            int bestIndex = -1;
+            double bestScore = -Double.MAX_VALUE;
+            for (int i = 0; i < touchedCount; i++) {
+                int c = touched[i];
+                double score = scores[c];
+                if (score > bestScore || (score == bestScore && c < bestIndex)) {
+                    bestScore = score;
+                    bestIndex = c;
+                }
+            }
+            double unseenScore = termCount * model.unseenLogLikelihood;
+            for (int c : model.categoriesByPrior) {
+                if (stamps[c] == stamp) {
+                    continue;
+                }
+                double score = model.logPriors[c] + unseenScore;
+                // categoriesByPrior puts the lowest index first among equal priors
+                if (score > bestScore || (score == bestScore && c < bestIndex)) {
+                    bestIndex = c;
+                }
+                break;
+            }
+            return bestIndex;
+        }
+
+        // a category none of the terms was seen under keeps its baseline score, so among those only the ones with
+        // the highest priors can reach the top k: they are visited by descending prior, and the first one that
+        // cannot beat the k-th best score is an upper bound of all the others, which are abandoned unscored
+        // the abandoned categories still count towards the normalizer of the posteriors, through their total prior
+        public List<Map.Entry<String, Double>> predictTopK(int k) {
+            CompiledNaiveBayesModel model = finish();
+            int touchedCount = scoreTouched(model);
+            double unseenScore = termCount * model.unseenLogLikelihood;
+
+            TopKSelector selector = new TopKSelector(k);
+            double touchedPriorMass = 0;
+            for (int i = 0; i < touchedCount; i++) {
+                int c = touched[i];
+                selector.offer(c, scores[c]);
+                touchedPriorMass += Math.exp(model.logPriors[c]);
+            }
+            if (touchedCount == model.categories.length) {
+                return selector.toPosteriors(model);
+            }
+
+            for (int c : model.categoriesByPrior) {
+                if (stamps[c] == stamp) {
+                    continue;
+                }
+                double score = model.logPriors[c] + unseenScore;
+                if (!selector.wouldKeep(c, score)) {
+                    // no category later in prior order scores higher
+                    break;
+                }
+                selector.keep(c, score);
+            }
+            double untouchedPriorMass = Math.exp(model.logPriorMass) - touchedPriorMass;
+            if (untouchedPriorMass > 0) {
+                selector.addLogMass(Math.log(untouchedPriorMass) + unseenScore);
+            }
+            return selector.toPosteriors(model);
+        }
+    }
+
+    @Override
+    public int getCategoryCount() {
+        return categories.length;
+    }
+
+    @Override
+    public String getCategory(int index) {
+        return categories[index];
+    }
+
+    @Override
+    public int getTermCount() {
+        return termRows.size();
+    }
+
+    // #(term, category) pairs seen in training
+    public int getPostingCount() {
+        return postingCategories.length;
+    }
+
+    // #categories the term of the row was seen under
+    int getPostingCount(int row) {
+        return postingOffsets[row + 1] - postingOffsets[row];
+    }
+
+    // the postings, the priors and the term strings
+    @Override
+    public long estimateBytes() {
+        long bytes = 12L * postingCategories.length + 4L * postingOffsets.length + 12L * logPriors.length
+                + termRows.estimateTableBytes();
+        for (String term : termRows) {
+            bytes += 40 + 2L * term.length();
+        }
+        return bytes;
+    }
+
+    // the category of the i-th posting of the row, and the log-likelihood of the term given it
+    int getPostingCategory(int row, int i) {
+        return postingCategories[postingOffsets[row] + i];
+    }
+
+    double getPostingLogLikelihood(int row, int i) {
+        return postingLogLikelihoods[postingOffsets[row] + i];
+    }
+
+    String getTerm(int row) {
+        return termRows.get(row);
+    }
+
+    double getLogPrior(int index) {
+        return logPriors[index];
+    }
+
+    // fill logLikelihoods[c] with the log-likelihood of the term of the row given category c
+    void getTermLogLikelihoods(int row, double[] logLikelihoods) {
+        Arrays.fill(logLikelihoods, 0, categories.length, unseenLogLikelihood);
+        for (int i = postingOffsets[row]; i < postingOffsets[row + 1]; i++) {
+            logLikelihoods[postingCategories[i]] = postingLogLikelihoods[i];
+        }
+    }
+
+    public long getTotalSentenceCount() {
+        return totalSentenceCount;
+    }
+
+    double getUnseenLogLikelihood() {
+        return unseenLogLikelihood;
+    }
+
+    private static void denseScore(CompiledNaiveBayesModel model, double[] denseTable, List<String> terms, double[] scores) {
+        int categoryCount = model.getCategoryCount();
+        System.arraycopy(model.logPriors, 0, scores, 0, categoryCount);
+        for (String term : terms) {
+            int row = model.termRows.indexOf(term);
+            for (int c = 0; c < categoryCount; c++) {
+                scores[c] += row < 0 ? model.unseenLogLikelihood : denseTable[row * categoryCount + c];
+            }
+        }
+    }
+
+    private static int argmax(double[] scores) {
+        int bestIndex = -1;
+        for (int c = 0; c < scores.length; c++) {
+            if (bestIndex < 0 || scores[c] > scores[bestIndex]) {
+                bestIndex = c;
+            }
+        }
+        return bestIndex;
+    }
+
+    // unit test
+    public static void main(String[] args) {
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(13, 3000, 1000);
+        Map.Entry<List<List<String>>, List<String>> corpus = generator.generateSegmented(50000, 2, 8);
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(new TermSegmentor(new java.util.HashSet<>()));
+        classifier.fitSegmented(corpus.getKey(), corpus.getValue());
+        CompiledNaiveBayesModel model = (CompiledNaiveBayesModel) classifier.getModel();
+
+        // the pruned search must find the categories of the exhaustive one, with the same posteriors
+        List<List<String>> queries = generator.generateSegmented(2000, 1, 4).getKey();
+        int mismatches = 0;
+        double maxError = 0;
+        for (List<String> query : queries) {
+            List<Map.Entry<String, Double>> pruned = model.predictTopK(query, 5);
+            List<Map.Entry<String, Double>> exhaustive = TopKSelector.exhaustive(model, query, 5);
+            if (!pruned.get(0).getKey().equals(model.predict(query)) || pruned.size() != exhaustive.size()) {
+                mismatches++;
+                continue;
+            }
+            for (int i = 0; i < pruned.size(); i++) {
+                if (!pruned.get(i).getKey().equals(exhaustive.get(i).getKey())) {
+                    mismatches++;
+                }
+                maxError = Math.max(maxError, Math.abs(pruned.get(i).getValue() - exhaustive.get(i).getValue()));
+            }
+        }
+        System.out.println((mismatches == 0 && maxError < 1e-12 ? "√\t" : "X\t") + "pruned top-5 matches exhaustive top-5 on "
+                + queries.size() + " queries, " + mismatches + " mismatches, max posterior error " + maxError);
+
+        // sparse scoring against the dense table it replaced, summed term by term over every category
+        int categoryCount = model.getCategoryCount();
+        double[] denseTable = new double[model.getTermCount() * categoryCount];
+        double[] row = new double[categoryCount];
+        for (int r = 0; r < model.getTermCount(); r++) {
+            model.getTermLogLikelihoods(r, row);
+            System.arraycopy(row, 0, denseTable, r * categoryCount, categoryCount);
+        }
+        mismatches = 0;
+        maxError = 0;
+        double[] sparseScores = new double[categoryCount];
+        double[] denseScores = new double[categoryCount];
+        for (List<String> query : queries) {
+            model.score(query, sparseScores);
+            denseScore(model, denseTable, query, denseScores);
+            if (model.predictIndex(query) != argmax(denseScores)) {
+                mismatches++;
+            }
+            for (int c = 0; c < categoryCount; c++) {
+                maxError = Math.max(maxError, Math.abs(sparseScores[c] - denseScores[c]));
+            }
+        }
+        System.out.println((mismatches == 0 && maxError < 1e-9 ? "√\t" : "X\t") + "sparse scoring matches the dense table, "
+                + mismatches + " mismatches, max score error " + maxError);
+        System.out.println(String.format("%d postings for %d terms by %d categories",
+                model.getPostingCount(), model.getTermCount(), categoryCount));
+
+        long start = System.nanoTime();
+        for (List<String> query : queries) {
+            model.predictIndex(query);
+        }
+        long sparseNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (List<String> query : queries) {
+            denseScore(model, denseTable, query, denseScores);
+            argmax(denseScores);
+        }
+        long denseNanos = System.nanoTime() - start;
+        System.out.println(String.format("1000 categories: %.1f us sparse, %.1f us dense per prediction",
+                sparseNanos / 1e3 / queries.size(), denseNanos / 1e3 / queries.size()));
+
+        start = System.nanoTime();
+        for (List<String> query : queries) {
+            model.predictTopK(query, 5);
+        }
+        long prunedNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (List<String> query : queries) {
+            TopKSelector.exhaustive(model, query, 5);
+        }
+        long exhaustiveNanos = System.nanoTime() - start;
+        System.out.println(String.format("1000 categories: %.1f us pruned, %.1f us exhaustive per query",
+                prunedNanos / 1e3 / queries.size(), exhaustiveNanos / 1e3 / queries.size()));
+
+        // the predictions stay the same across the wrap-around of the stamps
+        int[] expected = new int[queries.size()];
+        for (int i = 0; i < queries.size(); i++) {
+            expected[i] = model.predictIndex(queries.get(i));
+        }
+        // on a new thread, whose query has never stamped a category, from the last stamp before the wrap-around
+        CompiledNaiveBayesModel wrapped = model;
+        int[] wrapMismatches = new int[1];
+        Thread thread = new Thread(() -> {
+            QUERIES.get().stamp = -1;
+            for (int i = 0; i < queries.size(); i++) {
+                if (wrapped.predictIndex(queries.get(i)) != expected[i]) {
+                    wrapMismatches[0]++;
+                }
+            }
+        });
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mismatches = wrapMismatches[0];
+        System.out.println((mismatches == 0 ? "√\t" : "X\t") + "predictions unchanged across the wrap-around of the stamps, "
+                + mismatches + " mismatches");
+
+        // a model this thread predicted with is collected once nothing else refers to it
+        classifier.fitSegmented(corpus.getKey().subList(0, 1000), corpus.getValue().subList(0, 1000));
+        java.lang.ref.WeakReference<CompiledNaiveBayesModel> replaced = new java.lang.ref.WeakReference<>(model);
+        model = null;
+        classifier.predictSegmented(queries.get(0));
+        classifier = null;
+        for (int i = 0; i < 10 && replaced.get() != null; i++) {
+            System.gc();
+        }
+        System.out.println((replaced.get() == null ? "√\t" : "X\t") + "a replaced model is not kept reachable by the threads it predicted on");
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Overview:
+// streams the examples of a "<sentence> ||| <category>" data file without loading it into memory
+// the file is cut into fixed-size chunks that are memory-mapped and parsed independently, so a
+// parallel stream reads several chunks at once; a chunk owns every line that starts inside it,
+// and finds its first line by skipping to the first line break at or after its start
+// lines without the delimiter or with an empty side are skipped and counted, blank lines are ignored
+public class CorpusReader implements Closeable {
+    private static final byte[] DELIMITER = " ||| ".getBytes(StandardCharsets.UTF_8);
+    private static final int DEFAULT_CHUNK_SIZE = 32 << 20;
+    // a line starting in a chunk may run this far past the chunk end before it is counted as malformed
+    private static final int MAX_LINE_BYTES = 1 << 20;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int chunkSize;
+    private final LongAdder malformedLines = new LongAdder();
+
+    public CorpusReader(String path, int chunkSize) throws IOException {
+        assert chunkSize > 0;
+        this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        this.chunkSize = chunkSize;
+    }
+
+    public CorpusReader(String path) throws IOException {
+        this(path, DEFAULT_CHUNK_SIZE);
+    }
+
+    // the examples as (sentence, category) entries in file order
+    // the stream is parallel-capable; call .parallel() to parse chunks concurrently
+    public Stream<Map.Entry<String, String>> stream() {
+        return stream(0, fileSize);
+    }
+
+    // the examples of the lines starting at a byte offset in [from, to), in file order
+    // consecutive ranges cover every line exactly once, so a file can be split between readers by size
+    public Stream<Map.Entry<String, String>> stream(long from, long to) {
+        assert 0 <= from && from <= to;
+        long end = Math.min(to, fileSize);
+        int chunkCount = (int) ((Math.max(0, end - from) + chunkSize - 1) / chunkSize);
+        return IntStream.range(0, chunkCount).boxed().flatMap(chunk -> {
+            long start = from + (long) chunk * chunkSize;
+            Iterator<Map.Entry<String, String>> iterator = new ChunkIterator(start, Math.min(end, start + chunkSize));
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL),
+                    false);
+        });
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    // #lines skipped so far because they were not in the form "<sentence> ||| <category>"
+    public long getMalformedLineCount() {
+        return malformedLines.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // mappings that are still in use stay valid after the channel is closed
+        channel.close();
+    }
+
+    private class ChunkIterator implements Iterator<Map.Entry<String, String>> {
+        private final MappedByteBuffer buffer;
+        // lines starting at or after this position belong to the next chunk
+        private final int lineLimit;
+        // true if the window reaches the end of the file, so the last line may end without a line break
+        private final boolean reachesEndOfFile;
+        private int position;
+        private byte[] scratch = new byte[256];
+        private Map.Entry<String, String> next;
+
+        ChunkIterator(long start, long end) {
+            long windowStart = start == 0 ? 0 : start - 1;
+            long windowEnd = Math.min(fileSize, end + MAX_LINE_BYTES);
+            try {
+                this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.lineLimit = (int) (end - windowStart);
+            this.reachesEndOfFile = windowEnd == fileSize;
+            // the previous chunk owns the line running across the chunk start
+            this.position = start == 0 ? 0 : indexOf((byte) '\n', 0) + 1;
+            if (start > 0 && position == 0) {
+                this.position = buffer.limit();
+            }
+        }
+
+        private int indexOf(byte b, int from) {
+            for (int i = from; i < buffer.limit(); i++) {
+                if (buffer.get(i) == b) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int indexOfDelimiter(int from, int to) {
+            for (int i = from; i <= to - DELIMITER.length; i++) {
+                int j = 0;
+                while (j < DELIMITER.length && buffer.get(i + j) == DELIMITER[j]) {
+                    j++;
+                }
+                if (j == DELIMITER.length) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private String decode(int from, int to) {
+            int length = to - from;
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                scratch[i] = buffer.get(from + i);
+            }
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        // parse lines until one is well-formed or the chunk is exhausted
+        private Map.Entry<String, String> advance() {
+            while (position < lineLimit) {
+                int lineStart = position;
+                int lineEnd = indexOf((byte) '\n', lineStart);
+                if (lineEnd < 0) {
+                    if (!reachesEndOfFile) {
+                        // the line is longer than MAX_LINE_BYTES; its end cannot be found in this window
+                        malformedLines.increment();
+                        position = lineLimit;
+                        return null;
+                    }
+                    lineEnd = buffer.limit();
+                }
+                position = lineEnd + 1;
+                if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+                    lineEnd--;
+                }
+                if (lineEnd == lineStart) {
+                    continue;
+                }
+                int delimiter = indexOfDelimiter(lineStart, lineEnd);
+                if (delimiter <= lineStart || delimiter + DELIMITER.length >= lineEnd) {
+                    malformedLines.increment();
+                    continue;
+                }
+                return new AbstractMap.SimpleEntry<>(decode(lineStart, delimiter),
+                        decode(delimiter + DELIMITER.length, lineEnd));
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> result = next;
+            next = null;
+            return result;
+        }
+    }
+
+    // unit test
+    public static void main(String[] args) throws IOException {
+        java.io.File file = java.io.File.createTempFile("corpus", ".txt");
+        file.deleteOnExit();
+        List<String> expected = new ArrayList<>();
+        StringBuilder content = new StringBuilder();
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            String sentence = "玉兰油" + i + (random.nextBoolean() ? "水" : "");
+            content.append(sentence).append(" ||| ").append("类目").append(i % 7).append(i % 3 == 0 ? "\r\n" : "\n");
+            expected.add(sentence + "/类目" + i % 7);
+            if (i % 1000 == 0) {
+                content.append("no delimiter here\n\n");
+            }
+        }
+        java.nio.file.Files.write(file.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+
+        // tiny chunks, so that lines run across chunk boundaries everywhere
+        try (CorpusReader reader = new CorpusReader(file.getPath(), 4096)) {
+            List<String> actual = new ArrayList<>();
+            reader.stream().parallel().forEachOrdered(entry -> actual.add(entry.getKey() + "/" + entry.getValue()));
+            System.out.println((actual.equals(expected) ? "√\t" : "X\t") + actual.size() + " examples read in order");
+            System.out.println((reader.getMalformedLineCount() == 20 ? "√\t" : "X\t")
+                    + reader.getMalformedLineCount() + " malformed lines skipped");
+        }
+
+        // a streaming fit must count exactly what a fit on the same lists counts
+        List<String> sentences = new ArrayList<>();
+        List<String> targets = new ArrayList<>();
+        for (String example : expected) {
+            sentences.add(example.substring(0, example.indexOf('/')));
+            targets.add(example.substring(example.indexOf('/') + 1));
+        }
+        TermSegmentor termSegmentor = new TermSegmentor(new HashSet<>());
+        NaiveBayesTextClassifier listFit = new NaiveBayesTextClassifier(termSegmentor);
+        listFit.fit(sentences, targets);
+        NaiveBayesTextClassifier streamFit = new NaiveBayesTextClassifier(termSegmentor);
+        try (CorpusReader reader = new CorpusReader(file.getPath(), 4096)) {
+            streamFit.fit(reader.stream().parallel());
+        }
+        System.out.println((streamFit.hasSameCountsAs(listFit) ? "√\t" : "X\t") + "streaming fit matches list fit");
+    }
+}
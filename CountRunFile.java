@@ -0,0 +1,379 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Overview:
+// a run of partial naive Bayes counts on disk, sorted by term, so that any number of runs
+// can be merged in one sequential pass with a heap of readers instead of in a count table
+// a run holds the totals of its categories, in order of first appearance, and one record per term:
+// the term, where it was first seen, and its (category, count) postings in ascending category order
+// merging runs in order numbers the categories by first appearance across all of them and keeps the
+// earliest first-seen position of every term, so a model compiled from the merge orders its categories
+// and terms exactly like an in-memory fit over the same examples
+//
+// Run layout, big-endian, version 1:
+//   header   magic "NBCR", version, total sentence count (long), #categories C,
+//            C times: category (UTF), sentence count (long), term count (long)
+//   records  term (UTF), first seen (long), #postings n, n times: category index (int), count (int)
+//   end      an empty term with first seen -1
+public class CountRunFile {
+    private static final int MAGIC = 0x4E424352;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private CountRunFile() {
+    }
+
+    // the category totals at the head of a run
+    static class Header {
+        final Vocabulary categories;
+        final long[] sentenceCounts;
+        final long[] termCounts;
+        final long totalSentenceCount;
+
+        Header(Vocabulary categories, long[] sentenceCounts, long[] termCounts, long totalSentenceCount) {
+            assert sentenceCounts.length >= categories.size() && termCounts.length >= categories.size();
+            this.categories = categories;
+            this.sentenceCounts = sentenceCounts;
+            this.termCounts = termCounts;
+            this.totalSentenceCount = totalSentenceCount;
+        }
+    }
+
+    // receives a run record by record: the header first, then the terms in ascending order
+    // the posting arrays are only valid during the call
+    interface RecordSink {
+        void begin(Header header) throws IOException;
+
+        void accept(String term, long firstSeen, int[] categories, int[] counts, int postingCount) throws IOException;
+    }
+
+    static class Writer implements RecordSink, Closeable {
+        private final DataOutputStream out;
+        private String lastTerm;
+
+        Writer(File file) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        }
+
+        @Override
+        public void begin(Header header) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(header.totalSentenceCount);
+            out.writeInt(header.categories.size());
+            for (int c = 0; c < header.categories.size(); c++) {
+                out.writeUTF(header.categories.get(c));
+                out.writeLong(header.sentenceCounts[c]);
+                out.writeLong(header.termCounts[c]);
+            }
+        }
+
+        @Override
+        public void accept(String term, long firstSeen, int[] categories, int[] counts, int postingCount) throws IOException {
+            assert firstSeen >= 0 && (lastTerm == null || lastTerm.compareTo(term) < 0);
+            this.lastTerm = term;
+            out.writeUTF(term);
+            out.writeLong(firstSeen);
+            out.writeInt(postingCount);
+            for (int i = 0; i < postingCount; i++) {
+                out.writeInt(categories[i]);
+                out.writeInt(counts[i]);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.writeUTF("");
+                out.writeLong(-1);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final Header header;
+        // the current record, valid after next() returned true
+        private String term;
+        private long firstSeen;
+        private int[] categories = new int[16];
+        private int[] counts = new int[16];
+        private int postingCount;
+
+        Reader(File file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException(file + " is not a count run");
+                }
+                if (in.readInt() != VERSION) {
+                    throw new IOException(file + " is a count run of an unsupported version");
+                }
+                long totalSentenceCount = in.readLong();
+                int categoryCount = in.readInt();
+                Vocabulary categoryNames = new Vocabulary(categoryCount);
+                long[] sentenceCounts = new long[categoryCount];
+                long[] termCounts = new long[categoryCount];
+                for (int c = 0; c < categoryCount; c++) {
+                    categoryNames.intern(in.readUTF());
+                    sentenceCounts[c] = in.readLong();
+                    termCounts[c] = in.readLong();
+                }
+                this.header = new Header(categoryNames, sentenceCounts, termCounts, totalSentenceCount);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        Header getHeader() {
+            return header;
+        }
+
+        // move to the next record, or return false at the end of the run
+        boolean next() throws IOException {
+            String term = in.readUTF();
+            long firstSeen = in.readLong();
+            if (firstSeen < 0) {
+                this.term = null;
+                return false;
+            }
+            int postingCount = in.readInt();
+            if (postingCount > categories.length) {
+                this.categories = new int[Math.max(postingCount, categories.length * 2)];
+                this.counts = new int[categories.length];
+            }
+            for (int i = 0; i < postingCount; i++) {
+                categories[i] = in.readInt();
+                counts[i] = in.readInt();
+            }
+            this.term = term;
+            this.firstSeen = firstSeen;
+            this.postingCount = postingCount;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // merge the runs, in the given order, into the sink: each term once, with the sum of its counts
+    // per category and its earliest first-seen position; at most one buffered record per run is in memory
+    static void merge(List<File> runs, RecordSink sink) throws IOException {
+        List<Reader> readers = new ArrayList<>();
+        try {
+            for (File run : runs) {
+                readers.add(new Reader(run));
+            }
+
+            // categories in order of first appearance across the runs, like mergeCounts
+            Vocabulary categories = new Vocabulary();
+            int[][] categoryMaps = new int[readers.size()][];
+            for (int r = 0; r < readers.size(); r++) {
+                Vocabulary runCategories = readers.get(r).getHeader().categories;
+                categoryMaps[r] = new int[runCategories.size()];
+                for (int c = 0; c < runCategories.size(); c++) {
+                    categoryMaps[r][c] = categories.intern(runCategories.get(c));
+                }
+            }
+            int categoryCount = categories.size();
+            long[] sentenceCounts = new long[categoryCount];
+            long[] termCounts = new long[categoryCount];
+            long totalSentenceCount = 0;
+            for (int r = 0; r < readers.size(); r++) {
+                Header header = readers.get(r).getHeader();
+                for (int c = 0; c < header.categories.size(); c++) {
+                    sentenceCounts[categoryMaps[r][c]] += header.sentenceCounts[c];
+                    termCounts[categoryMaps[r][c]] += header.termCounts[c];
+                }
+                totalSentenceCount += header.totalSentenceCount;
+            }
+            sink.begin(new Header(categories, sentenceCounts, termCounts, totalSentenceCount));
+
+            PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(1, readers.size()),
+                    (a, b) -> readers.get(a).term.compareTo(readers.get(b).term));
+            for (int r = 0; r < readers.size(); r++) {
+                if (readers.get(r).next()) {
+                    queue.add(r);
+                }
+            }
+            // category -> summed count of the current term, and the categories it was seen under
+            int[] mergedCounts = new int[categoryCount];
+            int[] touched = new int[categoryCount];
+            int[] postingCounts = new int[categoryCount];
+            while (!queue.isEmpty()) {
+                String term = readers.get(queue.peek()).term;
+                long firstSeen = Long.MAX_VALUE;
+                int touchedCount = 0;
+                while (!queue.isEmpty() && readers.get(queue.peek()).term.equals(term)) {
+                    int r = queue.poll();
+                    Reader reader = readers.get(r);
+                    firstSeen = Math.min(firstSeen, reader.firstSeen);
+                    for (int i = 0; i < reader.postingCount; i++) {
+                        int c = categoryMaps[r][reader.categories[i]];
+                        if (mergedCounts[c] == 0) {
+                            touched[touchedCount++] = c;
+                        }
+                        mergedCounts[c] += reader.counts[i];
+                    }
+                    if (reader.next()) {
+                        queue.add(r);
+                    }
+                }
+                Arrays.sort(touched, 0, touchedCount);
+                for (int i = 0; i < touchedCount; i++) {
+                    postingCounts[i] = mergedCounts[touched[i]];
+                    mergedCounts[touched[i]] = 0;
+                }
+                sink.accept(term, firstSeen, touched, postingCounts, touchedCount);
+            }
+        } finally {
+            for (Reader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    // merge groups of at most maxFanIn consecutive runs into new runs in the directory, level by level,
+    // until at most maxFanIn remain; the runs of a level are deleted once merged if deleteInputs is set,
+    // and the intermediate runs always are
+    // the groups of a level are merged on the executor, or one after another if it is null
+    static List<File> reduce(List<File> runs, int maxFanIn, File directory, boolean deleteInputs,
+                             ExecutorService executor) throws IOException {
+        assert maxFanIn >= 2;
+
+        List<File> level = runs;
+        boolean ownsLevel = deleteInputs;
+        while (level.size() > maxFanIn) {
+            List<Future<File>> merges = new ArrayList<>();
+            for (int from = 0; from < level.size(); from += maxFanIn) {
+                List<File> group = level.subList(from, Math.min(level.size(), from + maxFanIn));
+                boolean deleteGroup = ownsLevel;
+                Callable<File> task = () -> {
+                    File merged = File.createTempFile("merge-", ".run", directory);
+                    try (Writer writer = new Writer(merged)) {
+                        merge(group, writer);
+                    }
+                    if (deleteGroup) {
+                        for (File run : group) {
+                            run.delete();
+                        }
+                    }
+                    return merged;
+                };
+                FutureTask<File> merge = new FutureTask<>(task);
+                if (executor == null) {
+                    merge.run();
+                } else {
+                    executor.execute(merge);
+                }
+                merges.add(merge);
+            }
+            List<File> nextLevel = new ArrayList<>();
+            for (Future<File> merge : merges) {
+                try {
+                    nextLevel.add(merge.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while merging runs");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            level = nextLevel;
+            ownsLevel = true;
+        }
+        return level;
+    }
+
+    // compile the merge of the runs into the model an in-memory fit over the same examples would publish
+    // the terms arrive sorted, so the rows are put back in order of first appearance at the end
+    static CompiledNaiveBayesModel compile(List<File> runs) throws IOException {
+        ModelBuilder builder = new ModelBuilder();
+        merge(runs, builder);
+        return builder.build();
+    }
+
+    private static class ModelBuilder implements RecordSink {
+        private Header header;
+        private final List<String> terms = new ArrayList<>();
+        private long[] firstSeen = new long[1024];
+        private int[] postingOffsets = new int[1025];
+        private int[] postingCategories = new int[1024];
+        private int[] postingCounts = new int[1024];
+
+        @Override
+        public void begin(Header header) {
+            this.header = header;
+        }
+
+        @Override
+        public void accept(String term, long firstSeen, int[] categories, int[] counts, int postingCount) {
+            int row = terms.size();
+            int postingOffset = postingOffsets[row];
+            if (row == this.firstSeen.length) {
+                this.firstSeen = Arrays.copyOf(this.firstSeen, row * 2);
+                this.postingOffsets = Arrays.copyOf(postingOffsets, row * 2 + 1);
+            }
+            if (postingOffset + postingCount > postingCategories.length) {
+                int capacity = Math.max(postingOffset + postingCount, postingCategories.length * 2);
+                this.postingCategories = Arrays.copyOf(postingCategories, capacity);
+                this.postingCounts = Arrays.copyOf(postingCounts, capacity);
+            }
+            terms.add(term);
+            this.firstSeen[row] = firstSeen;
+            System.arraycopy(categories, 0, postingCategories, postingOffset, postingCount);
+            System.arraycopy(counts, 0, postingCounts, postingOffset, postingCount);
+            postingOffsets[row + 1] = postingOffset + postingCount;
+        }
+
+        // the same arithmetic as NaiveBayesTextClassifier.compile() over the summed counts
+        CompiledNaiveBayesModel build() {
+            int categoryCount = header.categories.size();
+            String[] categories = new String[categoryCount];
+            double[] logPriors = new double[categoryCount];
+            for (int c = 0; c < categoryCount; c++) {
+                categories[c] = header.categories.get(c);
+                logPriors[c] = Math.log(((double) header.sentenceCounts[c]) / header.totalSentenceCount);
+            }
+
+            // rank the sorted rows by first appearance; first-seen positions are distinct, so a sorted copy
+            // and a binary search give every row its rank without boxing
+            int termCount = terms.size();
+            long[] sortedFirstSeen = Arrays.copyOf(firstSeen, termCount);
+            Arrays.sort(sortedFirstSeen);
+            int[] rowByRank = new int[termCount];
+            for (int row = 0; row < termCount; row++) {
+                rowByRank[Arrays.binarySearch(sortedFirstSeen, firstSeen[row])] = row;
+            }
+
+            Vocabulary termRows = new Vocabulary(termCount);
+            int[] offsets = new int[termCount + 1];
+            int postingCount = postingOffsets[termCount];
+            int[] rankedCategories = new int[postingCount];
+            double[] logLikelihoods = new double[postingCount];
+            for (int rank = 0; rank < termCount; rank++) {
+                int row = rowByRank[rank];
+                termRows.intern(terms.get(row));
+                int offset = offsets[rank];
+                for (int i = postingOffsets[row]; i < postingOffsets[row + 1]; i++, offset++) {
+                    int c = postingCategories[i];
+                    rankedCategories[offset] = c;
+                    logLikelihoods[offset] = Math.log(((double) postingCounts[i]) / header.termCounts[c]);
+                }
+                offsets[rank + 1] = offset;
+            }
+            double unseenLogLikelihood = Math.log(1.0 / (termCount + 1));
+            return new CompiledNaiveBayesModel(categories, logPriors, termRows, offsets, rankedCategories,
+                    logLikelihoods, unseenLogLikelihood, header.totalSentenceCount);
+        }
+    }
+}
@@ -1,31 +1,81 @@
 import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+// the sentences are segmented once up front, and every fold is counted once:
+// the full-corpus counts are the sum of the fold counts, and the model of fold i is the full counts
+// minus the counts of fold i, which naive Bayes allows because its counts are additive
+// the folds are then evaluated in parallel
 public class CrossValidator {
-    private TrainTestSplitter trainTestSplitter;
+    private TrainTestSplitter<List<String>> trainTestSplitter;
+    private TermSegmentor termSegmentor;
     private int fold;
 
     public CrossValidator(List<String> sentences, List<String> targets, int fold) {
         assert sentences.size() == targets.size();
-        this.trainTestSplitter = new TrainTestSplitter(sentences, targets, 1.0 / fold);
+        this.termSegmentor = new TermSegmentor();
+        this.trainTestSplitter = new TrainTestSplitter<>(termSegmentor.segmentSentences(sentences), targets, 1.0 / fold);
         this.fold = fold;
     }
 
+    public CrossValidator(List<List<String>> termsList, List<String> targets, TermSegmentor termSegmentor, int fold) {
+        assert termsList.size() == targets.size();
+        this.termSegmentor = termSegmentor;
+        this.trainTestSplitter = new TrainTestSplitter<>(termsList, targets, 1.0 / fold);
+        this.fold = fold;
+    }
+
+    public CrossValidator(TokenizedCorpus corpus, TermSegmentor termSegmentor, int fold) {
+        this(corpus.getTermsList(), corpus.getTargets(), termSegmentor, fold);
+    }
+
+    // the counts of a split, never compiled: only the fold models are
+    private NaiveBayesTextClassifier count(Map.Entry<List<List<String>>, List<String>> split) {
+        NaiveBayesTextClassifier counts = new NaiveBayesTextClassifier(termSegmentor);
+        List<List<String>> termsList = split.getKey();
+        List<String> targets = split.getValue();
+        for (int i = 0; i < termsList.size(); i++) {
+            counts.learnTerms(termsList.get(i), targets.get(i));
+        }
+        return counts;
+    }
+
     // scoreType: {"F1", "Recall", "Precision"}
     public List<List<Double>> crossValidate(String scoreType) {
+        List<NaiveBayesTextClassifier> foldCounts = IntStream.range(0, fold).parallel()
+                .mapToObj(i -> count(trainTestSplitter.testSplit(i)))
+                .collect(Collectors.toList());
+
+        // the sentences after the last fold are never held out, so they only add to the full counts
+        NaiveBayesTextClassifier fullCounts = count(trainTestSplitter.restSplit(fold));
+        for (NaiveBayesTextClassifier counts : foldCounts) {
+            fullCounts.mergeCounts(counts);
+        }
+
+        return IntStream.range(0, fold).parallel().mapToObj(i -> {
+            NaiveBayesTextClassifier classifier = fullCounts.copyCounts();
+            classifier.subtract(foldCounts.get(i));
+
+            Map.Entry<List<List<String>>, List<String>>  testSplit = trainTestSplitter.testSplit(i);
+            List<List<String>> testTermsList = testSplit.getKey();
+            List<String> testTargets = testSplit.getValue();
+            return classifier.scoreSegmented(testTermsList, testTargets, scoreType);
+        }).collect(Collectors.toList());
+    }
+
+    // the model of every fold, trained from scratch on the other folds, for reference
+    List<List<Double>> crossValidateByRetraining(String scoreType) {
         List<List<Double>> validationScores = new ArrayList<>();
 
         for (int i = 0; i < fold; i++) {
-            NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier();
-
-            Map.Entry<List<String>, List<String>>  trainSplit = trainTestSplitter.trainSplit(i);
-            List<String> trainSentences = trainSplit.getKey();
-            List<String> trainTargets = trainSplit.getValue();
-            classifier.fit(trainSentences, trainTargets);
+            Map.Entry<List<List<String>>, List<String>> trainSplit = trainTestSplitter.trainSplit(i);
+            NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(termSegmentor);
+            classifier.fitSegmented(trainSplit.getKey(), trainSplit.getValue());
 
-            Map.Entry<List<String>, List<String>>  testSplit = trainTestSplitter.testSplit(i);
-            List<String> testSentences = testSplit.getKey();
+            Map.Entry<List<List<String>>, List<String>>  testSplit = trainTestSplitter.testSplit(i);
+            List<List<String>> testTermsList = testSplit.getKey();
             List<String> testTargets = testSplit.getValue();
-            List<Double> scores = classifier.score(testSentences, testTargets, scoreType);
+            List<Double> scores = classifier.scoreSegmented(testTermsList, testTargets, scoreType);
 
             validationScores.add(scores);
         }
@@ -33,4 +83,36 @@ public class CrossValidator {
         return validationScores;
     }
 
+    // unit test
+    public static void main(String[] args) {
+        Map.Entry<List<List<String>>, List<String>> corpus =
+                new SyntheticCorpusGenerator(9, 20000, 40).generateSegmented(100000, 1, 6);
+        TermSegmentor termSegmentor = new TermSegmentor(new HashSet<>());
+        CrossValidator crossValidator = new CrossValidator(corpus.getKey(), corpus.getValue(), termSegmentor, 10);
+
+        // warm up both paths before timing; a single round leaves them both mostly interpreted
+        for (int i = 0; i < 3; i++) {
+            crossValidator.crossValidate("F1");
+            crossValidator.crossValidateByRetraining("F1");
+        }
+        long start = System.nanoTime();
+        List<List<Double>> bySubtraction = crossValidator.crossValidate("F1");
+        long subtractionTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        List<List<Double>> byRetraining = crossValidator.crossValidateByRetraining("F1");
+        long retrainingTime = System.nanoTime() - start;
+
+        System.out.println(String.format("10-fold: %.0f ms by subtraction, %.0f ms by retraining",
+                subtractionTime / 1e6, retrainingTime / 1e6));
+        // the categories of the two may come in different orders, so the scores of each fold are compared sorted
+        boolean matches = true;
+        for (int i = 0; i < 10; i++) {
+            List<Double> subtracted = new ArrayList<>(bySubtraction.get(i));
+            List<Double> retrained = new ArrayList<>(byRetraining.get(i));
+            Collections.sort(subtracted);
+            Collections.sort(retrained);
+            matches &= subtracted.equals(retrained);
+        }
+        System.out.println((matches ? "√\t" : "X\t") + "fold scores by subtraction match fold scores by retraining");
+    }
 }
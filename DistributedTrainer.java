@@ -0,0 +1,162 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Overview:
+// trains one model on many processes: each worker segments and counts one shard of a data file
+// and writes its partial counts as a CountRunFile, and a merge combines any number of partial files
+// into the snapshot, as a tree of merges of at most fanIn files each, the merges of a level in parallel
+// the shards are consecutive byte ranges of the file and a shard owns the lines starting in it,
+// so merging the partial files in shard order gives the snapshot of a single-process fit, byte for byte
+// a worker counts within a memory budget like OutOfCoreTrainer, so a shard may be larger than its heap
+// e.g. on each of 16 workers: "java DistributedTrainer worker data.txt 3 16 part-3.run"
+//      and then anywhere:      "java DistributedTrainer merge model.bin 16 part-0.run ... part-15.run"
+public class DistributedTrainer {
+    private static final long DEFAULT_BUDGET_BYTES = 512L << 20;
+    // runs a worker merges at once before writing its partial file
+    private static final int WORKER_FAN_IN = 64;
+    // the first-seen positions of shard s start at s << SHARD_POSITION_BITS, so that they order across shards
+    private static final int SHARD_POSITION_BITS = 40;
+
+    private DistributedTrainer() {
+    }
+
+    // count the examples of the shard into the partial counts file; the spilled runs go next to it
+    public static void trainShard(String dataPath, int shard, int shardCount, File partialCounts,
+                                  TermSegmentor termSegmentor, long memoryBudgetBytes) throws IOException {
+        assert 0 <= shard && shard < shardCount && shardCount <= 1 << (63 - SHARD_POSITION_BITS);
+
+        File spillDirectory = partialCounts.getAbsoluteFile().getParentFile();
+        try (CorpusReader corpusReader = new CorpusReader(dataPath);
+             OutOfCoreTrainer trainer = new OutOfCoreTrainer(spillDirectory, memoryBudgetBytes, WORKER_FAN_IN,
+                     (long) shard << SHARD_POSITION_BITS)) {
+            long from = corpusReader.getFileSize() * shard / shardCount;
+            long to = corpusReader.getFileSize() * (shard + 1) / shardCount;
+            trainer.learnAll(corpusReader.stream(from, to).parallel(), termSegmentor);
+            trainer.finish(partialCounts);
+        }
+    }
+
+    // merge the partial counts files, given in shard order, into the model; fanIn files are merged at once,
+    // and the intermediate files are written to the work directory and deleted once merged
+    public static CompiledNaiveBayesModel merge(List<File> partialCounts, int fanIn, File workDirectory) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<File> lastLevel = CountRunFile.reduce(partialCounts, fanIn, workDirectory, false, executor);
+            try {
+                return CountRunFile.compile(lastLevel);
+            } finally {
+                if (lastLevel != partialCounts) {
+                    for (File intermediate : lastLevel) {
+                        intermediate.delete();
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static int run(List<String> command) throws IOException, InterruptedException {
+        return new ProcessBuilder(command).inheritIO().start().waitFor();
+    }
+
+    private static List<String> javaCommand(String... args) {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-ea", "-Dfile.encoding=UTF-8", "-cp", System.getProperty("java.class.path"), "DistributedTrainer"));
+        command.addAll(Arrays.asList(args));
+        return command;
+    }
+
+    // worker <data> <shard> <shards> <partial> [tokenizer] [budget MB]
+    // merge <snapshot> <fan-in> <partial>...
+    // or the unit test without arguments
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length >= 5 && args[0].equals("worker")) {
+            int shard = Integer.parseInt(args[2]);
+            int shardCount = Integer.parseInt(args[3]);
+            Tokenizer tokenizer = args.length > 5 ? TokenizerEngine.valueOf(args[5]) : TokenizerEngine.NLP_ANALYSIS;
+            long budgetBytes = args.length > 6 ? Long.parseLong(args[6]) << 20 : DEFAULT_BUDGET_BYTES;
+            long start = System.nanoTime();
+            File partialCounts = new File(args[4]);
+            trainShard(args[1], shard, shardCount, partialCounts, new TermSegmentor(tokenizer, null), budgetBytes);
+            System.out.println(String.format("shard %d/%d: %.1f MB of partial counts in %.1f s", shard, shardCount,
+                    partialCounts.length() / 1048576.0, (System.nanoTime() - start) / 1e9));
+            return;
+        }
+        if (args.length >= 4 && args[0].equals("merge")) {
+            List<File> partialCounts = new ArrayList<>();
+            for (int i = 3; i < args.length; i++) {
+                partialCounts.add(new File(args[i]));
+            }
+            long start = System.nanoTime();
+            File snapshot = new File(args[1]);
+            CompiledNaiveBayesModel model = merge(partialCounts, Integer.parseInt(args[2]),
+                    snapshot.getAbsoluteFile().getParentFile());
+            MappedNaiveBayesModel.write(model, snapshot.getPath());
+            System.out.println(String.format("%d partial files: %d sentences, %d terms, %d categories in %.1f s",
+                    partialCounts.size(), model.getTotalSentenceCount(), model.getTermCount(), model.getCategoryCount(),
+                    (System.nanoTime() - start) / 1e9));
+            return;
+        }
+
+        // a data file with lines of every length, split into more shards than the merge fan-in
+        File directory = java.nio.file.Files.createTempDirectory("distributed").toFile();
+        File dataFile = new File(directory, "data.txt");
+        Map.Entry<List<String>, List<String>> examples = new SyntheticCorpusGenerator(29, 20000, 30).generate(30000, 1, 12);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < examples.getKey().size(); i++) {
+            content.append(examples.getKey().get(i)).append(" ||| ").append(examples.getValue().get(i)).append("\n");
+        }
+        java.nio.file.Files.write(dataFile.toPath(), content.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+
+        // one JVM per shard, all at once, each spilling within 1 MB; then a merge JVM with a fan-in of 2
+        int shardCount = 5;
+        List<Process> workers = new ArrayList<>();
+        List<String> mergeArgs = new ArrayList<>(Arrays.asList("merge", new File(directory, "merged.bin").getPath(), "2"));
+        for (int shard = 0; shard < shardCount; shard++) {
+            String partial = new File(directory, "part-" + shard + ".run").getPath();
+            workers.add(new ProcessBuilder(javaCommand("worker", dataFile.getPath(), String.valueOf(shard),
+                    String.valueOf(shardCount), partial, "CHAR_NGRAM", "1")).inheritIO().start());
+            mergeArgs.add(partial);
+        }
+        int failedWorkers = 0;
+        for (Process worker : workers) {
+            if (worker.waitFor() != 0) {
+                failedWorkers++;
+            }
+        }
+        int mergeExit = run(javaCommand(mergeArgs.toArray(new String[0])));
+        System.out.println((failedWorkers == 0 && mergeExit == 0 ? "√\t" : "X\t") + shardCount
+                + " worker processes and a merge process, " + failedWorkers + " failed, merge exit code " + mergeExit);
+
+        // a single-process fit over the whole file with the same segmentor
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(new TermSegmentor(TokenizerEngine.CHAR_NGRAM, null));
+        try (CorpusReader corpusReader = new CorpusReader(dataFile.getPath())) {
+            classifier.fit(corpusReader.stream().parallel());
+        }
+        File expected = new File(directory, "single.bin");
+        classifier.save(expected.getPath());
+        File merged = new File(directory, "merged.bin");
+        boolean identical = merged.isFile() && Arrays.equals(java.nio.file.Files.readAllBytes(expected.toPath()),
+                java.nio.file.Files.readAllBytes(merged.toPath()));
+        System.out.println((identical ? "√\t" : "X\t") + "merged snapshot identical to a single-process fit, "
+                + merged.length() + " bytes");
+
+        // nothing but the inputs and the two snapshots is left behind
+        Set<String> expectedFiles = new HashSet<>(Arrays.asList("data.txt", "merged.bin", "single.bin"));
+        for (int shard = 0; shard < shardCount; shard++) {
+            expectedFiles.add("part-" + shard + ".run");
+        }
+        String[] files = directory.list();
+        boolean clean = files != null && new HashSet<>(Arrays.asList(files)).equals(expectedFiles);
+        System.out.println((clean ? "√\t" : "X\t") + "no spilled or intermediate runs left behind");
+        for (File file : Objects.requireNonNull(directory.listFiles())) {
+            file.delete();
+        }
+        directory.delete();
+    }
+}
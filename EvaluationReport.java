@@ -0,0 +1,184 @@
+import java.util.*;
+
+// Overview:
+// every metric of one evaluation pass, computed from a dense confusion matrix:
+// per-category precision, recall and F1, their macro and micro averages, accuracy,
+// and where the time went: segmenting the sentences versus scoring them against the categories
+// a metric that divides zero by zero (e.g. the precision of a category never predicted) is NaN,
+// and the macro averages are taken over the categories where the metric is defined
+public class EvaluationReport {
+    // category index -> name; the model's categories first, then test targets the model has never seen
+    private final List<String> categories;
+    // true category index -> predicted category index -> #sentences
+    private final int[][] confusionMatrix;
+    private final int sentenceCount;
+    private final long segmentationNanos;
+    private final long scoringNanos;
+    private final long elapsedNanos;
+
+    private final double[] precisions;
+    private final double[] recalls;
+    private final double[] F1s;
+    private final int correctCount;
+
+    EvaluationReport(List<String> categories, int[][] confusionMatrix,
+                     long segmentationNanos, long scoringNanos, long elapsedNanos) {
+        this.categories = categories;
+        this.confusionMatrix = confusionMatrix;
+        this.segmentationNanos = segmentationNanos;
+        this.scoringNanos = scoringNanos;
+        this.elapsedNanos = elapsedNanos;
+
+        int categoryCount = categories.size();
+        long[] predictedCounts = new long[categoryCount];
+        long[] trueCounts = new long[categoryCount];
+        int sentences = 0;
+        int correct = 0;
+        for (int t = 0; t < categoryCount; t++) {
+            for (int p = 0; p < categoryCount; p++) {
+                int count = confusionMatrix[t][p];
+                trueCounts[t] += count;
+                predictedCounts[p] += count;
+                sentences += count;
+            }
+            correct += confusionMatrix[t][t];
+        }
+        this.sentenceCount = sentences;
+        this.correctCount = correct;
+
+        this.precisions = new double[categoryCount];
+        this.recalls = new double[categoryCount];
+        this.F1s = new double[categoryCount];
+        for (int c = 0; c < categoryCount; c++) {
+            int truePositive = confusionMatrix[c][c];
+            double precision = ((double) truePositive) / predictedCounts[c];
+            double recall = ((double) truePositive) / trueCounts[c];
+            precisions[c] = precision;
+            recalls[c] = recall;
+            F1s[c] = 2 * recall * precision / (recall + precision);
+        }
+    }
+
+    private static List<Double> asList(double[] values) {
+        List<Double> list = new ArrayList<>(values.length);
+        for (double value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static double macroAverage(double[] values) {
+        double sum = 0;
+        int defined = 0;
+        for (double value : values) {
+            if (!Double.isNaN(value)) {
+                sum += value;
+                defined++;
+            }
+        }
+        return defined == 0 ? Double.NaN : sum / defined;
+    }
+
+    public List<String> getCategories() {
+        return Collections.unmodifiableList(categories);
+    }
+
+    // true category index -> predicted category index -> #sentences, indexed like getCategories()
+    public int getConfusionCount(int trueCategory, int predictedCategory) {
+        return confusionMatrix[trueCategory][predictedCategory];
+    }
+
+    // scoreType: {"F1", "Recall", "Precision"}, per category in the order of getCategories()
+    public List<Double> getScores(String scoreType) {
+        if (scoreType.equalsIgnoreCase("F1") || scoreType.equalsIgnoreCase("F1-Score")) {
+            return getF1s();
+        } else if (scoreType.equalsIgnoreCase("Recall")) {
+            return getRecalls();
+        } else if (scoreType.equalsIgnoreCase("Precision")) {
+            return getPrecisions();
+        } else {
+            System.out.println("Invalid score type. Returning precision by default.");
+            return getPrecisions();
+        }
+    }
+
+    public List<Double> getPrecisions() {
+        return asList(precisions);
+    }
+
+    public List<Double> getRecalls() {
+        return asList(recalls);
+    }
+
+    public List<Double> getF1s() {
+        return asList(F1s);
+    }
+
+    public double getMacroPrecision() {
+        return macroAverage(precisions);
+    }
+
+    public double getMacroRecall() {
+        return macroAverage(recalls);
+    }
+
+    public double getMacroF1() {
+        return macroAverage(F1s);
+    }
+
+    // every sentence gets exactly one prediction, so micro-averaged precision, recall and F1
+    // all equal the accuracy
+    public double getMicroPrecision() {
+        return getAccuracy();
+    }
+
+    public double getMicroRecall() {
+        return getAccuracy();
+    }
+
+    public double getMicroF1() {
+        return getAccuracy();
+    }
+
+    public double getAccuracy() {
+        return ((double) correctCount) / sentenceCount;
+    }
+
+    public int getSentenceCount() {
+        return sentenceCount;
+    }
+
+    // summed over all threads; zero when the sentences were already segmented
+    public long getSegmentationNanos() {
+        return segmentationNanos;
+    }
+
+    // summed over all threads
+    public long getScoringNanos() {
+        return scoringNanos;
+    }
+
+    // wall-clock time of the whole pass
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public double getSentencesPerSecond() {
+        return sentenceCount / (elapsedNanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("category\tprecision\trecall\tF1\n");
+        for (int c = 0; c < categories.size(); c++) {
+            builder.append(String.format("%s\t%.2f\t%.2f\t%.2f\n", categories.get(c), precisions[c], recalls[c], F1s[c]));
+        }
+        builder.append(String.format("macro\t%.4f\t%.4f\t%.4f\n", getMacroPrecision(), getMacroRecall(), getMacroF1()));
+        builder.append(String.format("micro\t%.4f\t%.4f\t%.4f\n", getMicroPrecision(), getMicroRecall(), getMicroF1()));
+        builder.append(String.format("accuracy: %.4f over %d sentences\n", getAccuracy(), sentenceCount));
+        builder.append(String.format("segmentation: %.1f ms\tscoring: %.1f ms\tthroughput: %.0f sentences/s",
+                segmentationNanos / 1e6, scoringNanos / 1e6, getSentencesPerSecond()));
+        return builder.toString();
+    }
+}
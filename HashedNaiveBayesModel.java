@@ -0,0 +1,256 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// Overview:
+// a compiled naive Bayes model over hashed features: every term is hashed into one of a fixed number of buckets,
+// and the log-likelihoods are kept per (bucket, category), so no term strings are stored
+// and the model takes #buckets * #categories doubles however many distinct terms training and queries bring
+// terms sharing a bucket share their counts, which costs accuracy as the buckets fill up
+//
+// Snapshot layout, big-endian, version 1:
+//   header         magic "NBTH", version, #categories C, #buckets B,
+//                  total sentence count (long), unseen log-likelihood (double)
+//   categories     C times: #bytes, UTF-8 bytes
+//   logPriors      C doubles
+//   likelihoods    B * C doubles, bucket-major
+public class HashedNaiveBayesModel implements NaiveBayesModel {
+    private static final int MAGIC = 0x4E425448;
+    private static final int VERSION = 1;
+
+    private final String[] categories;
+    private final double[] logPriors;
+    private final int bucketCount;
+    // bucket * #categories + category index -> log-likelihood of the bucket's terms given the category
+    private final double[] bucketLogLikelihoods;
+    private final double unseenLogLikelihood;
+    private final long totalSentenceCount;
+
+    HashedNaiveBayesModel(String[] categories, double[] logPriors, int bucketCount,
+                          double[] bucketLogLikelihoods, double unseenLogLikelihood, long totalSentenceCount) {
+        assert categories.length == logPriors.length;
+        assert bucketLogLikelihoods.length == (long) bucketCount * categories.length;
+
+        this.categories = categories;
+        this.logPriors = logPriors;
+        this.bucketCount = bucketCount;
+        this.bucketLogLikelihoods = bucketLogLikelihoods;
+        this.unseenLogLikelihood = unseenLogLikelihood;
+        this.totalSentenceCount = totalSentenceCount;
+    }
+
+    // the bucket of a term; String.hashCode() is fixed by the language, so buckets agree across JVMs
+    static int bucketOf(String term, int bucketCount) {
+        return (Vocabulary.hashOf(term) & Integer.MAX_VALUE) % bucketCount;
+    }
+
+    @Override
+    public void score(List<String> terms, double[] scores) {
+        assert scores.length >= categories.length;
+
+        int categoryCount = categories.length;
+        System.arraycopy(logPriors, 0, scores, 0, categoryCount);
+        for (String term : terms) {
+            int offset = bucketOf(term, bucketCount) * categoryCount;
+            for (int c = 0; c < categoryCount; c++) {
+                scores[c] += bucketLogLikelihoods[offset + c];
+            }
+        }
+    }
+
+    @Override
+    public int getCategoryCount() {
+        return categories.length;
+    }
+
+    @Override
+    public String getCategory(int index) {
+        return categories[index];
+    }
+
+    // every bucket has a row, so this is #buckets
+    @Override
+    public int getTermCount() {
+        return bucketCount;
+    }
+
+    @Override
+    public long estimateBytes() {
+        return 8L * bucketLogLikelihoods.length + 8L * logPriors.length;
+    }
+
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    public long getTotalSentenceCount() {
+        return totalSentenceCount;
+    }
+
+    double getUnseenLogLikelihood() {
+        return unseenLogLikelihood;
+    }
+
+    // the snapshot is written next to the file and moved over it, like MappedNaiveBayesModel.write
+    public void write(String path) throws IOException {
+        File file = new File(path).getAbsoluteFile();
+        File temporary = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            writeTo(temporary);
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temporary.delete();
+        }
+    }
+
+    private void writeTo(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(categories.length);
+            out.writeInt(bucketCount);
+            out.writeLong(totalSentenceCount);
+            out.writeDouble(unseenLogLikelihood);
+            for (String category : categories) {
+                byte[] bytes = category.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            for (double logPrior : logPriors) {
+                out.writeDouble(logPrior);
+            }
+            for (double logLikelihood : bucketLogLikelihoods) {
+                out.writeDouble(logLikelihood);
+            }
+        }
+    }
+
+    // true if the file starts like a snapshot written by write()
+    public static boolean isSnapshot(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(path))) {
+            return in.available() >= 4 && in.readInt() == MAGIC;
+        }
+    }
+
+    // read a snapshot written by write(); its size is fixed by #buckets, so it is simply read onto the heap
+    public static HashedNaiveBayesModel read(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("hashed snapshot larger than 2 GB");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 32 || buffer.getInt() != MAGIC) {
+                throw new IOException("not a hashed naive Bayes model snapshot");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported snapshot version " + version);
+            }
+            int categoryCount = buffer.getInt();
+            int bucketCount = buffer.getInt();
+            if (categoryCount < 0 || bucketCount <= 0 || (long) bucketCount * categoryCount > Integer.MAX_VALUE) {
+                throw new IOException("corrupt hashed snapshot: " + bucketCount + " buckets by " + categoryCount + " categories");
+            }
+            long totalSentenceCount = buffer.getLong();
+            double unseenLogLikelihood = buffer.getDouble();
+            String[] categories = new String[categoryCount];
+            for (int c = 0; c < categoryCount; c++) {
+                int length = buffer.remaining() < 4 ? -1 : buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    throw new IOException("truncated hashed snapshot: category " + c + " runs past the end of the file");
+                }
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                categories[c] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            // a truncated or overwritten snapshot leaves the doubles short of the header's counts
+            if (buffer.remaining() != 8L * categoryCount * (bucketCount + 1)) {
+                throw new IOException("truncated hashed snapshot: " + buffer.remaining() + " bytes of priors and likelihoods, "
+                        + 8L * categoryCount * (bucketCount + 1) + " expected");
+            }
+            double[] logPriors = new double[categoryCount];
+            buffer.asDoubleBuffer().get(logPriors);
+            buffer.position(buffer.position() + 8 * categoryCount);
+            double[] bucketLogLikelihoods = new double[bucketCount * categoryCount];
+            buffer.asDoubleBuffer().get(bucketLogLikelihoods);
+            return new HashedNaiveBayesModel(categories, logPriors, bucketCount, bucketLogLikelihoods,
+                    unseenLogLikelihood, totalSentenceCount);
+        }
+    }
+
+    // unit test
+    public static void main(String[] args) throws IOException {
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(17, 20000, 30);
+        Map.Entry<List<List<String>>, List<String>> corpus = generator.generateSegmented(30000, 2, 8);
+        Map.Entry<List<List<String>>, List<String>> testSet = generator.generateSegmented(3000, 1, 5);
+        TermSegmentor termSegmentor = new TermSegmentor(new HashSet<>());
+
+        NaiveBayesTextClassifier exact = new NaiveBayesTextClassifier(termSegmentor);
+        exact.fitSegmented(corpus.getKey(), corpus.getValue());
+        NaiveBayesTextClassifier hashed = new NaiveBayesTextClassifier(termSegmentor, 1 << 16);
+        hashed.fitSegmented(corpus.getKey(), corpus.getValue());
+        double exactAccuracy = exact.evaluateSegmented(testSet.getKey(), testSet.getValue()).getAccuracy();
+        double hashedAccuracy = hashed.evaluateSegmented(testSet.getKey(), testSet.getValue()).getAccuracy();
+        System.out.println((Math.abs(exactAccuracy - hashedAccuracy) < 0.02 ? "√\t" : "X\t")
+                + String.format("accuracy %.4f hashed into 65536 buckets, %.4f exact", hashedAccuracy, exactAccuracy));
+
+        // the model size depends on #buckets and #categories only
+        NaiveBayesTextClassifier larger = new NaiveBayesTextClassifier(termSegmentor, 1 << 16);
+        List<List<String>> moreTerms = new ArrayList<>(corpus.getKey());
+        for (int i = 0; i < moreTerms.size(); i++) {
+            moreTerms.set(i, Arrays.asList("新词" + i, "新词" + (i + 1)));
+        }
+        larger.fitSegmented(moreTerms, corpus.getValue());
+        System.out.println((larger.getModel().estimateBytes() == hashed.getModel().estimateBytes() ? "√\t" : "X\t")
+                + hashed.getModel().estimateBytes() + " bytes whatever the vocabulary");
+
+        // snapshots round-trip, and the loaded classifier is in hashed mode
+        java.io.File file = java.io.File.createTempFile("hashed", ".model");
+        file.deleteOnExit();
+        hashed.save(file.getPath());
+        NaiveBayesTextClassifier loaded = NaiveBayesTextClassifier.load(file.getPath(), termSegmentor);
+        int mismatches = 0;
+        for (List<String> terms : testSet.getKey()) {
+            if (!loaded.predictSegmented(terms).equals(hashed.predictSegmented(terms))) {
+                mismatches++;
+            }
+        }
+        System.out.println((mismatches == 0 && loaded.getHashBuckets() == 1 << 16 ? "√\t" : "X\t")
+                + "snapshot round trip, " + mismatches + " mismatches");
+
+        // a truncated snapshot is refused instead of read short
+        byte[] bytes = java.nio.file.Files.readAllBytes(file.toPath());
+        java.nio.file.Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+        boolean refused = false;
+        try {
+            read(file.getPath());
+        } catch (IOException e) {
+            refused = true;
+        }
+        System.out.println((refused ? "√\t" : "X\t") + "truncated hashed snapshot refused");
+
+        // parallel fit and merge work on buckets as they do on terms
+        List<String> sentences = new ArrayList<>();
+        for (List<String> terms : corpus.getKey()) {
+            sentences.add(String.join(" ", terms));
+        }
+        TermSegmentor spaceSegmentor = new TermSegmentor(new HashSet<>(Collections.singletonList(" ")), TokenizerEngine.CHAR_NGRAM, null);
+        NaiveBayesTextClassifier sequential = new NaiveBayesTextClassifier(spaceSegmentor, 4096);
+        sequential.fit(sentences, corpus.getValue());
+        NaiveBayesTextClassifier parallel = new NaiveBayesTextClassifier(spaceSegmentor, 4096);
+        parallel.fit(sentences, corpus.getValue(), new java.util.concurrent.ForkJoinPool(4));
+        System.out.println((parallel.hasSameCountsAs(sequential) ? "√\t" : "X\t") + "parallel hashed fit matches sequential fit");
+    }
+}
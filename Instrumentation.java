@@ -0,0 +1,44 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+// Overview:
+// the switch for the hot-path metrics of TermSegmentor and NaiveBayesTextClassifier, and their JMX registration
+// recording is on unless the JVM is started with -Dnaivebayes.instrumentation=false;
+// ENABLED is a static final constant, so when it is off the JIT drops the timing and counting code entirely
+public final class Instrumentation {
+    public static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("naivebayes.instrumentation"));
+
+    private static final String DOMAIN = "naivebayes";
+
+    private Instrumentation() {
+    }
+
+    // System.nanoTime() if recording is on, 0 otherwise
+    static long startNanos() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    static ObjectName objectNameOf(String type, String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+    }
+
+    // register the MBean with the platform MBean server, replacing one registered under the same name
+    static void register(String type, String name, Object mbean) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = objectNameOf(type, name);
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        server.registerMBean(mbean, objectName);
+    }
+
+    static void unregister(String type, String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = objectNameOf(type, name);
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+    }
+}
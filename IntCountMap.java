@@ -0,0 +1,128 @@
+import java.util.Arrays;
+
+// Overview:
+// a map from non-negative int keys to int counts,
+// stored in two parallel primitive arrays with open addressing (no boxing, no entry objects)
+public class IntCountMap {
+    private static final int EMPTY = -1;
+
+    // slot -> key, or EMPTY; the length is a power of two
+    private int[] keys;
+    // slot -> count of the key in the same slot
+    private int[] counts;
+    private int size;
+
+    public IntCountMap() {
+        this(8);
+    }
+
+    public IntCountMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        this.keys = new int[capacity];
+        this.counts = new int[capacity];
+        Arrays.fill(this.keys, EMPTY);
+        this.size = 0;
+    }
+
+    private static int slotOf(int key, int mask) {
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    public int get(int key) {
+        int mask = keys.length - 1;
+        for (int slot = slotOf(key, mask); ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return counts[slot];
+            }
+            if (keys[slot] == EMPTY) {
+                return 0;
+            }
+        }
+    }
+
+    public boolean containsKey(int key) {
+        int mask = keys.length - 1;
+        for (int slot = slotOf(key, mask); ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return true;
+            }
+            if (keys[slot] == EMPTY) {
+                return false;
+            }
+        }
+    }
+
+    // add delta to the count of the key and return the new count
+    public int add(int key, int delta) {
+        assert key >= 0;
+        int mask = keys.length - 1;
+        int slot = slotOf(key, mask);
+        while (keys[slot] != key) {
+            if (keys[slot] == EMPTY) {
+                keys[slot] = key;
+                counts[slot] = delta;
+                size++;
+                if (size * 2 > keys.length) {
+                    rehash(keys.length * 2);
+                }
+                return delta;
+            }
+            slot = (slot + 1) & mask;
+        }
+        counts[slot] += delta;
+        return counts[slot];
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = this.keys;
+        int[] oldCounts = this.counts;
+        this.keys = new int[capacity];
+        this.counts = new int[capacity];
+        Arrays.fill(this.keys, EMPTY);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY) {
+                continue;
+            }
+            int slot = slotOf(oldKeys[i], mask);
+            while (keys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            counts[slot] = oldCounts[i];
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // slots are exposed so that callers can walk the entries without an iterator object:
+    // for (int slot = 0; slot < map.capacity(); slot++) if (map.keyAt(slot) >= 0) ...
+    public int capacity() {
+        return keys.length;
+    }
+
+    // the key stored in the slot, or a negative value if the slot is empty
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public int countAt(int slot) {
+        return counts[slot];
+    }
+
+    public IntCountMap copy() {
+        IntCountMap copy = new IntCountMap(4);
+        copy.keys = this.keys.clone();
+        copy.counts = this.counts.clone();
+        copy.size = this.size;
+        return copy;
+    }
+
+    // approximate heap footprint in bytes
+    public long estimateBytes() {
+        return 8L * keys.length;
+    }
+}
@@ -0,0 +1,162 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Overview:
+// a concurrent histogram of latencies in nanoseconds, recorded without allocating or locking
+// buckets are log-linear: each power of two is split into SUB_BUCKETS equal buckets,
+// so a percentile read from the histogram is within 1 / SUB_BUCKETS of the recorded value
+// latencies below SUB_BUCKETS nanoseconds get one bucket each
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // enough buckets for any non-negative long
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        // the position of the highest bit selects the power of two, the next bits select the sub-bucket
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+        int subBucket = (int) (nanos >>> exponent) & (SUB_BUCKETS - 1);
+        return (exponent + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // the largest latency that falls into the bucket
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << exponent) - 1;
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketOf(nanos));
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            counts.set(bucket, 0);
+        }
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    // a copy of the histogram at one point in time; recordings that race with it may be partly included
+    public Snapshot snapshot() {
+        long[] bucketCounts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            bucketCounts[bucket] = counts.get(bucket);
+            count += bucketCounts[bucket];
+        }
+        return new Snapshot(bucketCounts, count, totalNanos.get(), maxNanos.get());
+    }
+
+    // the summary of a histogram, in microseconds
+    // its getters make it an open type, so JMX clients show it as composite data
+    public static class Snapshot {
+        private final long count;
+        private final double meanMicros;
+        private final double p50Micros;
+        private final double p90Micros;
+        private final double p99Micros;
+        private final double p999Micros;
+        private final double maxMicros;
+
+        private Snapshot(long[] bucketCounts, long count, long totalNanos, long maxNanos) {
+            this.count = count;
+            this.meanMicros = count == 0 ? 0 : totalNanos / 1e3 / count;
+            this.p50Micros = percentile(bucketCounts, count, maxNanos, 0.5);
+            this.p90Micros = percentile(bucketCounts, count, maxNanos, 0.9);
+            this.p99Micros = percentile(bucketCounts, count, maxNanos, 0.99);
+            this.p999Micros = percentile(bucketCounts, count, maxNanos, 0.999);
+            this.maxMicros = maxNanos / 1e3;
+        }
+
+        private static double percentile(long[] bucketCounts, long count, long maxNanos, double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int bucket = 0; bucket < bucketCounts.length; bucket++) {
+                seen += bucketCounts[bucket];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(bucket), maxNanos) / 1e3;
+                }
+            }
+            return maxNanos / 1e3;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMicros() {
+            return meanMicros;
+        }
+
+        public double getP50Micros() {
+            return p50Micros;
+        }
+
+        public double getP90Micros() {
+            return p90Micros;
+        }
+
+        public double getP99Micros() {
+            return p99Micros;
+        }
+
+        public double getP999Micros() {
+            return p999Micros;
+        }
+
+        public double getMaxMicros() {
+            return maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count: %d\tmean: %.1f us\tp50: %.1f us\tp90: %.1f us\tp99: %.1f us\tmax: %.1f us",
+                    count, meanMicros, p50Micros, p90Micros, p99Micros, maxMicros);
+        }
+    }
+
+    // unit test
+    public static void main(String[] args) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+        Snapshot snapshot = histogram.snapshot();
+        System.out.println(snapshot);
+        boolean accurate = Math.abs(snapshot.getP50Micros() - 500) <= 500.0 / SUB_BUCKETS
+                && Math.abs(snapshot.getP99Micros() - 990) <= 990.0 / SUB_BUCKETS
+                && snapshot.getMaxMicros() == 1000 && snapshot.getCount() == 1000;
+        System.out.println((accurate ? "√\t" : "X\t") + "percentiles within 1/" + SUB_BUCKETS + " of the recorded values");
+
+        boolean bounded = true;
+        for (long nanos = 0; nanos < 1 << 20; nanos = nanos * 3 / 2 + 1) {
+            int bucket = bucketOf(nanos);
+            bounded &= upperBoundOf(bucket) >= nanos && (bucket == 0 || upperBoundOf(bucket - 1) < nanos);
+        }
+        bounded &= bucketOf(Long.MAX_VALUE) < BUCKET_COUNT;
+        System.out.println((bounded ? "√\t" : "X\t") + "every latency falls into the bucket bounding it");
+    }
+}
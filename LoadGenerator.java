@@ -0,0 +1,149 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Overview:
+// a closed-loop load generator for ClassificationServer: every client thread sends its next request
+// as soon as the previous one is answered, cycling through the given sentences
+// latencies go into a LatencyHistogram, so p50 and p99 come with the throughput
+// e.g. "java LoadGenerator http://localhost:8080 16 1000" sends 1000 requests from each of 16 clients
+public class LoadGenerator {
+    private LoadGenerator() {
+    }
+
+    public static class Result {
+        private final LatencyHistogram.Snapshot latency;
+        private final long requests;
+        private final long failures;
+        private final double seconds;
+
+        private Result(LatencyHistogram.Snapshot latency, long requests, long failures, double seconds) {
+            this.latency = latency;
+            this.requests = requests;
+            this.failures = failures;
+            this.seconds = seconds;
+        }
+
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public double getQps() {
+            return requests / seconds;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests: %d\tfailures: %d\tQPS: %.0f\tp50: %.1f us\tp99: %.1f us",
+                    requests, failures, getQps(), latency.getP50Micros(), latency.getP99Micros());
+        }
+    }
+
+    // send requestsPerClient requests from each of the clients, to /classify if k is 0 and to /topk otherwise
+    public static Result run(String baseUrl, List<String> sentences, int clients, int requestsPerClient, int k) {
+        assert !sentences.isEmpty() && clients > 0;
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        AtomicLong failures = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < clients; t++) {
+            int client = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < requestsPerClient; i++) {
+                    String sentence = sentences.get((client * requestsPerClient + i) % sentences.size());
+                    String url = baseUrl + (k == 0 ? "/classify?" : "/topk?k=" + k + "&") + "text=" + encode(sentence);
+                    long start = System.nanoTime();
+                    try {
+                        if (status(url, "GET") != 200) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                    histogram.record(System.nanoTime() - start);
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return new Result(histogram.snapshot(), (long) clients * requestsPerClient, failures.get(), seconds);
+    }
+
+    static String encode(String text) {
+        try {
+            return URLEncoder.encode(text, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // the body of a 200 answer, or the status and the body of any other
+    static String get(String url) throws IOException {
+        return request(url, "GET");
+    }
+
+    static String post(String url) throws IOException {
+        return request(url, "POST");
+    }
+
+    private static String request(String url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        int status = connection.getResponseCode();
+        String body = readFully(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        return status == 200 ? body : status + " " + body;
+    }
+
+    // the status of the answer, reading the body through so that the connection is kept alive
+    private static int status(String url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        int status = connection.getResponseCode();
+        readFully(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        return status;
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try (InputStream stream = in) {
+            for (int read; (read = stream.read(buffer)) > 0; ) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) {
+        String baseUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int requestsPerClient = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int k = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        List<String> sentences = new SyntheticCorpusGenerator(20170701L, 100000, 100).generate(10000, 1, 6).getKey();
+        System.out.println(run(baseUrl, sentences, clients, requestsPerClient, k));
+    }
+}
@@ -1,33 +1,30 @@
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 // top-level unit, read the data given a path and use it for training & testing
 public class Main {
-    private static String ENCODING = "UTF-8";
     private static String DATA_PATH = ".\\data\\rawRequests.txt";
 
     public static Map.Entry<List<String>, List<String>> readSentencesWithTargets() {
         List<String> sentences = new ArrayList<>();
         List<String> targets = new ArrayList<>();
-        try {
-            File dataFile = new File(DATA_PATH);
-            if (dataFile.isFile() && dataFile.exists()) {
-                InputStreamReader inputStreamReader = new InputStreamReader(new FileInputStream(dataFile), ENCODING);
-                BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-                String line;
-                while ((line = bufferedReader.readLine()) != null) {
-                    String[] tokens = line.split(" \\|\\|\\| ");
-                    sentences.add(tokens[0]);
-                    targets.add(tokens[1]);
-                    // - for debugging  -
-                    //System.out.println(tokens[0]);
-                    //System.out.println(tokens[1]);
-                    // -    -   -   -   -
-                }
-                bufferedReader.close();
+        File dataFile = new File(DATA_PATH);
+        if (!dataFile.isFile()) {
+            return new AbstractMap.SimpleEntry<>(sentences, targets);
+        }
+        try (CorpusReader corpusReader = new CorpusReader(DATA_PATH)) {
+            corpusReader.stream().parallel().forEachOrdered(sentenceWithTarget -> {
+                sentences.add(sentenceWithTarget.getKey());
+                targets.add(sentenceWithTarget.getValue());
+                // - for debugging  -
+                //System.out.println(sentenceWithTarget.getKey());
+                //System.out.println(sentenceWithTarget.getValue());
+                // -    -   -   -   -
+            });
+            if (corpusReader.getMalformedLineCount() > 0) {
+                System.out.println("skipped " + corpusReader.getMalformedLineCount() + " malformed lines");
             }
         } catch (Exception e) {
             System.out.println("failed to read data");
@@ -35,12 +32,29 @@ public class Main {
         return new AbstractMap.SimpleEntry<>(sentences, targets);
     }
 
+    // train on the whole data file without holding its sentences in memory
+    public static NaiveBayesTextClassifier streamingFit() {
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier();
+        try (CorpusReader corpusReader = new CorpusReader(DATA_PATH)) {
+            classifier.fit(corpusReader.stream().parallel());
+            System.out.println("skipped " + corpusReader.getMalformedLineCount() + " malformed lines");
+        } catch (Exception e) {
+            System.out.println("failed to read data");
+        }
+        return classifier;
+    }
+
+    // segment the data file once and cache the term ids next to it, or reuse the cache if it is up to date
+    // the evaluations below cannot run without the data, so a failure to read it is passed on to them
+    public static TokenizedCorpus readTokenizedCorpus(TermSegmentor termSegmentor) throws IOException {
+        return TokenizedCorpus.loadOrBuild(DATA_PATH, termSegmentor);
+    }
+
     // scoreType: {"F1", "Recall", "Precision"}
-    public static List<List<Double>> crossValidate(int fold, String scoreType) {
-        Map.Entry<List<String>, List<String>> sentencesWithTargets = readSentencesWithTargets();
-        List<String> sentences = sentencesWithTargets.getKey();
-        List<String> targets = sentencesWithTargets.getValue();
-        CrossValidator crossValidator = new CrossValidator(sentences, targets, fold);
+    public static List<List<Double>> crossValidate(int fold, String scoreType) throws IOException {
+        TermSegmentor termSegmentor = new TermSegmentor();
+        TokenizedCorpus corpus = readTokenizedCorpus(termSegmentor);
+        CrossValidator crossValidator = new CrossValidator(corpus, termSegmentor, fold);
         List<List<Double>> scoreLists = crossValidator.crossValidate(scoreType);
         for (int i = 0; i < scoreLists.size(); i++) {
             List<Double> scores = scoreLists.get(i);
@@ -52,23 +66,28 @@ public class Main {
         return scoreLists;
     }
 
-    // do a simple train-test-split trial
-    public static List<Double> trainTestTrial(double testRatio, String scoreType) {
-        Map.Entry<List<String>, List<String>> sentencesWithTargets = readSentencesWithTargets();
-        List<String> sentences = sentencesWithTargets.getKey();
-        List<String> targets = sentencesWithTargets.getValue();
-        TrainTestSplitter trainTestSplitter = new TrainTestSplitter(sentences, targets, testRatio);
-        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier();
+    // train on the cached term ids of the data file and evaluate every metric in one pass over the test set
+    public static EvaluationReport trainTestEvaluation(double testRatio) throws IOException {
+        TermSegmentor termSegmentor = new TermSegmentor();
+        TokenizedCorpus corpus = readTokenizedCorpus(termSegmentor);
+        TrainTestSplitter<List<String>> trainTestSplitter =
+                new TrainTestSplitter<>(corpus.getTermsList(), corpus.getTargets(), testRatio);
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(termSegmentor);
 
-        Map.Entry<List<String>, List<String>> trainSet = trainTestSplitter.trainSplit();
-        List<String> trainSentences = trainSet.getKey();
+        Map.Entry<List<List<String>>, List<String>> trainSet = trainTestSplitter.trainSplit();
+        List<List<String>> trainTermsList = trainSet.getKey();
         List<String> trainTargets = trainSet.getValue();
-        classifier.fit(trainSentences, trainTargets);
+        classifier.fitSegmented(trainTermsList, trainTargets);
 
-        Map.Entry<List<String>, List<String>> testSet = trainTestSplitter.testSplit();
-        List<String> testSentences = testSet.getKey();
+        Map.Entry<List<List<String>>, List<String>> testSet = trainTestSplitter.testSplit();
+        List<List<String>> testTermsList = testSet.getKey();
         List<String> testTargets = testSet.getValue();
-        List<Double> scores = classifier.score(testSentences, testTargets, scoreType);
+        return classifier.evaluateSegmented(testTermsList, testTargets);
+    }
+
+    // do a simple train-test-split trial
+    public static List<Double> trainTestTrial(double testRatio, String scoreType) throws IOException {
+        List<Double> scores = trainTestEvaluation(testRatio).getScores(scoreType);
         for (int i = 0; i < scores.size(); i++) {
             System.out.print(String.format("%.2f\t", scores.get(i)));
         }
@@ -81,7 +100,7 @@ public class Main {
         Map.Entry<List<String>, List<String>> sentencesWithTargets = readSentencesWithTargets();
         List<String> sentences = sentencesWithTargets.getKey();
         List<String> targets = sentencesWithTargets.getValue();
-        TrainTestSplitter trainTestSplitter = new TrainTestSplitter(sentences, targets, testRatio);
+        TrainTestSplitter<String> trainTestSplitter = new TrainTestSplitter<>(sentences, targets, testRatio);
         NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier();
 
         Map.Entry<List<String>, List<String>> trainSet = trainTestSplitter.trainSplit();
@@ -92,7 +111,9 @@ public class Main {
         Map.Entry<List<String>, List<String>> testSet = trainTestSplitter.testSplit();
         List<String> testSentences = testSet.getKey();
         List<String> testTargets = testSet.getValue();
-        List<String> predictions = classifier.predict(testSentences);
+        ExecutorService executor = PredictionExecutors.perCore();
+        List<String> predictions = classifier.predict(testSentences, executor);
+        executor.shutdown();
         for (int i = 0; i < predictions.size(); i++) {
             String trueCategory = testTargets.get(i);
             String predictedCategory = predictions.get(i);
@@ -103,34 +124,16 @@ public class Main {
         System.out.print("\n");
     }
 
-    // do a combined trail of precision, recall and F1
-    public static void combinedTrainTestTrial(double testRatio) {
-        List<Double> precisions = trainTestTrial(testRatio, "precision");
-        double averagePrecision = 0;
-        for (double precision : precisions) {
-            averagePrecision += precision;
-        }
-        averagePrecision /= precisions.size();
-        System.out.println("Average precision: " + averagePrecision);
-
-        List<Double> recalls = trainTestTrial(testRatio, "recall");
-        double averagerecall = 0;
-        for (double recall : recalls) {
-            averagerecall += recall;
-        }
-        averagerecall /= recalls.size();
-        System.out.println("Average recall: " + averagerecall);
-
-        List<Double> F1s = trainTestTrial(testRatio, "F1");
-        double averageF1 = 0;
-        for (double F1 : F1s) {
-            averageF1 += F1;
-        }
-        averageF1 /= F1s.size();
-        System.out.println("Average F1: " + averageF1);
+    // do a combined trail of precision, recall and F1, all from a single train and predict run
+    public static void combinedTrainTestTrial(double testRatio) throws IOException {
+        EvaluationReport report = trainTestEvaluation(testRatio);
+        System.out.println(report);
+        System.out.println("Average precision: " + report.getMacroPrecision());
+        System.out.println("Average recall: " + report.getMacroRecall());
+        System.out.println("Average F1: " + report.getMacroF1());
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         // assign the path to the file containing the data
         // each line of the data must be in the form of "<sentence> ||| <category>"
         // e.g. "玉兰油 ||| 护肤"
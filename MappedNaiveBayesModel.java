@@ -0,0 +1,760 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Overview:
+// a compiled naive Bayes model read in place from a binary snapshot file mapped into memory,
+// so that loading costs a header read instead of re-segmenting the corpus or rebuilding maps
+// the term table is an open-addressing hash table inside the file, probed by comparing the UTF-8 bytes
+// of the stored terms against the query, so terms and log-likelihoods never get copied onto the heap
+// the log-likelihoods are the postings of CompiledNaiveBayesModel, scored in place the same way,
+// so the snapshot grows with the (term, category) pairs seen rather than with #terms * #categories
+// the same layout can be built in direct memory without a file, see allocateDirect
+//
+// Lifecycle:
+// the buffer lives outside the heap, so a model holding millions of terms is a handful of objects to the GC
+// close() returns the memory at once instead of waiting for the buffer to be collected;
+// every score holds a reference, so close() frees the memory only after the scores in flight are done,
+// and a score started after close() throws IllegalStateException
+//
+// Snapshot layout, big-endian, version 2:
+//   header         magic "NBTC", version, #categories C, #terms T, #slots S, #postings P,
+//                  total sentence count (long), unseen log-likelihood (double),
+//                  offsets of the sections below (int each)
+//   logPriors      C doubles
+//   postingLogLikelihoods P doubles
+//   postingOffsets T + 1 ints: the postings of term id t are [postingOffsets[t], postingOffsets[t + 1])
+//   postingCategories P ints, ascending within a term
+//   slots          S ints: term id or -1, linear probing from Vocabulary.hashOf(term) & (S - 1)
+//   termHashes     T ints
+//   termOffsets    T + 1 ints, byte offsets into the string data
+//   categoryOffsets C + 1 ints, byte offsets into the string data
+//   string data    UTF-8 bytes of all terms, then of all categories
+public class MappedNaiveBayesModel implements NaiveBayesModel, Closeable {
+    private static final int MAGIC = 0x4E425443;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 * 6 + 8 + 8 + 4 * 9;
+
+    // Unsafe.invokeCleaner frees a direct or mapped buffer on Java 9 and later;
+    // where it is missing the memory is freed when the buffer is garbage collected
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    // per-thread scratch of predictIndex and predictTopK, shared by all the mapped models
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final ByteBuffer buffer;
+    private final int categoryCount;
+    private final int termCount;
+    private final int slotMask;
+    private final long totalSentenceCount;
+    private final double unseenLogLikelihood;
+    private final int postingLogLikelihoodsOffset;
+    private final int postingOffsetsOffset;
+    private final int postingCategoriesOffset;
+    private final int slotsOffset;
+    private final int termHashesOffset;
+    private final int termOffsetsOffset;
+    private final int stringDataOffset;
+    // the few category names and priors are decoded once, everything else is read from the buffer
+    private final String[] categories;
+    private final double[] logPriors;
+    // category indices by descending log prior, ties by index, and the log of the sum of the priors,
+    // as in CompiledNaiveBayesModel
+    private final int[] categoriesByPrior;
+    private final double logPriorMass;
+    // the open reference plus one per score in flight; the buffer is freed when it drops to 0
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    MappedNaiveBayesModel(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a naive Bayes model snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("unsupported snapshot version " + buffer.getInt(4));
+        }
+        this.categoryCount = buffer.getInt(8);
+        this.termCount = buffer.getInt(12);
+        int slotCount = buffer.getInt(16);
+        int postingCount = buffer.getInt(20);
+        if (categoryCount < 0 || termCount < 0 || postingCount < 0 || slotCount <= termCount
+                || Integer.bitCount(slotCount) != 1) {
+            throw new IOException("corrupt snapshot header");
+        }
+        this.slotMask = slotCount - 1;
+        this.totalSentenceCount = buffer.getLong(24);
+        this.unseenLogLikelihood = buffer.getDouble(32);
+        int logPriorsOffset = buffer.getInt(40);
+        this.postingLogLikelihoodsOffset = buffer.getInt(44);
+        this.postingOffsetsOffset = buffer.getInt(48);
+        this.postingCategoriesOffset = buffer.getInt(52);
+        this.slotsOffset = buffer.getInt(56);
+        this.termHashesOffset = buffer.getInt(60);
+        this.termOffsetsOffset = buffer.getInt(64);
+        int categoryOffsetsOffset = buffer.getInt(68);
+        this.stringDataOffset = buffer.getInt(72);
+        // a section running past the end of the buffer is a truncated or overwritten snapshot
+        checkSection(logPriorsOffset, 8L * categoryCount);
+        checkSection(postingLogLikelihoodsOffset, 8L * postingCount);
+        checkSection(postingOffsetsOffset, 4L * (termCount + 1));
+        checkSection(postingCategoriesOffset, 4L * postingCount);
+        checkSection(slotsOffset, 4L * slotCount);
+        checkSection(termHashesOffset, 4L * termCount);
+        checkSection(termOffsetsOffset, 4L * (termCount + 1));
+        checkSection(categoryOffsetsOffset, 4L * (categoryCount + 1));
+        checkSection(stringDataOffset, buffer.getInt(categoryOffsetsOffset + 4 * categoryCount));
+        if (buffer.getInt(postingOffsetsOffset + 4 * termCount) != postingCount
+                || buffer.getInt(termOffsetsOffset + 4 * termCount) > buffer.getInt(categoryOffsetsOffset)) {
+            throw new IOException("corrupt snapshot sections");
+        }
+
+        this.logPriors = new double[categoryCount];
+        Integer[] order = new Integer[categoryCount];
+        double priorMass = 0;
+        for (int c = 0; c < categoryCount; c++) {
+            this.logPriors[c] = buffer.getDouble(logPriorsOffset + 8 * c);
+            order[c] = c;
+            priorMass += Math.exp(logPriors[c]);
+        }
+        Arrays.sort(order, (a, b) -> logPriors[a] != logPriors[b] ? Double.compare(logPriors[b], logPriors[a]) : a - b);
+        this.categoriesByPrior = new int[categoryCount];
+        for (int i = 0; i < categoryCount; i++) {
+            this.categoriesByPrior[i] = order[i];
+        }
+        this.logPriorMass = Math.log(priorMass);
+
+        this.categories = new String[categoryCount];
+        for (int c = 0; c < categoryCount; c++) {
+            int from = buffer.getInt(categoryOffsetsOffset + 4 * c);
+            int to = buffer.getInt(categoryOffsetsOffset + 4 * (c + 1));
+            byte[] bytes = new byte[to - from];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(stringDataOffset + from + i);
+            }
+            this.categories[c] = new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private void checkSection(int offset, long length) throws IOException {
+        if (offset < HEADER_SIZE || length < 0 || offset + length > buffer.capacity()) {
+            throw new IOException("snapshot section at " + offset + " of " + length + " bytes runs past the "
+                    + buffer.capacity() + " bytes of the snapshot");
+        }
+    }
+
+    // map a snapshot file written by write()
+    public static MappedNaiveBayesModel open(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("snapshot larger than 2 GB cannot be mapped as one buffer");
+            }
+            // the mapping stays valid after the channel is closed
+            return new MappedNaiveBayesModel(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // copy the compiled model into direct memory, laid out like a snapshot file
+    public static MappedNaiveBayesModel allocateDirect(CompiledNaiveBayesModel model) throws IOException {
+        ByteBuffer[] buffer = new ByteBuffer[1];
+        write(model, size -> new ByteBufferOutputStream(buffer[0] = ByteBuffer.allocateDirect((int) size)));
+        return new MappedNaiveBayesModel(buffer[0]);
+    }
+
+    // write the compiled model as a snapshot file
+    // the snapshot is written next to the file and moved over it, so that a reader mapping the path
+    // sees the old snapshot or the new one, never a partly written one
+    public static void write(CompiledNaiveBayesModel model, String path) throws IOException {
+        File file = new File(path).getAbsoluteFile();
+        File temporary = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            write(model, size -> new FileOutputStream(temporary));
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temporary.delete();
+        }
+    }
+
+    // opens the stream a snapshot of the given #bytes is written to
+    private interface SnapshotSink {
+        OutputStream open(long size) throws IOException;
+    }
+
+    private static class ByteBufferOutputStream extends OutputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferOutputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            buffer.put(bytes, offset, length);
+        }
+    }
+
+    private static void write(CompiledNaiveBayesModel model, SnapshotSink sink) throws IOException {
+        int categoryCount = model.getCategoryCount();
+        int termCount = model.getTermCount();
+        int postingCount = model.getPostingCount();
+        int slotCount = Integer.highestOneBit(Math.max(2, termCount * 2 - 1)) << 1;
+
+        int[] termHashes = new int[termCount];
+        int[] slots = new int[slotCount];
+        Arrays.fill(slots, -1);
+        List<byte[]> strings = new ArrayList<>(termCount + categoryCount);
+        for (int row = 0; row < termCount; row++) {
+            String term = model.getTerm(row);
+            termHashes[row] = Vocabulary.hashOf(term);
+            int slot = termHashes[row] & (slotCount - 1);
+            while (slots[slot] >= 0) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            slots[slot] = row;
+            strings.add(term.getBytes(StandardCharsets.UTF_8));
+        }
+        for (int c = 0; c < categoryCount; c++) {
+            strings.add(model.getCategory(c).getBytes(StandardCharsets.UTF_8));
+        }
+        long stringBytes = 0;
+        for (byte[] string : strings) {
+            stringBytes += string.length;
+        }
+
+        long logPriorsOffset = HEADER_SIZE;
+        long postingLogLikelihoodsOffset = logPriorsOffset + 8L * categoryCount;
+        long postingOffsetsOffset = postingLogLikelihoodsOffset + 8L * postingCount;
+        long postingCategoriesOffset = postingOffsetsOffset + 4L * (termCount + 1);
+        long slotsOffset = postingCategoriesOffset + 4L * postingCount;
+        long termHashesOffset = slotsOffset + 4L * slotCount;
+        long termOffsetsOffset = termHashesOffset + 4L * termCount;
+        long categoryOffsetsOffset = termOffsetsOffset + 4L * (termCount + 1);
+        long stringDataOffset = categoryOffsetsOffset + 4L * (categoryCount + 1);
+        if (stringDataOffset + stringBytes > Integer.MAX_VALUE) {
+            throw new IOException("model too large for a single mapped snapshot");
+        }
+
+        long size = stringDataOffset + stringBytes;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sink.open(size), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(categoryCount);
+            out.writeInt(termCount);
+            out.writeInt(slotCount);
+            out.writeInt(postingCount);
+            out.writeLong(model.getTotalSentenceCount());
+            out.writeDouble(model.getUnseenLogLikelihood());
+            out.writeInt((int) logPriorsOffset);
+            out.writeInt((int) postingLogLikelihoodsOffset);
+            out.writeInt((int) postingOffsetsOffset);
+            out.writeInt((int) postingCategoriesOffset);
+            out.writeInt((int) slotsOffset);
+            out.writeInt((int) termHashesOffset);
+            out.writeInt((int) termOffsetsOffset);
+            out.writeInt((int) categoryOffsetsOffset);
+            out.writeInt((int) stringDataOffset);
+
+            for (int c = 0; c < categoryCount; c++) {
+                out.writeDouble(model.getLogPrior(c));
+            }
+            for (int row = 0; row < termCount; row++) {
+                for (int i = 0; i < model.getPostingCount(row); i++) {
+                    out.writeDouble(model.getPostingLogLikelihood(row, i));
+                }
+            }
+            int postingOffset = 0;
+            for (int row = 0; row < termCount; row++) {
+                out.writeInt(postingOffset);
+                postingOffset += model.getPostingCount(row);
+            }
+            out.writeInt(postingOffset);
+            for (int row = 0; row < termCount; row++) {
+                for (int i = 0; i < model.getPostingCount(row); i++) {
+                    out.writeInt(model.getPostingCategory(row, i));
+                }
+            }
+            for (int slot : slots) {
+                out.writeInt(slot);
+            }
+            for (int hash : termHashes) {
+                out.writeInt(hash);
+            }
+            // term offsets, then category offsets continuing where the terms end
+            int offset = 0;
+            for (int row = 0; row < termCount; row++) {
+                out.writeInt(offset);
+                offset += strings.get(row).length;
+            }
+            out.writeInt(offset);
+            for (int c = 0; c < categoryCount; c++) {
+                out.writeInt(offset);
+                offset += strings.get(termCount + c).length;
+            }
+            out.writeInt(offset);
+            for (byte[] string : strings) {
+                out.write(string);
+            }
+        }
+    }
+
+    // compare the UTF-8 bytes at [from, to) of the string data against the string, without decoding
+    private boolean utf8Equals(int from, int to, String string) {
+        int index = 0;
+        int position = stringDataOffset + from;
+        int end = stringDataOffset + to;
+        while (position < end) {
+            int codePoint;
+            int b = buffer.get(position) & 0xFF;
+            if (b < 0x80) {
+                codePoint = b;
+                position += 1;
+            } else if (b < 0xE0) {
+                codePoint = ((b & 0x1F) << 6) | (buffer.get(position + 1) & 0x3F);
+                position += 2;
+            } else if (b < 0xF0) {
+                codePoint = ((b & 0x0F) << 12) | ((buffer.get(position + 1) & 0x3F) << 6)
+                        | (buffer.get(position + 2) & 0x3F);
+                position += 3;
+            } else {
+                codePoint = ((b & 0x07) << 18) | ((buffer.get(position + 1) & 0x3F) << 12)
+                        | ((buffer.get(position + 2) & 0x3F) << 6) | (buffer.get(position + 3) & 0x3F);
+                position += 4;
+            }
+            if (index >= string.length() || string.codePointAt(index) != codePoint) {
+                return false;
+            }
+            index += Character.charCount(codePoint);
+        }
+        return index == string.length();
+    }
+
+    // return the row of the term, or -1 if it was never seen during training
+    private int rowOf(String term) {
+        int hash = Vocabulary.hashOf(term);
+        for (int slot = hash & slotMask; ; slot = (slot + 1) & slotMask) {
+            int row = buffer.getInt(slotsOffset + 4 * slot);
+            if (row < 0) {
+                return -1;
+            }
+            if (buffer.getInt(termHashesOffset + 4 * row) == hash) {
+                int from = buffer.getInt(termOffsetsOffset + 4 * row);
+                int to = buffer.getInt(termOffsetsOffset + 4 * (row + 1));
+                if (utf8Equals(from, to, term)) {
+                    return row;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void score(List<String> terms, double[] scores) {
+        assert scores.length >= categoryCount;
+
+        acquire();
+        try {
+            scoreBuffer(terms, scores);
+        } finally {
+            release();
+        }
+    }
+
+    // the postings are added in sentence order onto the baseline, the same sums as CompiledNaiveBayesModel makes
+    private void scoreBuffer(List<String> terms, double[] scores) {
+        double unseenScore = terms.size() * unseenLogLikelihood;
+        for (int c = 0; c < categoryCount; c++) {
+            scores[c] = logPriors[c] + unseenScore;
+        }
+        for (String term : terms) {
+            int row = rowOf(term);
+            if (row < 0) {
+                // new term detected on the fly
+                continue;
+            }
+            int end = buffer.getInt(postingOffsetsOffset + 4 * (row + 1));
+            for (int i = buffer.getInt(postingOffsetsOffset + 4 * row); i < end; i++) {
+                scores[buffer.getInt(postingCategoriesOffset + 4 * i)] +=
+                        buffer.getDouble(postingLogLikelihoodsOffset + 8 * i) - unseenLogLikelihood;
+            }
+        }
+    }
+
+    // scores and stamps of the categories touched by the postings of a sentence, grown to the largest model
+    // the thread has scored with; after 2^32 scorings the stamps are cleared and restart at 1
+    private static final class Scratch {
+        private int[] stamps = new int[0];
+        private double[] scores = new double[0];
+        private int[] touched = new int[0];
+        private int stamp;
+
+        private void ensureCapacity(int categoryCount) {
+            if (stamps.length < categoryCount) {
+                this.stamps = new int[categoryCount];
+                this.scores = new double[categoryCount];
+                this.touched = new int[categoryCount];
+            }
+        }
+
+        private int nextStamp() {
+            if (++this.stamp == 0) {
+                Arrays.fill(stamps, 0);
+                this.stamp = 1;
+            }
+            return stamp;
+        }
+    }
+
+    // score the categories in the postings of the terms into the scratch, and return how many there are
+    private int scoreTouched(List<String> terms, Scratch scratch) {
+        acquire();
+        try {
+            scratch.ensureCapacity(categoryCount);
+            int stamp = scratch.nextStamp();
+            int[] stamps = scratch.stamps;
+            double[] scores = scratch.scores;
+            double unseenScore = terms.size() * unseenLogLikelihood;
+            int touchedCount = 0;
+            for (String term : terms) {
+                int row = rowOf(term);
+                if (row < 0) {
+                    continue;
+                }
+                int end = buffer.getInt(postingOffsetsOffset + 4 * (row + 1));
+                for (int i = buffer.getInt(postingOffsetsOffset + 4 * row); i < end; i++) {
+                    int c = buffer.getInt(postingCategoriesOffset + 4 * i);
+                    if (stamps[c] != stamp) {
+                        stamps[c] = stamp;
+                        scores[c] = logPriors[c] + unseenScore;
+                        scratch.touched[touchedCount++] = c;
+                    }
+                    scores[c] += buffer.getDouble(postingLogLikelihoodsOffset + 8 * i) - unseenLogLikelihood;
+                }
+            }
+            return touchedCount;
+        } finally {
+            release();
+        }
+    }
+
+    // the best touched category or the untouched one with the highest prior, like CompiledNaiveBayesModel.Query
+    @Override
+    public int predictIndex(List<String> terms) {
+        Scratch scratch = SCRATCH.get();
+        int touchedCount = scoreTouched(terms, scratch);
+        int bestIndex = -1;
+        double bestScore = -Double.MAX_VALUE;
+        for (int i = 0; i < touchedCount; i++) {
+            int c = scratch.touched[i];
+            double score = scratch.scores[c];
+            if (score > bestScore || (score == bestScore && c < bestIndex)) {
+                bestScore = score;
+                bestIndex = c;
+            }
+        }
+        for (int c : categoriesByPrior) {
+            if (scratch.stamps[c] == scratch.stamp) {
+                continue;
+            }
+            double score = logPriors[c] + terms.size() * unseenLogLikelihood;
+            if (score > bestScore || (score == bestScore && c < bestIndex)) {
+                bestIndex = c;
+            }
+            break;
+        }
+        return bestIndex;
+    }
+
+    // the untouched categories are visited by descending prior until one cannot reach the top k,
+    // like CompiledNaiveBayesModel.Query
+    @Override
+    public List<Map.Entry<String, Double>> predictTopK(List<String> terms, int k) {
+        Scratch scratch = SCRATCH.get();
+        int touchedCount = scoreTouched(terms, scratch);
+        double unseenScore = terms.size() * unseenLogLikelihood;
+
+        TopKSelector selector = new TopKSelector(k);
+        double touchedPriorMass = 0;
+        for (int i = 0; i < touchedCount; i++) {
+            int c = scratch.touched[i];
+            selector.offer(c, scratch.scores[c]);
+            touchedPriorMass += Math.exp(logPriors[c]);
+        }
+        if (touchedCount == categoryCount) {
+            return selector.toPosteriors(this);
+        }
+
+        for (int c : categoriesByPrior) {
+            if (scratch.stamps[c] == scratch.stamp) {
+                continue;
+            }
+            double score = logPriors[c] + unseenScore;
+            if (!selector.wouldKeep(c, score)) {
+                break;
+            }
+            selector.keep(c, score);
+        }
+        double untouchedPriorMass = Math.exp(logPriorMass) - touchedPriorMass;
+        if (untouchedPriorMass > 0) {
+            selector.addLogMass(Math.log(untouchedPriorMass) + unseenScore);
+        }
+        return selector.toPosteriors(this);
+    }
+
+    @Override
+    public int getCategoryCount() {
+        return categoryCount;
+    }
+
+    @Override
+    public String getCategory(int index) {
+        return categories[index];
+    }
+
+    @Override
+    public int getTermCount() {
+        return termCount;
+    }
+
+    // the mapped snapshot, which lives outside the heap
+    @Override
+    public long estimateBytes() {
+        return buffer.capacity();
+    }
+
+    public long getTotalSentenceCount() {
+        return totalSentenceCount;
+    }
+
+    private void acquire() {
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                throw new IllegalStateException("model closed");
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return;
+            }
+        }
+    }
+
+    private void release() {
+        if (references.decrementAndGet() == 0 && INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // left to the garbage collector
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    // free the buffer once the scores in flight are done; closing twice does nothing
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    private static List<String> categoriesOf(List<Map.Entry<String, Double>> posteriors) {
+        List<String> categories = new ArrayList<>();
+        for (Map.Entry<String, Double> posterior : posteriors) {
+            categories.add(posterior.getKey());
+        }
+        return categories;
+    }
+
+    // unit test
+    public static void main(String[] args) throws IOException {
+        Map.Entry<List<String>, List<String>> corpus = new SyntheticCorpusGenerator(11, 5000, 30).generate(20000, 1, 6);
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier();
+        classifier.fit(corpus.getKey(), corpus.getValue());
+
+        java.io.File file = java.io.File.createTempFile("model", ".nbtc");
+        file.deleteOnExit();
+        classifier.save(file.getPath());
+        long start = System.nanoTime();
+        NaiveBayesTextClassifier loaded = NaiveBayesTextClassifier.load(file.getPath());
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("snapshot: %d bytes, loaded in %.2f ms", file.length(), elapsed / 1e6));
+
+        List<String> queries = new SyntheticCorpusGenerator(12, 6000, 30).generate(2000, 1, 6).getKey();
+        queries.add("玉兰油");
+        queries.add("");
+        int mismatches = 0;
+        for (String query : queries) {
+            if (!classifier.predict(query).equals(loaded.predict(query))) {
+                mismatches++;
+            }
+        }
+        System.out.println((mismatches == 0 ? "√\t" : "X\t") + "loaded snapshot predicts like the original, "
+                + mismatches + " mismatches out of " + queries.size());
+
+        // the postings in the buffer make the same sums as the compiled model, and the same pruned top k
+        CompiledNaiveBayesModel compiledModel = (CompiledNaiveBayesModel) classifier.getModel();
+        MappedNaiveBayesModel mappedModel = (MappedNaiveBayesModel) loaded.getModel();
+        List<List<String>> termsList = classifier.getTermSegmentor().segmentSentences(queries);
+        double[] compiledScores = new double[compiledModel.getCategoryCount()];
+        double[] mappedScores = new double[mappedModel.getCategoryCount()];
+        mismatches = 0;
+        for (List<String> terms : termsList) {
+            compiledModel.score(terms, compiledScores);
+            mappedModel.score(terms, mappedScores);
+            if (!Arrays.equals(compiledScores, mappedScores)
+                    || compiledModel.predictIndex(terms) != mappedModel.predictIndex(terms)
+                    || !compiledModel.predictTopK(terms, 3).equals(mappedModel.predictTopK(terms, 3))
+                    || !categoriesOf(TopKSelector.exhaustive(mappedModel, terms, 3))
+                            .equals(categoriesOf(mappedModel.predictTopK(terms, 3)))) {
+                mismatches++;
+            }
+        }
+        System.out.println((mismatches == 0 ? "√\t" : "X\t") + "mapped postings score, predict and prune like the compiled model, "
+                + mismatches + " mismatches");
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        // long enough for the term iterator to be optimized away; the fewest bytes of several rounds are kept,
+        // since a round may still run before a recompilation or allocate in the JIT and the runtime
+        for (int round = 0; round < 200; round++) {
+            for (List<String> terms : termsList) {
+                mappedModel.predictIndex(terms);
+            }
+        }
+        long allocatedBytes = Long.MAX_VALUE;
+        for (int round = 0; round < 10; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (List<String> terms : termsList) {
+                mappedModel.predictIndex(terms);
+            }
+            allocatedBytes = Math.min(allocatedBytes, threads.getThreadAllocatedBytes(thread) - before);
+        }
+        System.out.println((allocatedBytes < termsList.size() ? "√\t" : "X\t") + String.format(
+                "%.2f bytes allocated per mapped prediction", (double) allocatedBytes / termsList.size()));
+        System.out.println(String.format("snapshot of %d postings: %d bytes, %d as a dense table of %d terms by %d categories",
+                compiledModel.getPostingCount(), file.length(),
+                file.length() + 8L * compiledModel.getTermCount() * compiledModel.getCategoryCount()
+                        - 12L * compiledModel.getPostingCount() - 4L * (compiledModel.getTermCount() + 1),
+                compiledModel.getTermCount(), compiledModel.getCategoryCount()));
+        loaded.close();
+        boolean rejected = false;
+        try {
+            loaded.predict(queries.get(0));
+        } catch (IllegalStateException e) {
+            rejected = true;
+        }
+        System.out.println((rejected ? "√\t" : "X\t") + "a closed snapshot rejects predictions");
+
+        // a snapshot cut short anywhere past its header is refused when it is opened
+        byte[] bytes = java.nio.file.Files.readAllBytes(file.toPath());
+        java.io.File truncated = java.io.File.createTempFile("truncated", ".nbtc");
+        truncated.deleteOnExit();
+        int refused = 0;
+        int[] lengths = {HEADER_SIZE, bytes.length / 4, bytes.length / 2, bytes.length - 1};
+        for (int length : lengths) {
+            java.nio.file.Files.write(truncated.toPath(), Arrays.copyOf(bytes, length));
+            try {
+                open(truncated.getPath()).close();
+            } catch (IOException e) {
+                refused++;
+            }
+        }
+        System.out.println((refused == lengths.length ? "√\t" : "X\t") + refused + " of " + lengths.length
+                + " truncated snapshots refused");
+
+        // the same layout in direct memory; the classifier drops its counts and keeps predicting
+        NaiveBayesTextClassifier onHeap = new NaiveBayesTextClassifier();
+        onHeap.fit(corpus.getKey(), corpus.getValue());
+        MappedNaiveBayesModel offHeapModel = onHeap.moveOffHeap();
+        mismatches = 0;
+        for (String query : queries) {
+            if (!classifier.predict(query).equals(onHeap.predict(query))
+                    || !categoriesOf(classifier.predictTopK(query, 3)).equals(categoriesOf(onHeap.predictTopK(query, 3)))) {
+                mismatches++;
+            }
+        }
+        System.out.println((mismatches == 0 && offHeapModel.buffer.isDirect() ? "√\t" : "X\t")
+                + "off-heap model predicts like the original, " + mismatches + " mismatches");
+        boolean countsDropped = false;
+        try {
+            onHeap.learn("玉兰油", "护肤");
+        } catch (IllegalStateException e) {
+            countsDropped = true;
+        }
+        System.out.println((countsDropped ? "√\t" : "X\t") + "the counts are dropped once the model is off the heap");
+
+        // closing while other threads score frees the memory only after their scores are done
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(4);
+        java.util.concurrent.atomic.AtomicInteger completed = new java.util.concurrent.atomic.AtomicInteger();
+        java.util.concurrent.atomic.AtomicInteger failed = new java.util.concurrent.atomic.AtomicInteger();
+        for (int t = 0; t < 4; t++) {
+            executor.execute(() -> {
+                for (int i = 0; ; i++) {
+                    try {
+                        onHeap.predict(queries.get(i % queries.size()));
+                        completed.incrementAndGet();
+                    } catch (IllegalStateException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        return;
+                    }
+                }
+            });
+        }
+        while (completed.get() < 10000) {
+            Thread.yield();
+        }
+        onHeap.close();
+        onHeap.close();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, java.util.concurrent.TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println((failed.get() == 0 && executor.isTerminated() && offHeapModel.isClosed() ? "√\t" : "X\t")
+                + "closed under " + completed.get() + " concurrent predictions, " + failed.get() + " failures");
+    }
+}
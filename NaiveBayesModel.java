@@ -0,0 +1,48 @@
+import java.util.List;
+import java.util.Map;
+
+// Overview:
+// a trained, read-only naive Bayes model that scores segmented sentences against its categories
+// implementations are immutable once built, so one instance may be shared by any number of threads
+public interface NaiveBayesModel {
+    int getCategoryCount();
+
+    String getCategory(int index);
+
+    // #distinct terms the model has log-likelihoods for
+    int getTermCount();
+
+    // approximate bytes held by the model, on or off the heap
+    long estimateBytes();
+
+    // fill scores[c] with the log-probability of the segmented sentence under category c
+    void score(List<String> terms, double[] scores);
+
+    // return the index of the most probable category, or -1 if there is none
+    default int predictIndex(List<String> terms) {
+        double[] scores = new double[getCategoryCount()];
+        score(terms, scores);
+
+        double maxLogProbability = -Double.MAX_VALUE;
+        int bestIndex = -1;
+        for (int c = 0; c < scores.length; c++) {
+            if (scores[c] > maxLogProbability) {
+                maxLogProbability = scores[c];
+                bestIndex = c;
+            }
+        }
+        return bestIndex;
+    }
+
+    // return the most probable category of the segmented sentence
+    default String predict(List<String> terms) {
+        int bestIndex = predictIndex(terms);
+        return bestIndex < 0 ? "" : getCategory(bestIndex);
+    }
+
+    // return the k most probable categories of the segmented sentence, the most probable first,
+    // with their posterior probabilities normalized over all the categories by log-sum-exp
+    default List<Map.Entry<String, Double>> predictTopK(List<String> terms, int k) {
+        return TopKSelector.exhaustive(this, terms, k);
+    }
+}
@@ -1,108 +1,658 @@
+import javax.management.JMException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
-public class NaiveBayesTextClassifier {
-    // all the categories
-    private Set<String> categories;
-    // all the words
-    private Set<String> words;
-    // category -> term -> #occurrence of the term in this category
-    private Map<String, Map<String, Integer>> termGivenCategoryToCount;
-    // category -> #occurrence of the sentences in it
-    private Map<String, Integer> categoryToSentenceCount;
-    // category -> #terms in it
-    private Map<String, Integer> categoryToTermCount;
+// Thread safety:
+// predict, score and getCategories may be called from any number of threads at any time, also while
+// fit, partialFit, learn or merge run: they only read the compiled model, which is immutable and
+// published through a volatile field, so readers never block and always see one consistent model.
+// writers segment outside any lock, then update the counts under a lock and publish a recompiled model;
+// concurrent writers share one recompilation when they finish together
+// learn publishes in the background instead, so that a stream of single examples recompiles once per
+// compilation time rather than once per example; flush waits for what it has counted to be published
+// a background publish that fails is reported by the next learn, flush or getModel, which throws
+// IllegalStateException caused by the failure
+public class NaiveBayesTextClassifier implements Closeable {
+    // all the categories, category <-> category id
+    private Vocabulary categories;
+    // all the words, term <-> term id; empty in hashed mode
+    private Vocabulary words;
+    // category id -> term id -> #occurrence of the term in this category
+    // in hashed mode the term id is the bucket of the term
+    private IntCountMap[] termGivenCategoryToCount;
+    // category id -> #occurrence of the sentences in it
+    private long[] categoryToSentenceCount;
+    // category id -> #terms in it
+    private long[] categoryToTermCount;
 
     private long totalSentenceCount;
 
     private TermSegmentor termSegmentor;
 
+    // #buckets terms are hashed into, or 0 to keep every term in the vocabulary
+    private final int hashBuckets;
+
+    // log-probabilities precomputed at the end of fit or mapped from a snapshot, used by predict
+    private volatile NaiveBayesModel model;
+
+    // true if the model was mapped from a snapshot, which holds no counts to learn on top of
+    private boolean loadedFromSnapshot;
+
+    // guards the counts; readers never take it, they only read the published model
+    private final Object countsLock = new Object();
+    // guards compile-and-publish, taken before countsLock
+    private final Object publishLock = new Object();
+    // #updates applied to the counts, guarded by countsLock
+    private long countsVersion;
+    // #updates reflected in the published model, guarded by publishLock
+    private long publishedVersion;
+    // true while a background publish of learn() is queued and has not started yet
+    private final AtomicBoolean publishQueued = new AtomicBoolean();
+    // the failure of a background publish not yet reported to the caller
+    private final AtomicReference<Throwable> publishFailure = new AtomicReference<>();
+
+    private final NaiveBayesTextClassifierMetrics metrics = new NaiveBayesTextClassifierMetrics(this);
+
+    // #sentences handed to one task of a concurrent batch prediction
+    private static final int PREDICT_BATCH_SIZE = 256;
+
     public NaiveBayesTextClassifier(TermSegmentor termSegmentor) {
-        this.termGivenCategoryToCount = new HashMap<>();
-        this.categoryToSentenceCount = new HashMap<>();
-        this.categoryToTermCount = new HashMap<>();
-        this.categories = new HashSet<>();
-        this.words = new HashSet<>();
+        this(termSegmentor, 0);
+    }
 
-        this.totalSentenceCount = 0;
+    // hashed mode: terms are hashed into hashBuckets buckets instead of being kept in a vocabulary,
+    // so the counts and the model are bounded by hashBuckets * #categories however many distinct terms arrive
+    public NaiveBayesTextClassifier(TermSegmentor termSegmentor, int hashBuckets) {
+        assert hashBuckets >= 0;
+        clearCounts();
         this.termSegmentor = termSegmentor;
+        this.hashBuckets = hashBuckets;
     }
 
     public NaiveBayesTextClassifier() {
-        this.termGivenCategoryToCount = new HashMap<>();
-        this.categoryToSentenceCount = new HashMap<>();
-        this.categoryToTermCount = new HashMap<>();
-        this.categories = new HashSet<>();
-        this.words = new HashSet<>();
+        this(new TermSegmentor());
+    }
+
+    private void clearCounts() {
+        this.termGivenCategoryToCount = new IntCountMap[8];
+        this.categoryToSentenceCount = new long[8];
+        this.categoryToTermCount = new long[8];
+        this.categories = new Vocabulary();
+        this.words = new Vocabulary();
 
         this.totalSentenceCount = 0;
-        this.termSegmentor = new TermSegmentor();
+        this.loadedFromSnapshot = false;
     }
 
+    // train from scratch, discarding whatever was learned before
     public void fit(List<String> sentences, List<String> targets) {
         assert sentences.size() == targets.size();
 
-        this.totalSentenceCount = sentences.size();
-        for (int i = 0; i < sentences.size(); i++) {
-            List<String> terms = termSegmentor.segmentSentence(sentences.get(i));
-            String category = targets.get(i);
+        synchronized (countsLock) {
+            clearCounts();
+            for (int i = 0; i < sentences.size(); i++) {
+                List<String> terms = termSegmentor.segmentSentence(sentences.get(i));
+                learnTerms(terms, targets.get(i));
+            }
+            this.countsVersion++;
+        }
+        if (Instrumentation.ENABLED) {
+            metrics.recordFit(sentences.size());
+        }
+        publish();
+    }
+
+    // train from scratch on sentences that are already segmented, e.g. from a TokenizedCorpus
+    public void fitSegmented(List<List<String>> termsList, List<String> targets) {
+        assert termsList.size() == targets.size();
+
+        synchronized (countsLock) {
+            clearCounts();
+            for (int i = 0; i < termsList.size(); i++) {
+                learnTerms(termsList.get(i), targets.get(i));
+            }
+            this.countsVersion++;
+        }
+        if (Instrumentation.ENABLED) {
+            metrics.recordFit(termsList.size());
+        }
+        publish();
+    }
+
+    // train from scratch on a stream of (sentence, category) examples, e.g. CorpusReader.stream()
+    // only the counts are kept, so memory is bounded by the model rather than by the corpus;
+    // a parallel stream is counted into partial classifiers merged in encounter order, like fit on a pool
+    public void fit(Stream<Map.Entry<String, String>> examples) {
+        NaiveBayesTextClassifier counts = examples.collect(
+                () -> new NaiveBayesTextClassifier(termSegmentor, hashBuckets),
+                (partial, example) -> partial.learnTerms(termSegmentor.segmentSentence(example.getKey()), example.getValue()),
+                NaiveBayesTextClassifier::mergeCounts);
+
+        synchronized (countsLock) {
+            clearCounts();
+            mergeCounts(counts);
+            this.countsVersion++;
+        }
+        if (Instrumentation.ENABLED) {
+            metrics.recordFit(counts.totalSentenceCount);
+        }
+        publish();
+    }
+
+    // train from scratch on a stream of examples whose counts may not fit on the heap: counts beyond
+    // memoryBudgetBytes are spilled to sorted runs in spillDirectory and merged into the model, see OutOfCoreTrainer
+    // the model is the one fit would publish, but like a loaded snapshot the classifier keeps no counts,
+    // so it cannot partialFit, learn or merge afterwards
+    public void fitOutOfCore(Stream<Map.Entry<String, String>> examples, File spillDirectory, long memoryBudgetBytes)
+            throws IOException {
+        if (hashBuckets > 0) {
+            throw new IllegalStateException("hashed counts are bounded by their buckets and never need to spill");
+        }
+        CompiledNaiveBayesModel compiledModel;
+        try (OutOfCoreTrainer trainer = new OutOfCoreTrainer(spillDirectory, memoryBudgetBytes)) {
+            trainer.learnAll(examples, termSegmentor);
+            compiledModel = trainer.finish();
+        }
+        adoptSnapshot(compiledModel, compiledModel.getTotalSentenceCount());
+        if (Instrumentation.ENABLED) {
+            metrics.recordFit(compiledModel.getTotalSentenceCount());
+        }
+    }
+
+    // add examples to the counts learned so far, while other threads keep predicting
+    public void partialFit(List<String> sentences, List<String> targets) {
+        assert sentences.size() == targets.size();
+
+        // segmentation is the expensive part, so it runs before taking the lock
+        List<List<String>> termsList = termSegmentor.segmentSentences(sentences);
+        synchronized (countsLock) {
+            checkCountsAvailable();
+            for (int i = 0; i < termsList.size(); i++) {
+                learnTerms(termsList.get(i), targets.get(i));
+            }
+            this.countsVersion++;
+        }
+        if (Instrumentation.ENABLED) {
+            metrics.recordUpdate(termsList.size());
+        }
+        publish();
+    }
+
+    // add one labelled example, e.g. from user feedback
+    // the example is counted at once and published in the background: a publish queued or compiling
+    // absorbs every example counted before it starts, so the model trails the counts by one compilation
+    public void learn(String sentence, String category) {
+        checkPublishFailure();
+        List<String> terms = termSegmentor.segmentSentence(sentence);
+        synchronized (countsLock) {
+            checkCountsAvailable();
+            learnTerms(terms, category);
+            this.countsVersion++;
+        }
+        if (Instrumentation.ENABLED) {
+            metrics.recordUpdate(1);
+        }
+        if (publishQueued.compareAndSet(false, true)) {
+            ForkJoinPool.commonPool().execute(() -> {
+                // examples counted from here on queue the next publish
+                publishQueued.set(false);
+                try {
+                    publish();
+                } catch (RuntimeException | Error e) {
+                    // the pool would drop it; the first failure is kept until the caller is told
+                    publishFailure.compareAndSet(null, e);
+                }
+            });
+        }
+    }
+
+    // publish every update counted so far, e.g. the examples of learn() before reading the model back
+    public void flush() {
+        checkPublishFailure();
+        publish();
+    }
+
+    private void checkPublishFailure() {
+        Throwable failure = publishFailure.getAndSet(null);
+        if (failure != null) {
+            throw new IllegalStateException("a background publish of learned examples failed", failure);
+        }
+    }
+
+    private void checkCountsAvailable() {
+        if (loadedFromSnapshot) {
+            throw new IllegalStateException("a classifier loaded from a snapshot holds no counts to learn on");
+        }
+    }
+
+    // recompile the counts and publish the result to readers
+    // a writer whose update was already compiled by a concurrent writer's publish returns at once
+    private void publish() {
+        synchronized (publishLock) {
+            NaiveBayesModel compiledModel;
+            long version;
+            synchronized (countsLock) {
+                if (publishedVersion == countsVersion) {
+                    return;
+                }
+                long start = Instrumentation.startNanos();
+                compiledModel = compile();
+                if (Instrumentation.ENABLED) {
+                    metrics.recordCompile(System.nanoTime() - start);
+                }
+                version = countsVersion;
+            }
+            this.model = compiledModel;
+            this.publishedVersion = version;
+        }
+    }
+
+    // compile the counts into a CompactNaiveBayesModel and publish it in place of the full model
+    // terms occurring fewer than minCount times, or whose log-likelihoods spread less than minSpread nats
+    // across the categories, are pruned and scored as unseen; the counts are kept whole,
+    // so the next update publishes a full model again
+    public CompactNaiveBayesModel compact(int minCount, double minSpread, CompactNaiveBayesModel.Precision precision) {
+        checkCountsAvailable();
+        if (hashBuckets > 0) {
+            throw new IllegalStateException("a hashed model has no terms to prune");
+        }
+        synchronized (publishLock) {
+            CompiledNaiveBayesModel compiledModel;
+            int[] termCounts;
+            long version;
+            synchronized (countsLock) {
+                compiledModel = (CompiledNaiveBayesModel) compile();
+                termCounts = new int[words.size()];
+                for (int categoryId = 0; categoryId < categories.size(); categoryId++) {
+                    IntCountMap categoryTermCounts = termGivenCategoryToCount[categoryId];
+                    for (int slot = 0; slot < categoryTermCounts.capacity(); slot++) {
+                        int termId = categoryTermCounts.keyAt(slot);
+                        if (termId >= 0 && categoryTermCounts.countAt(slot) > 0) {
+                            termCounts[termId] += categoryTermCounts.countAt(slot);
+                        }
+                    }
+                }
+                version = countsVersion;
+            }
+            CompactNaiveBayesModel compactModel = CompactNaiveBayesModel.compact(compiledModel, termCounts,
+                    minCount, minSpread, precision);
+            this.model = compactModel;
+            this.publishedVersion = version;
+            return compactModel;
+        }
+    }
+
+    // fit on a fork/join pool: the corpus is split into shards, each shard is segmented and counted
+    // into its own partial classifier, and the partial counts are merged back in shard order,
+    // so the result is identical to the sequential fit
+    public void fit(List<String> sentences, List<String> targets, ForkJoinPool pool) {
+        assert sentences.size() == targets.size();
+
+        int shardSize = Math.max(1, sentences.size() / (pool.getParallelism() * 4));
+        NaiveBayesTextClassifier counts = pool.invoke(new ShardFitTask(sentences, targets, 0, sentences.size(), shardSize));
+
+        synchronized (countsLock) {
+            clearCounts();
+            mergeCounts(counts);
+            this.countsVersion++;
+        }
+        if (Instrumentation.ENABLED) {
+            metrics.recordFit(counts.totalSentenceCount);
+        }
+        publish();
+    }
+
+    private class ShardFitTask extends RecursiveTask<NaiveBayesTextClassifier> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> sentences;
+        private final List<String> targets;
+        private final int from;
+        private final int to;
+        private final int shardSize;
+
+        ShardFitTask(List<String> sentences, List<String> targets, int from, int to, int shardSize) {
+            this.sentences = sentences;
+            this.targets = targets;
+            this.from = from;
+            this.to = to;
+            this.shardSize = shardSize;
+        }
+
+        @Override
+        protected NaiveBayesTextClassifier compute() {
+            if (to - from <= shardSize) {
+                NaiveBayesTextClassifier shard = new NaiveBayesTextClassifier(termSegmentor, hashBuckets);
+                for (int i = from; i < to; i++) {
+                    shard.learnTerms(termSegmentor.segmentSentence(sentences.get(i)), targets.get(i));
+                }
+                return shard;
+            }
+            int middle = (from + to) >>> 1;
+            ShardFitTask left = new ShardFitTask(sentences, targets, from, middle, shardSize);
+            ShardFitTask right = new ShardFitTask(sentences, targets, middle, to, shardSize);
+            right.fork();
+            NaiveBayesTextClassifier merged = left.compute();
+            merged.mergeCounts(right.join());
+            return merged;
+        }
+    }
+
+    // add all the counts of another classifier to this one and recompile
+    // naive Bayes counts are additive, so fitting two halves of a corpus and merging them
+    // gives the same model as fitting the whole corpus
+    // the other classifier must not be written to while it is merged
+    public void merge(NaiveBayesTextClassifier other) {
+        synchronized (countsLock) {
+            checkCountsAvailable();
+            other.checkCountsAvailable();
+            mergeCounts(other);
+            this.countsVersion++;
+        }
+        if (Instrumentation.ENABLED) {
+            metrics.recordUpdate(other.totalSentenceCount);
+        }
+        publish();
+    }
+
+    // terms and categories of the other classifier are interned in their id order,
+    // so merging partial counts in corpus order reproduces the ids of a sequential fit
+    void mergeCounts(NaiveBayesTextClassifier other) {
+        checkSameHashing(other);
+        int[] termIdMap = new int[hashBuckets > 0 ? hashBuckets : other.words.size()];
+        for (int termId = 0; termId < termIdMap.length; termId++) {
+            termIdMap[termId] = hashBuckets > 0 ? termId : this.words.intern(other.words.get(termId));
+        }
+        for (int otherCategoryId = 0; otherCategoryId < other.categories.size(); otherCategoryId++) {
+            int categoryId = categoryIdOf(other.categories.get(otherCategoryId));
+            IntCountMap termCounts = this.termGivenCategoryToCount[categoryId];
+            IntCountMap otherTermCounts = other.termGivenCategoryToCount[otherCategoryId];
+            for (int slot = 0; slot < otherTermCounts.capacity(); slot++) {
+                int otherTermId = otherTermCounts.keyAt(slot);
+                if (otherTermId >= 0) {
+                    termCounts.add(termIdMap[otherTermId], otherTermCounts.countAt(slot));
+                }
+            }
+            this.categoryToSentenceCount[categoryId] += other.categoryToSentenceCount[otherCategoryId];
+            this.categoryToTermCount[categoryId] += other.categoryToTermCount[otherCategoryId];
+        }
+        this.totalSentenceCount += other.totalSentenceCount;
+    }
+
+    // take the counts of another classifier, fitted on a subset of this one's examples, away from this one
+    // e.g. a cross-validation fold model is the full corpus minus the held-out fold
+    public void subtract(NaiveBayesTextClassifier other) {
+        synchronized (countsLock) {
+            checkCountsAvailable();
+            other.checkCountsAvailable();
+            subtractCounts(other);
+            this.countsVersion++;
+        }
+        publish();
+    }
+
+    // the counts are checked to be a subset of this classifier's before any of them is changed
+    void subtractCounts(NaiveBayesTextClassifier other) {
+        checkSameHashing(other);
+        int[] termIdMap = new int[hashBuckets > 0 ? hashBuckets : other.words.size()];
+        for (int termId = 0; termId < termIdMap.length; termId++) {
+            termIdMap[termId] = hashBuckets > 0 ? termId : this.words.indexOf(other.words.get(termId));
+        }
+        int[] categoryIdMap = new int[other.categories.size()];
+        for (int otherCategoryId = 0; otherCategoryId < categoryIdMap.length; otherCategoryId++) {
+            int categoryId = this.categories.indexOf(other.categories.get(otherCategoryId));
+            if (categoryId < 0) {
+                throw new IllegalArgumentException("cannot subtract the unknown category " + other.categories.get(otherCategoryId));
+            }
+            if (other.categoryToSentenceCount[otherCategoryId] > this.categoryToSentenceCount[categoryId]
+                    || other.categoryToTermCount[otherCategoryId] > this.categoryToTermCount[categoryId]) {
+                throw new IllegalArgumentException("cannot subtract more examples of " + this.categories.get(categoryId)
+                        + " than were counted");
+            }
+            IntCountMap termCounts = this.termGivenCategoryToCount[categoryId];
+            IntCountMap otherTermCounts = other.termGivenCategoryToCount[otherCategoryId];
+            for (int slot = 0; slot < otherTermCounts.capacity(); slot++) {
+                int otherTermId = otherTermCounts.keyAt(slot);
+                if (otherTermId >= 0 && (termIdMap[otherTermId] < 0
+                        || otherTermCounts.countAt(slot) > termCounts.get(termIdMap[otherTermId]))) {
+                    throw new IllegalArgumentException("cannot subtract more occurrences of "
+                            + (hashBuckets > 0 ? "bucket " + otherTermId : other.words.get(otherTermId))
+                            + " in " + this.categories.get(categoryId) + " than were counted");
+                }
+            }
+            categoryIdMap[otherCategoryId] = categoryId;
+        }
+        for (int otherCategoryId = 0; otherCategoryId < categoryIdMap.length; otherCategoryId++) {
+            int categoryId = categoryIdMap[otherCategoryId];
+            IntCountMap termCounts = this.termGivenCategoryToCount[categoryId];
+            IntCountMap otherTermCounts = other.termGivenCategoryToCount[otherCategoryId];
+            for (int slot = 0; slot < otherTermCounts.capacity(); slot++) {
+                int otherTermId = otherTermCounts.keyAt(slot);
+                if (otherTermId >= 0) {
+                    termCounts.add(termIdMap[otherTermId], -otherTermCounts.countAt(slot));
+                }
+            }
+            this.categoryToSentenceCount[categoryId] -= other.categoryToSentenceCount[otherCategoryId];
+            this.categoryToTermCount[categoryId] -= other.categoryToTermCount[otherCategoryId];
+        }
+        this.totalSentenceCount -= other.totalSentenceCount;
+    }
+
+    private void checkSameHashing(NaiveBayesTextClassifier other) {
+        if (this.hashBuckets != other.hashBuckets) {
+            throw new IllegalArgumentException("counts hashed into " + other.hashBuckets
+                    + " buckets cannot be combined with counts hashed into " + this.hashBuckets);
+        }
+    }
+
+    // an independent copy of the counts, sharing the term segmentor; the copy has no model until it is published
+    NaiveBayesTextClassifier copyCounts() {
+        NaiveBayesTextClassifier copy = new NaiveBayesTextClassifier(termSegmentor, hashBuckets);
+        synchronized (countsLock) {
+            checkCountsAvailable();
+            copy.categories = this.categories.copy();
+            copy.words = this.words.copy();
+            copy.termGivenCategoryToCount = new IntCountMap[this.termGivenCategoryToCount.length];
+            for (int categoryId = 0; categoryId < categories.size(); categoryId++) {
+                copy.termGivenCategoryToCount[categoryId] = this.termGivenCategoryToCount[categoryId].copy();
+            }
+            copy.categoryToSentenceCount = this.categoryToSentenceCount.clone();
+            copy.categoryToTermCount = this.categoryToTermCount.clone();
+            copy.totalSentenceCount = this.totalSentenceCount;
+        }
+        return copy;
+    }
+
+    // true if both classifiers hold exactly the same ids and counts
+    boolean hasSameCountsAs(NaiveBayesTextClassifier other) {
+        if (this.totalSentenceCount != other.totalSentenceCount
+                || this.hashBuckets != other.hashBuckets
+                || this.words.size() != other.words.size()
+                || this.categories.size() != other.categories.size()) {
+            return false;
+        }
+        for (int termId = 0; termId < words.size(); termId++) {
+            if (!this.words.get(termId).equals(other.words.get(termId))) {
+                return false;
+            }
+        }
+        for (int categoryId = 0; categoryId < categories.size(); categoryId++) {
+            if (!this.categories.get(categoryId).equals(other.categories.get(categoryId))
+                    || this.categoryToSentenceCount[categoryId] != other.categoryToSentenceCount[categoryId]
+                    || this.categoryToTermCount[categoryId] != other.categoryToTermCount[categoryId]) {
+                return false;
+            }
+            IntCountMap termCounts = this.termGivenCategoryToCount[categoryId];
+            IntCountMap otherTermCounts = other.termGivenCategoryToCount[categoryId];
+            if (termCounts.size() != otherTermCounts.size()) {
+                return false;
+            }
+            for (int slot = 0; slot < termCounts.capacity(); slot++) {
+                int termId = termCounts.keyAt(slot);
+                if (termId >= 0 && otherTermCounts.get(termId) != termCounts.countAt(slot)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // add the counts of one segmented sentence
+    void learnTerms(List<String> terms, String category) {
+        this.totalSentenceCount += 1;
+        int categoryId = categoryIdOf(category);
+        IntCountMap termCounts = this.termGivenCategoryToCount[categoryId];
+        for (String term : terms) {
+            // - for debugging  -
+            //System.out.print(term + '\t');
+            // -    -   -   -   -
+            // this term has one more occurrence
+            termCounts.add(termIdOf(term), 1);
+        }
+        this.categoryToTermCount[categoryId] += terms.size();
+        // this category has one more occurrence
+        this.categoryToSentenceCount[categoryId] += 1;
+    }
+
+    // the id of the term, interning it, or its bucket in hashed mode
+    private int termIdOf(String term) {
+        return hashBuckets > 0 ? HashedNaiveBayesModel.bucketOf(term, hashBuckets) : words.intern(term);
+    }
+
+    // return the id of the category, allocating its count tables if it is new
+    private int categoryIdOf(String category) {
+        int categoryId = categories.intern(category);
+        if (categoryId == termGivenCategoryToCount.length) {
+            int capacity = termGivenCategoryToCount.length * 2;
+            this.termGivenCategoryToCount = Arrays.copyOf(termGivenCategoryToCount, capacity);
+            this.categoryToSentenceCount = Arrays.copyOf(categoryToSentenceCount, capacity);
+            this.categoryToTermCount = Arrays.copyOf(categoryToTermCount, capacity);
+        }
+        if (termGivenCategoryToCount[categoryId] == null) {
+            // new category detected
+            this.termGivenCategoryToCount[categoryId] = new IntCountMap();
+        }
+        return categoryId;
+    }
 
-            this.totalSentenceCount += 1;
-            if (!this.categories.contains(category)) {
-                // new category detected
-                this.categories.add(category);
-                // update termGivenCategoryToCount
-                this.termGivenCategoryToCount.put(category, new HashMap<>());
-                // update categoryToSentenceCount
-                this.categoryToSentenceCount.put(category, 0);
-                // update categoryToTermCount
-                this.categoryToTermCount.put(category, 0);
+    // precompute the log-priors and the log-likelihood of every (term, category) pair seen in training
+    // rows are term ids, or buckets in hashed mode, and each row keeps postings for the categories it was seen under
+    private NaiveBayesModel compile() {
+        // counts taken away by subtract may leave categories without sentences and terms without occurrences;
+        // they are left out, so the model equals one fitted on the remaining examples only
+        int[] liveCategoryIds = new int[categories.size()];
+        int categoryCount = 0;
+        int rowCount = hashBuckets > 0 ? hashBuckets : words.size();
+        boolean[] liveTerms = new boolean[rowCount];
+        int liveTermCount = 0;
+        for (int categoryId = 0; categoryId < categories.size(); categoryId++) {
+            if (categoryToSentenceCount[categoryId] <= 0) {
+                continue;
             }
+            liveCategoryIds[categoryCount++] = categoryId;
+            IntCountMap termCounts = termGivenCategoryToCount[categoryId];
+            for (int slot = 0; slot < termCounts.capacity(); slot++) {
+                int termId = termCounts.keyAt(slot);
+                if (termId >= 0 && termCounts.countAt(slot) > 0 && !liveTerms[termId]) {
+                    liveTerms[termId] = true;
+                    liveTermCount++;
+                }
+            }
+        }
 
-            for (String term : terms) {
-                // - for debugging  -
-                //System.out.print(term + '\t');
-                // -    -   -   -   -
-                if (!words.contains(term)) {
-                    words.add(term);
+        String[] categoryArray = new String[categoryCount];
+        double[] logPriors = new double[categoryCount];
+        for (int c = 0; c < categoryCount; c++) {
+            categoryArray[c] = categories.get(liveCategoryIds[c]);
+            logPriors[c] = Math.log(categoryPriorProbability(liveCategoryIds[c]));
+        }
+
+        double unseenLogLikelihood = Math.log(1.0 / (liveTermCount + 1));
+        // postings grouped by row, each row ascending by category: count them per row, then fill in category order
+        int[] postingOffsets = new int[rowCount + 1];
+        for (int c = 0; c < categoryCount; c++) {
+            IntCountMap termCounts = termGivenCategoryToCount[liveCategoryIds[c]];
+            for (int slot = 0; slot < termCounts.capacity(); slot++) {
+                int termId = termCounts.keyAt(slot);
+                if (termId >= 0 && termCounts.countAt(slot) > 0) {
+                    postingOffsets[termId + 1]++;
                 }
-                if (!this.termGivenCategoryToCount.get(category).containsKey(term)) {
-                    // new term under category found
-                    this.termGivenCategoryToCount.get(category).put(term, 1);
-                } else {
-                    // this term has one more occurrence
-                    int previousOccurrence = termGivenCategoryToCount.get(category).get(term);
-                    this.termGivenCategoryToCount.get(category).put(term, previousOccurrence + 1);
+            }
+        }
+        for (int row = 0; row < rowCount; row++) {
+            postingOffsets[row + 1] += postingOffsets[row];
+        }
+        int[] postingCategories = new int[postingOffsets[rowCount]];
+        double[] postingLogLikelihoods = new double[postingOffsets[rowCount]];
+        int[] nextPostings = Arrays.copyOf(postingOffsets, rowCount);
+        for (int c = 0; c < categoryCount; c++) {
+            IntCountMap termCounts = termGivenCategoryToCount[liveCategoryIds[c]];
+            for (int slot = 0; slot < termCounts.capacity(); slot++) {
+                int termId = termCounts.keyAt(slot);
+                if (termId >= 0 && termCounts.countAt(slot) > 0) {
+                    int posting = nextPostings[termId]++;
+                    postingCategories[posting] = c;
+                    postingLogLikelihoods[posting] =
+                            Math.log(termGivenCategoryPosteriorProbability(termCounts.countAt(slot), liveCategoryIds[c]));
                 }
-                this.categoryToTermCount.put(category, categoryToTermCount.get(category) + 1);
             }
-            // this category has one more occurrence
-            this.categoryToSentenceCount.put(category, categoryToSentenceCount.get(category) + 1);
         }
+        if (hashBuckets == 0) {
+            return new CompiledNaiveBayesModel(categoryArray, logPriors, words.copy(), postingOffsets, postingCategories,
+                    postingLogLikelihoods, unseenLogLikelihood, totalSentenceCount);
+        }
+
+        // a fixed number of buckets is kept as a dense table
+        if ((long) rowCount * categoryCount > Integer.MAX_VALUE) {
+            throw new IllegalStateException(rowCount + " buckets by " + categoryCount + " categories do not fit in one table");
+        }
+        double[] bucketLogLikelihoods = new double[rowCount * categoryCount];
+        Arrays.fill(bucketLogLikelihoods, unseenLogLikelihood);
+        for (int row = 0; row < rowCount; row++) {
+            for (int posting = postingOffsets[row]; posting < postingOffsets[row + 1]; posting++) {
+                bucketLogLikelihoods[row * categoryCount + postingCategories[posting]] = postingLogLikelihoods[posting];
+            }
+        }
+        return new HashedNaiveBayesModel(categoryArray, logPriors, hashBuckets, bucketLogLikelihoods,
+                unseenLogLikelihood, totalSentenceCount);
     }
 
-    private double termGivenCategoryPosteriorProbability(String term, String category) {
-        return ((double) termGivenCategoryToCount.get(category).get(term)) / categoryToTermCount.get(category);
+    private double termGivenCategoryPosteriorProbability(int termCount, int categoryId) {
+        return ((double) termCount) / categoryToTermCount[categoryId];
     }
 
-    private double categoryPriorProbability(String category) {
-        return ((double) categoryToSentenceCount.get(category)) / totalSentenceCount;
+    private double categoryPriorProbability(int categoryId) {
+        return ((double) categoryToSentenceCount[categoryId]) / totalSentenceCount;
     }
 
     // return the log-probability of a sentence
-    private double sentenceLogProbability(String sentence, String category) {
-        double logProbability = Math.log(categoryPriorProbability(category));
+    private double sentenceLogProbability(String sentence, int categoryId) {
+        double logProbability = Math.log(categoryPriorProbability(categoryId));
         // - for debugging  -
         //System.out.println("category prior probability:" + logProbability);
         // -    -   -   -   -
         List<String> terms = termSegmentor.segmentSentence(sentence);
         for (String term : terms) {
             double probability;
-            if (!termGivenCategoryToCount.get(category).containsKey(term)) {
+            int termId = words.indexOf(term);
+            if (termId < 0 || !termGivenCategoryToCount[categoryId].containsKey(termId)) {
                 // new term detected on the fly
                 // smoothen it with a naive prior probability
                 probability = 1.0 / (words.size() + 1);
             } else {
-                probability = termGivenCategoryPosteriorProbability(term, category);
+                probability = termGivenCategoryPosteriorProbability(termGivenCategoryToCount[categoryId].get(termId), categoryId);
             }
             // - for debugging  -
             //System.out.println("probability:" + probability);
@@ -116,11 +666,89 @@ public class NaiveBayesTextClassifier {
     }
 
     public String predict(String sentence) {
-        assert !categories.isEmpty();
+        NaiveBayesModel model = this.model;
+        assert model != null;
+        long start = Instrumentation.startNanos();
+        if (streamsTerms(model)) {
+            CompiledNaiveBayesModel.Query query = ((CompiledNaiveBayesModel) model).startQuery();
+            termSegmentor.segment(sentence, query);
+            long scoreStart = Instrumentation.startNanos();
+            int index = query.predictIndex();
+            if (Instrumentation.ENABLED) {
+                long end = System.nanoTime();
+                metrics.recordPrediction(end - scoreStart, end - start);
+            }
+            return index < 0 ? "" : model.getCategory(index);
+        }
+        return predictTerms(model, termSegmentor.segmentSentence(sentence), start);
+    }
+
+    // without a cache to fill, the terms of a sentence can go straight from the tokenizer into the scoring
+    // of the compiled model, skipping the token list, the filtered list and the term strings
+    private boolean streamsTerms(NaiveBayesModel model) {
+        return model instanceof CompiledNaiveBayesModel && termSegmentor.getCache() == null;
+    }
+
+    public String predictSegmented(List<String> terms) {
+        NaiveBayesModel model = this.model;
+        assert model != null;
+        return predictTerms(model, terms, Instrumentation.startNanos());
+    }
+
+    // the k most probable categories of the sentence, the most probable first, with their posterior probabilities
+    public List<Map.Entry<String, Double>> predictTopK(String sentence, int k) {
+        NaiveBayesModel model = this.model;
+        assert model != null;
+        long start = Instrumentation.startNanos();
+        if (streamsTerms(model)) {
+            CompiledNaiveBayesModel.Query query = ((CompiledNaiveBayesModel) model).startQuery();
+            termSegmentor.segment(sentence, query);
+            long scoreStart = Instrumentation.startNanos();
+            List<Map.Entry<String, Double>> topK = query.predictTopK(k);
+            if (Instrumentation.ENABLED) {
+                long end = System.nanoTime();
+                metrics.recordPrediction(end - scoreStart, end - start);
+            }
+            return topK;
+        }
+        return predictTopKTerms(model, termSegmentor.segmentSentence(sentence), k, start);
+    }
+
+    public List<Map.Entry<String, Double>> predictTopKSegmented(List<String> terms, int k) {
+        NaiveBayesModel model = this.model;
+        assert model != null;
+        return predictTopKTerms(model, terms, k, Instrumentation.startNanos());
+    }
+
+    private List<Map.Entry<String, Double>> predictTopKTerms(NaiveBayesModel model, List<String> terms, int k, long start) {
+        long scoreStart = Instrumentation.startNanos();
+        List<Map.Entry<String, Double>> topK = model.predictTopK(terms, k);
+        if (Instrumentation.ENABLED) {
+            long end = System.nanoTime();
+            metrics.recordPrediction(end - scoreStart, end - start);
+        }
+        return topK;
+    }
+
+    // score the terms against the model, recording the scoring latency and the prediction latency since start
+    private String predictTerms(NaiveBayesModel model, List<String> terms, long start) {
+        long scoreStart = Instrumentation.startNanos();
+        String prediction = model.predict(terms);
+        if (Instrumentation.ENABLED) {
+            long end = System.nanoTime();
+            metrics.recordPrediction(end - scoreStart, end - start);
+        }
+        return prediction;
+    }
+
+    // reference prediction straight from the counts, segmenting the sentence once per category
+    String predictByCounts(String sentence) {
+        assert !categories.isEmpty() && hashBuckets == 0;
         double maxLogProbability = -Double.MAX_VALUE;
         String bestPrediction = "";
-        for (String category : categories) {
-            double logProbability = sentenceLogProbability(sentence, category);
+        for (int categoryId = 0; categoryId < categories.size(); categoryId++) {
+            String category = categories.get(categoryId);
+            double logProbability = sentenceLogProbability(sentence, categoryId);
             // - for debugging  -
             //System.out.print(category + "\t" + logProbability + "\n");
             // -    -   -   -   -
@@ -143,97 +771,284 @@ public class NaiveBayesTextClassifier {
         return predictions;
     }
 
-    private List<Double> scoreF1(Map<String, Map<String, Integer>> confusionMap) {
-        List<Double> F1s = new ArrayList<>();
-        List<Double> recalls = scoreRecall(confusionMap);
-        List<Double> precisions = scorePrecision(confusionMap);
-        for (int i = 0; i < categories.size(); i++) {
-            double recall = recalls.get(i);
-            double precision = precisions.get(i);
-            double F1 = 2 * recall * precision / (recall + precision);
-            F1s.add(F1);
-        }
-        return F1s;
-    }
+    // predict on the executor, one task per batch of sentences
+    // the predictions are returned in the order of the input sentences
+    public List<String> predict(List<String> sentences, ExecutorService executor) {
+        NaiveBayesModel model = this.model;
+        assert model != null;
 
-    private List<Double> scoreRecall(Map<String, Map<String, Integer>> confusionMap) {
-        List<Double> recalls = new ArrayList<>();
-        for (String trueCategory : categories) {
-            int truePositive = 0;
-            int falseNegative = 0;
-            Map<String, Integer> subConfusionMap = confusionMap.get(trueCategory);
-            for (String predictedCategory : categories) {
-                if (!predictedCategory.equals(trueCategory)) {
-                    falseNegative += subConfusionMap.get(predictedCategory);
-                } else {
-                    truePositive += subConfusionMap.get(predictedCategory);
+        String[] predictions = new String[sentences.size()];
+        List<Future<?>> futures = new ArrayList<>();
+        for (int from = 0; from < sentences.size(); from += PREDICT_BATCH_SIZE) {
+            int batchFrom = from;
+            int batchTo = Math.min(sentences.size(), from + PREDICT_BATCH_SIZE);
+            futures.add(executor.submit(() -> {
+                for (int i = batchFrom; i < batchTo; i++) {
+                    long start = Instrumentation.startNanos();
+                    predictions[i] = predictTerms(model, termSegmentor.segmentSentence(sentences.get(i)), start);
                 }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
             }
-            recalls.add(((double) truePositive) / (truePositive + falseNegative));
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("batch prediction interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("batch prediction failed", e.getCause());
         }
-        return recalls;
+        // Future.get() orders the writes of each batch before the reads below
+        return Arrays.asList(predictions);
+    }
+
+    // predict every test sentence once and compute all the metrics from one dense confusion matrix
+    public EvaluationReport evaluate(List<String> sentences, List<String> targets) {
+        return evaluate(sentences, null, targets, null);
     }
 
-    private List<Double> scorePrecision(Map<String, Map<String, Integer>> confusionMap) {
-        List<Double> precisions = new ArrayList<>();
-        for (String predictedCategory : categories) {
-            int truePositive = 0;
-            int falsePositive = 0;
-            for (String trueCategory : categories) {
-                Map<String, Integer> subConfusionMap = confusionMap.get(trueCategory);
-                if (!predictedCategory.equals(trueCategory)) {
-                    falsePositive += subConfusionMap.get(predictedCategory);
-                } else {
-                    truePositive += subConfusionMap.get(predictedCategory);
+    // the test sentences are segmented and predicted on the executor
+    public EvaluationReport evaluate(List<String> sentences, List<String> targets, ExecutorService executor) {
+        return evaluate(sentences, null, targets, executor);
+    }
+
+    public EvaluationReport evaluateSegmented(List<List<String>> termsList, List<String> targets) {
+        return evaluate(null, termsList, targets, null);
+    }
+
+    // exactly one of sentences and termsList is given
+    private EvaluationReport evaluate(List<String> sentences, List<List<String>> termsList, List<String> targets,
+                                      ExecutorService executor) {
+        NaiveBayesModel model = this.model;
+        assert model != null;
+        int sentenceCount = targets.size();
+        assert (sentences != null ? sentences.size() : termsList.size()) == sentenceCount;
+
+        long start = System.nanoTime();
+        // the model's categories keep their indices, so predictions index the matrix directly
+        Vocabulary evaluationCategories = new Vocabulary(model.getCategoryCount());
+        for (int c = 0; c < model.getCategoryCount(); c++) {
+            evaluationCategories.intern(model.getCategory(c));
+        }
+        int[] targetIndices = new int[sentenceCount];
+        for (int i = 0; i < sentenceCount; i++) {
+            targetIndices[i] = evaluationCategories.intern(targets.get(i));
+        }
+
+        int categoryCount = evaluationCategories.size();
+        int[][] confusionMatrix = new int[categoryCount][categoryCount];
+        long[] nanos = new long[2];
+        List<Future<?>> futures = new ArrayList<>();
+        for (int from = 0; from < sentenceCount; from += PREDICT_BATCH_SIZE) {
+            int batchFrom = from;
+            int batchTo = Math.min(sentenceCount, from + PREDICT_BATCH_SIZE);
+            Runnable batch = () -> {
+                int[][] batchConfusionMatrix = new int[categoryCount][categoryCount];
+                long segmentationNanos = 0;
+                long scoringNanos = 0;
+                for (int i = batchFrom; i < batchTo; i++) {
+                    long segmentStart = System.nanoTime();
+                    List<String> terms = termsList != null ? termsList.get(i) : termSegmentor.segmentSentence(sentences.get(i));
+                    long scoreStart = System.nanoTime();
+                    int predicted = model.predictIndex(terms);
+                    long scoreEnd = System.nanoTime();
+                    segmentationNanos += scoreStart - segmentStart;
+                    scoringNanos += scoreEnd - scoreStart;
+                    if (Instrumentation.ENABLED) {
+                        metrics.recordPrediction(scoreEnd - scoreStart, scoreEnd - segmentStart);
+                    }
+                    if (predicted >= 0) {
+                        batchConfusionMatrix[targetIndices[i]][predicted]++;
+                    }
+                }
+                synchronized (confusionMatrix) {
+                    for (int t = 0; t < categoryCount; t++) {
+                        for (int p = 0; p < categoryCount; p++) {
+                            confusionMatrix[t][p] += batchConfusionMatrix[t][p];
+                        }
+                    }
+                    nanos[0] += termsList != null ? 0 : segmentationNanos;
+                    nanos[1] += scoringNanos;
                 }
+            };
+            if (executor == null) {
+                batch.run();
+            } else {
+                futures.add(executor.submit(batch));
             }
-            precisions.add(((double) truePositive) / (truePositive + falsePositive));
         }
-        return precisions;
-    }
-
-    // compute the confusion matrix stored in a 2-level map format, so as to be indexed by category names
-    private Map<String, Map<String, Integer>> computeConfusionMatrix(List<String> sentences, List<String> targets) {
-        Map<String, Map<String, Integer>> confusionMap = new HashMap<>();
-        // initialize the map (confusion matrix) of occurrences to be all zeros
-        for (String trueCategory : categories) {
-            Map<String, Integer> subConfusionMap = new HashMap<>();
-            for (String predictedCategory : categories) {
-                subConfusionMap.put(predictedCategory, 0);
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
             }
-            confusionMap.put(trueCategory, subConfusionMap);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("evaluation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("evaluation failed", e.getCause());
         }
 
-        List<String> predictions = predict(sentences);
-        for (int i = 0; i < sentences.size(); i++) {
-            String trueCategory = targets.get(i);
-            String predictedCategory = predictions.get(i);
-            Map<String, Integer> subConfusionMap = confusionMap.get(trueCategory);
-            subConfusionMap.put(predictedCategory, subConfusionMap.get(predictedCategory) + 1);
+        List<String> categoryList = new ArrayList<>(categoryCount);
+        for (String category : evaluationCategories) {
+            categoryList.add(category);
         }
-        return confusionMap;
+        // Future.get() orders the writes of each batch before the reads below
+        return new EvaluationReport(categoryList, confusionMatrix, nanos[0], nanos[1], System.nanoTime() - start);
     }
 
     // scoreType: {"F1", "Recall", "Precision"}
+    // one score per category, in the order of evaluate(sentences, targets).getCategories()
     public List<Double> score(List<String> sentences, List<String> targets, String scoreType) {
-        assert sentences.size() == targets.size();
-        // true category -> predicted category -> #occurrence
-        Map<String, Map<String, Integer>> confusionMatrix = computeConfusionMatrix(sentences, targets);
-
-        if (scoreType.equalsIgnoreCase("F1") || scoreType.equalsIgnoreCase("F1-Score")) {
-            return scoreF1(confusionMatrix);
-        } else if (scoreType.equalsIgnoreCase("Recall")) {
-            return scoreRecall(confusionMatrix);
-        } else if (scoreType.equalsIgnoreCase("Precision")) {
-            return scorePrecision(confusionMatrix);
+        return evaluate(sentences, targets).getScores(scoreType);
+    }
+
+    // scoreType: {"F1", "Recall", "Precision"}
+    // the test sentences are predicted on the executor, or serially if it is null
+    public List<Double> score(List<String> sentences, List<String> targets, String scoreType, ExecutorService executor) {
+        return evaluate(sentences, null, targets, executor).getScores(scoreType);
+    }
+
+    // scoreType: {"F1", "Recall", "Precision"}
+    public List<Double> scoreSegmented(List<List<String>> termsList, List<String> targets, String scoreType) {
+        return evaluateSegmented(termsList, targets).getScores(scoreType);
+    }
+
+    // the categories of the published model, the ones predict can return
+    public List<String> getCategories() {
+        NaiveBayesModel model = this.model;
+        List<String> categoryList = new ArrayList<>();
+        for (int c = 0; model != null && c < model.getCategoryCount(); c++) {
+            categoryList.add(model.getCategory(c));
+        }
+        return categoryList;
+    }
+
+    public NaiveBayesModel getModel() {
+        checkPublishFailure();
+        return this.model;
+    }
+
+    public TermSegmentor getTermSegmentor() {
+        return this.termSegmentor;
+    }
+
+    // latency histograms and counters of prediction and training, see Instrumentation
+    public NaiveBayesTextClassifierMetrics getMetrics() {
+        return metrics;
+    }
+
+    // expose the metrics of this classifier and of its term segmentor through the platform MBean server,
+    // as naivebayes:type=NaiveBayesTextClassifier,name=<name> and naivebayes:type=TermSegmentor,name=<name>
+    public void registerMBeans(String name) throws JMException {
+        Instrumentation.register("NaiveBayesTextClassifier", name, metrics);
+        Instrumentation.register("TermSegmentor", name, termSegmentor.getMetrics());
+    }
+
+    public void unregisterMBeans(String name) throws JMException {
+        Instrumentation.unregister("NaiveBayesTextClassifier", name);
+        Instrumentation.unregister("TermSegmentor", name);
+    }
+
+    // #buckets terms are hashed into, or 0 if every term is kept in the vocabulary
+    public int getHashBuckets() {
+        return hashBuckets;
+    }
+
+    // write the fitted model to a binary snapshot that load() maps back in place
+    public void save(String path) throws IOException {
+        publish();
+        NaiveBayesModel model = this.model;
+        if (model instanceof HashedNaiveBayesModel) {
+            ((HashedNaiveBayesModel) model).write(path);
+        } else if (model instanceof CompiledNaiveBayesModel) {
+            MappedNaiveBayesModel.write((CompiledNaiveBayesModel) model, path);
+        } else if (model instanceof CompactNaiveBayesModel) {
+            throw new IllegalStateException("a compacted model cannot be saved as a snapshot; save before compact()");
         } else {
-            System.out.println("Invalid score type. Returning precision by default.");
-            return scorePrecision(confusionMatrix);
+            throw new IllegalStateException("only a fitted classifier can be saved");
         }
     }
 
-    public List<String> getCategories() {
-        return new ArrayList<>(this.categories);
+    // map a snapshot written by save() and return a classifier ready to predict
+    // the snapshot holds log-probabilities rather than counts, so the loaded classifier can be fitted
+    // from scratch but cannot partialFit, learn or merge
+    // a snapshot of a hashed model is read onto the heap instead, and gives a classifier in hashed mode
+    public static NaiveBayesTextClassifier load(String path, TermSegmentor termSegmentor) throws IOException {
+        NaiveBayesModel snapshotModel;
+        NaiveBayesTextClassifier classifier;
+        long totalSentenceCount;
+        if (HashedNaiveBayesModel.isSnapshot(path)) {
+            HashedNaiveBayesModel hashedModel = HashedNaiveBayesModel.read(path);
+            snapshotModel = hashedModel;
+            classifier = new NaiveBayesTextClassifier(termSegmentor, hashedModel.getBucketCount());
+            totalSentenceCount = hashedModel.getTotalSentenceCount();
+        } else {
+            MappedNaiveBayesModel mappedModel = MappedNaiveBayesModel.open(path);
+            snapshotModel = mappedModel;
+            classifier = new NaiveBayesTextClassifier(termSegmentor);
+            totalSentenceCount = mappedModel.getTotalSentenceCount();
+        }
+        classifier.adoptSnapshot(snapshotModel, totalSentenceCount);
+        return classifier;
+    }
+
+    // drop the counts and predict with the snapshot model from now on
+    // the snapshot counts as a new version of the counts, already published, so that a writer whose update
+    // was counted before the swap finds nothing left to publish instead of compiling the cleared counts
+    private void adoptSnapshot(NaiveBayesModel snapshotModel, long totalSentenceCount) {
+        synchronized (publishLock) {
+            long version;
+            synchronized (countsLock) {
+                clearCounts();
+                for (int c = 0; c < snapshotModel.getCategoryCount(); c++) {
+                    categoryIdOf(snapshotModel.getCategory(c));
+                }
+                this.totalSentenceCount = totalSentenceCount;
+                this.loadedFromSnapshot = true;
+                this.countsVersion++;
+                version = countsVersion;
+            }
+            this.model = snapshotModel;
+            this.publishedVersion = version;
+        }
+    }
+
+    // copy the model into direct memory and drop the counts, so that neither the vocabulary
+    // nor the tables stay on the heap; the classifier then predicts like one loaded from a snapshot,
+    // until it is closed or fitted again
+    public MappedNaiveBayesModel moveOffHeap() throws IOException {
+        synchronized (publishLock) {
+            publish();
+            NaiveBayesModel model = this.model;
+            if (!(model instanceof CompiledNaiveBayesModel)) {
+                throw new IllegalStateException("only an exact compiled model can move off the heap");
+            }
+            CompiledNaiveBayesModel compiledModel = (CompiledNaiveBayesModel) model;
+            MappedNaiveBayesModel offHeapModel = MappedNaiveBayesModel.allocateDirect(compiledModel);
+            adoptSnapshot(offHeapModel, compiledModel.getTotalSentenceCount());
+            return offHeapModel;
+        }
+    }
+
+    // free the memory of a model mapped by load() or moved off the heap; predictions started afterwards
+    // throw IllegalStateException until the classifier is fitted again
+    @Override
+    public void close() {
+        NaiveBayesModel model = this.model;
+        if (model instanceof MappedNaiveBayesModel) {
+            ((MappedNaiveBayesModel) model).close();
+        }
+    }
+
+    public static NaiveBayesTextClassifier load(String path) throws IOException {
+        return load(path, new TermSegmentor());
     }
 
     // unit test
@@ -249,5 +1064,195 @@ public class NaiveBayesTextClassifier {
         NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier();
         classifier.fit(sentences, targets);
         System.out.println(classifier.predict("玉兰油水"));
+
+        // the compiled model must agree with the count-based path
+        String[] queries = {"玉兰油", "玉兰油水", "玉兰", "水", "面霜", ""};
+        for (String query : queries) {
+            String compiled = classifier.predict(query);
+            String byCounts = classifier.predictByCounts(query);
+            System.out.println((compiled.equals(byCounts) ? "√\t" : "X\t") + query + "\t" + compiled + "\t" + byCounts);
+        }
+
+        // a parallel fit must give exactly the counts of a sequential fit
+        Map.Entry<List<String>, List<String>> corpus = new SyntheticCorpusGenerator(7, 2000, 20).generate(5000, 1, 6);
+        NaiveBayesTextClassifier sequential = new NaiveBayesTextClassifier();
+        sequential.fit(corpus.getKey(), corpus.getValue());
+        NaiveBayesTextClassifier parallel = new NaiveBayesTextClassifier();
+        parallel.fit(corpus.getKey(), corpus.getValue(), new ForkJoinPool(4));
+        System.out.println((parallel.hasSameCountsAs(sequential) ? "√\t" : "X\t") + "parallel fit matches sequential fit");
+
+        // single examples share compilations instead of recompiling the model once each
+        NaiveBayesTextClassifier learner = new NaiveBayesTextClassifier();
+        learner.fit(corpus.getKey(), corpus.getValue());
+        NaiveBayesTextClassifier recompiler = new NaiveBayesTextClassifier();
+        recompiler.fit(corpus.getKey(), corpus.getValue());
+        long start = System.nanoTime();
+        for (int i = 0; i < 500; i++) {
+            learner.learn(corpus.getKey().get(i), corpus.getValue().get(i));
+        }
+        learner.flush();
+        long learnNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < 500; i++) {
+            recompiler.partialFit(corpus.getKey().subList(i, i + 1), corpus.getValue().subList(i, i + 1));
+        }
+        long partialFitNanos = System.nanoTime() - start;
+        long learned = ((CompiledNaiveBayesModel) learner.getModel()).getTotalSentenceCount();
+        System.out.println((learned == corpus.getKey().size() + 500 && learner.hasSameCountsAs(recompiler) ? "√\t" : "X\t")
+                + String.format("500 examples learned in %.1f ms, %.1f ms with a compilation each",
+                learnNanos / 1e6, partialFitNanos / 1e6));
+
+        // an example learned but not yet published when an out-of-core fit swaps its model in
+        // must not publish the cleared counts over it; every worker of the common pool is kept busy,
+        // so the publish queued by learn() waits until the fit is done
+        NaiveBayesTextClassifier outOfCore = new NaiveBayesTextClassifier();
+        outOfCore.fit(corpus.getKey(), corpus.getValue());
+        AtomicBoolean blocking = new AtomicBoolean(true);
+        java.util.concurrent.CountDownLatch blocked = new java.util.concurrent.CountDownLatch(
+                ForkJoinPool.commonPool().getParallelism());
+        for (int i = 0; i < ForkJoinPool.commonPool().getParallelism(); i++) {
+            ForkJoinPool.commonPool().execute(() -> {
+                blocked.countDown();
+                while (blocking.get()) {
+                    Thread.yield();
+                }
+            });
+        }
+        try {
+            blocked.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        outOfCore.learn(corpus.getKey().get(0), corpus.getValue().get(0));
+        try {
+            File spillDirectory = java.nio.file.Files.createTempDirectory("spill").toFile();
+            Stream<Map.Entry<String, String>> examples = corpus.getKey().stream()
+                    .map(sentence -> new AbstractMap.SimpleEntry<>(sentence, "护肤"));
+            outOfCore.fitOutOfCore(examples, spillDirectory, 1 << 20);
+            spillDirectory.delete();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        NaiveBayesModel swapped = outOfCore.getModel();
+        blocking.set(false);
+        ForkJoinPool.commonPool().awaitQuiescence(10, java.util.concurrent.TimeUnit.SECONDS);
+        outOfCore.flush();
+        System.out.println((outOfCore.getModel() == swapped && swapped.getCategoryCount() == 1 ? "√\t" : "X\t")
+                + "a pending publish leaves the model of an out-of-core fit in place");
+
+        // a background publish that fails is thrown by the next learn(); here the counts have grown past
+        // what a hashed model can compile into one table, 2^20 buckets by 2^11 categories
+        NaiveBayesTextClassifier oversized = new NaiveBayesTextClassifier(new TermSegmentor(new HashSet<>()), 1 << 20);
+        List<String> categoryNames = new ArrayList<>();
+        for (int i = 0; i < 1 << 11; i++) {
+            categoryNames.add("c" + i);
+        }
+        try {
+            oversized.partialFit(categoryNames, categoryNames);
+        } catch (IllegalStateException e) {
+            // the synchronous publish fails the same way
+        }
+        oversized.learn("玉兰油", "c0");
+        ForkJoinPool.commonPool().awaitQuiescence(10, java.util.concurrent.TimeUnit.SECONDS);
+        Throwable reported = null;
+        try {
+            oversized.learn("玉兰油", "c0");
+        } catch (IllegalStateException e) {
+            reported = e.getCause();
+        }
+        System.out.println((reported instanceof IllegalStateException ? "√\t" : "X\t")
+                + "a failed background publish is reported: " + (reported == null ? "nothing" : reported.getMessage()));
+
+        // a category whose examples are all subtracted is no longer listed
+        NaiveBayesTextClassifier neck = new NaiveBayesTextClassifier();
+        neck.fit(sentences.subList(1, 2), targets.subList(1, 2));
+        classifier.subtract(neck);
+        System.out.println((classifier.getCategories().equals(Collections.singletonList("护肤")) ? "√\t" : "X\t")
+                + "categories after subtraction: " + classifier.getCategories());
+
+        // counts that are not a subset are refused before any count changes
+        NaiveBayesTextClassifier before = classifier.copyCounts();
+        int refused = 0;
+        for (String[] example : new String[][]{{"面霜", "护肤"}, {"玉兰油", "颈部"}, {"玉兰油玉兰油", "护肤"}}) {
+            NaiveBayesTextClassifier unknown = new NaiveBayesTextClassifier();
+            unknown.fit(Collections.singletonList(example[0]), Collections.singletonList(example[1]));
+            try {
+                classifier.subtract(unknown);
+            } catch (IllegalArgumentException e) {
+                refused++;
+            }
+        }
+        System.out.println((refused == 3 && classifier.hasSameCountsAs(before) ? "√\t" : "X\t")
+                + refused + " subtractions of unknown terms, categories and counts refused, counts unchanged");
+
+        // learners keep adding examples while predictors keep reading
+        onlineLearningStressTest(corpus.getKey(), corpus.getValue(), 4, 4);
+    }
+
+    private static void onlineLearningStressTest(List<String> sentences, List<String> targets,
+                                                 int learnerCount, int predictorCount) {
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier();
+        classifier.fit(sentences.subList(0, 100), targets.subList(0, 100));
+        Set<String> knownCategories = new HashSet<>(targets);
+        AtomicBoolean learning = new AtomicBoolean(true);
+        AtomicLong predictions = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < predictorCount; p++) {
+            int offset = p;
+            threads.add(new Thread(() -> {
+                for (int i = offset; learning.get(); i = (i + 1) % sentences.size()) {
+                    String prediction = classifier.predict(sentences.get(i));
+                    if (!knownCategories.contains(prediction)) {
+                        failures.incrementAndGet();
+                    }
+                    predictions.incrementAndGet();
+                }
+            }));
+        }
+        List<Thread> learners = new ArrayList<>();
+        for (int l = 0; l < learnerCount; l++) {
+            int offset = l;
+            learners.add(new Thread(() -> {
+                for (int i = 100 + offset; i < sentences.size(); i += learnerCount * 50) {
+                    // a mix of single examples and small batches
+                    if (i % 2 == 0) {
+                        classifier.learn(sentences.get(i), targets.get(i));
+                    } else {
+                        int to = Math.min(sentences.size(), i + 10);
+                        classifier.partialFit(sentences.subList(i, to), targets.subList(i, to));
+                    }
+                }
+            }));
+        }
+        threads.addAll(learners);
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (Thread learner : learners) {
+                learner.join();
+            }
+            learning.set(false);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            classifier.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        long expectedSentences = 100;
+        for (int l = 0; l < learnerCount; l++) {
+            for (int i = 100 + l; i < sentences.size(); i += learnerCount * 50) {
+                expectedSentences += i % 2 == 0 ? 1 : Math.min(sentences.size(), i + 10) - i;
+            }
+        }
+        long learnedSentences = ((CompiledNaiveBayesModel) classifier.getModel()).getTotalSentenceCount();
+        System.out.println((failures.get() == 0 && learnedSentences == expectedSentences ? "√\t" : "X\t")
+                + "online learning: " + predictions.get() + " concurrent predictions, " + failures.get()
+                + " inconsistent, " + learnedSentences + "/" + expectedSentences + " sentences learned");
     }
 }
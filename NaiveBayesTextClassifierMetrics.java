@@ -0,0 +1,170 @@
+import javax.management.MBeanServer;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Overview:
+// latency and volume of the prediction and training paths of one NaiveBayesTextClassifier,
+// and the size of its published model
+// recording allocates nothing once the counters have settled, see Instrumentation for switching it off
+public class NaiveBayesTextClassifierMetrics implements NaiveBayesTextClassifierMetricsMXBean {
+    private final NaiveBayesTextClassifier classifier;
+    private final LatencyHistogram scoreLatency = new LatencyHistogram();
+    private final LatencyHistogram predictLatency = new LatencyHistogram();
+    private final LatencyHistogram compileLatency = new LatencyHistogram();
+    private final LongAdder predictions = new LongAdder();
+    private final LongAdder trainedSentences = new LongAdder();
+    private final LongAdder fits = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder compiles = new LongAdder();
+
+    NaiveBayesTextClassifierMetrics(NaiveBayesTextClassifier classifier) {
+        this.classifier = classifier;
+    }
+
+    void recordPrediction(long scoreNanos, long predictNanos) {
+        scoreLatency.record(scoreNanos);
+        predictLatency.record(predictNanos);
+        predictions.increment();
+    }
+
+    void recordFit(long sentenceCount) {
+        fits.increment();
+        trainedSentences.add(sentenceCount);
+    }
+
+    void recordUpdate(long sentenceCount) {
+        updates.increment();
+        trainedSentences.add(sentenceCount);
+    }
+
+    void recordCompile(long nanos) {
+        compileLatency.record(nanos);
+        compiles.increment();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getScoreLatency() {
+        return scoreLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getPredictLatency() {
+        return predictLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getCompileLatency() {
+        return compileLatency.snapshot();
+    }
+
+    @Override
+    public long getPredictionCount() {
+        return predictions.sum();
+    }
+
+    @Override
+    public long getTrainedSentenceCount() {
+        return trainedSentences.sum();
+    }
+
+    @Override
+    public long getFitCount() {
+        return fits.sum();
+    }
+
+    @Override
+    public long getUpdateCount() {
+        return updates.sum();
+    }
+
+    @Override
+    public long getCompileCount() {
+        return compiles.sum();
+    }
+
+    @Override
+    public int getVocabularySize() {
+        NaiveBayesModel model = classifier.getModel();
+        return model == null ? 0 : model.getTermCount();
+    }
+
+    @Override
+    public int getCategoryCount() {
+        NaiveBayesModel model = classifier.getModel();
+        return model == null ? 0 : model.getCategoryCount();
+    }
+
+    @Override
+    public long getEstimatedModelBytes() {
+        NaiveBayesModel model = classifier.getModel();
+        return model == null ? 0 : model.estimateBytes();
+    }
+
+    @Override
+    public void reset() {
+        scoreLatency.reset();
+        predictLatency.reset();
+        compileLatency.reset();
+        predictions.reset();
+        trainedSentences.reset();
+        fits.reset();
+        updates.reset();
+        compiles.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "score: " + getScoreLatency() + "\n"
+                + "predict: " + getPredictLatency() + "\n"
+                + "compile: " + getCompileLatency() + "\n"
+                + String.format("predictions: %d\ttrained sentences: %d\tfits: %d\tupdates: %d",
+                getPredictionCount(), getTrainedSentenceCount(), getFitCount(), getUpdateCount()) + "\n"
+                + String.format("vocabulary: %d\tcategories: %d\tmodel: %.1f MB",
+                getVocabularySize(), getCategoryCount(), getEstimatedModelBytes() / 1048576.0);
+    }
+
+    // unit test
+    public static void main(String[] args) throws Exception {
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(7, 5000, 20);
+        Map.Entry<List<String>, List<String>> corpus = generator.generate(5000, 2, 6);
+        TermSegmentor termSegmentor = new TermSegmentor(new HashSet<>(), TokenizerEngine.CHAR_NGRAM, null);
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(termSegmentor);
+        classifier.fit(corpus.getKey(), corpus.getValue());
+        List<String> queries = generator.generate(1000, 1, 4).getKey();
+        for (String query : queries) {
+            classifier.predict(query);
+        }
+        NaiveBayesTextClassifierMetrics metrics = classifier.getMetrics();
+        System.out.println(metrics);
+        System.out.println(termSegmentor.getMetrics());
+        boolean counted = metrics.getPredictionCount() == queries.size() && metrics.getFitCount() == 1
+                && metrics.getTrainedSentenceCount() == corpus.getKey().size() && metrics.getCompileCount() == 1
+                && metrics.getScoreLatency().getCount() == queries.size() && metrics.getEstimatedModelBytes() > 0;
+        System.out.println((counted || !Instrumentation.ENABLED ? "√\t" : "X\t") + "predictions and training counted");
+
+        classifier.registerMBeans("unit-test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        CompositeData scoreLatency = (CompositeData) server.getAttribute(
+                Instrumentation.objectNameOf("NaiveBayesTextClassifier", "unit-test"), "ScoreLatency");
+        Object segmented = server.getAttribute(
+                Instrumentation.objectNameOf("TermSegmentor", "unit-test"), "SegmentedSentenceCount");
+        System.out.println((scoreLatency.get("count").equals(metrics.getPredictionCount())
+                && segmented.equals(termSegmentor.getMetrics().getSegmentedSentenceCount()) ? "√\t" : "X\t")
+                + "metrics readable through JMX");
+        classifier.unregisterMBeans("unit-test");
+
+        // recording must not allocate once warmed up
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < 100000; i++) {
+            metrics.recordPrediction(i, 2 * i);
+        }
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < 1000000; i++) {
+            metrics.recordPrediction(i, 2 * i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        System.out.println((allocated < 1024 ? "√\t" : "X\t") + allocated + " bytes allocated by 1000000 recordings");
+    }
+}
@@ -0,0 +1,35 @@
+// Overview:
+// the JMX view of NaiveBayesTextClassifierMetrics
+public interface NaiveBayesTextClassifierMetricsMXBean {
+    // latency of scoring one segmented sentence against every category
+    LatencyHistogram.Snapshot getScoreLatency();
+
+    // latency of one prediction from the raw sentence, segmentation included
+    LatencyHistogram.Snapshot getPredictLatency();
+
+    // latency of recompiling the counts into a model after training
+    LatencyHistogram.Snapshot getCompileLatency();
+
+    long getPredictionCount();
+
+    // #sentences learned by fit, partialFit, learn and merge
+    long getTrainedSentenceCount();
+
+    // #calls training from scratch
+    long getFitCount();
+
+    // #calls adding to the counts learned so far
+    long getUpdateCount();
+
+    long getCompileCount();
+
+    // #terms and #categories of the published model
+    int getVocabularySize();
+
+    int getCategoryCount();
+
+    // approximate bytes held by the published model, on or off the heap
+    long getEstimatedModelBytes();
+
+    void reset();
+}
@@ -0,0 +1,384 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Overview:
+// counts segmented examples for a naive Bayes model within a memory budget, for corpora whose counts
+// do not fit on the heap: once the counts of the current run outgrow the budget, they are written to
+// the spill directory as a CountRunFile sorted by term and the run starts over empty,
+// and finish() k-way merges the runs into the model, merging in several passes if there are
+// more runs than files it opens at once
+// the heap holds one run of counts, the category totals and, at the end, the model itself;
+// the model is the same as an in-memory fit over the same examples would publish
+// e.g. "java OutOfCoreTrainer data.txt model.bin /tmp/spill 512" trains a snapshot with 512 MB of counts
+public class OutOfCoreTrainer implements Closeable {
+    // runs merged at once; each holds an open file and a read buffer
+    private static final int DEFAULT_MAX_FAN_IN = 64;
+    // heap of a term beyond its table slots: the String and its chars, and its first-seen position
+    private static final int TERM_OVERHEAD_BYTES = 48;
+    // examples segmented together before they are counted in order, the only ones held beyond the run
+    private static final int SEGMENT_BATCH_SIZE = 4096;
+
+    private final File spillDirectory;
+    private final long memoryBudgetBytes;
+    private final int maxFanIn;
+
+    // all the categories in order of first appearance, with the totals of the current run
+    private final Vocabulary categories = new Vocabulary();
+    private long[] runSentenceCounts = new long[8];
+    private long[] runTermCounts = new long[8];
+    private long runSentenceCount;
+
+    // the counts of the current run: terms, where each was first seen, and category id -> term id -> count
+    private Vocabulary runTerms;
+    private long[] runFirstSeen;
+    private IntCountMap[] runCounts;
+    private long runTermBytes;
+    private long runCountBytes;
+
+    // #terms learned so far, the position of the next one
+    private long position;
+    private final List<File> runs = new ArrayList<>();
+    private int spilledRunCount;
+    private long spilledBytes;
+    private boolean finished;
+
+    public OutOfCoreTrainer(File spillDirectory, long memoryBudgetBytes) {
+        this(spillDirectory, memoryBudgetBytes, DEFAULT_MAX_FAN_IN);
+    }
+
+    OutOfCoreTrainer(File spillDirectory, long memoryBudgetBytes, int maxFanIn) {
+        this(spillDirectory, memoryBudgetBytes, maxFanIn, 0);
+    }
+
+    // the first term learned is at firstPosition; trainers of consecutive shards of a corpus are given
+    // increasing first positions, so that their terms keep their order of first appearance when merged
+    OutOfCoreTrainer(File spillDirectory, long memoryBudgetBytes, int maxFanIn, long firstPosition) {
+        assert memoryBudgetBytes > 0 && maxFanIn >= 2 && firstPosition >= 0;
+        this.spillDirectory = spillDirectory;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.maxFanIn = maxFanIn;
+        this.position = firstPosition;
+        startRun();
+    }
+
+    private void startRun() {
+        this.runTerms = new Vocabulary();
+        this.runFirstSeen = new long[16];
+        this.runCounts = new IntCountMap[runSentenceCounts.length];
+        this.runTermBytes = 0;
+        this.runCountBytes = 0;
+        Arrays.fill(runSentenceCounts, 0);
+        Arrays.fill(runTermCounts, 0);
+        this.runSentenceCount = 0;
+    }
+
+    // add the counts of one segmented example, spilling the run if it outgrows the budget
+    public void learnTerms(List<String> terms, String category) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("the trainer has already finished");
+        }
+        int categoryId = categories.intern(category);
+        if (categoryId == runSentenceCounts.length) {
+            int capacity = runSentenceCounts.length * 2;
+            this.runSentenceCounts = Arrays.copyOf(runSentenceCounts, capacity);
+            this.runTermCounts = Arrays.copyOf(runTermCounts, capacity);
+            this.runCounts = Arrays.copyOf(runCounts, capacity);
+        }
+        IntCountMap termCounts = runCounts[categoryId];
+        if (termCounts == null) {
+            termCounts = new IntCountMap();
+            this.runCounts[categoryId] = termCounts;
+            this.runCountBytes += termCounts.estimateBytes();
+        }
+        long countBytes = termCounts.estimateBytes();
+        for (String term : terms) {
+            int termCount = runTerms.size();
+            int termId = runTerms.intern(term);
+            if (termId == termCount) {
+                if (termId == runFirstSeen.length) {
+                    this.runFirstSeen = Arrays.copyOf(runFirstSeen, termId * 2);
+                }
+                runFirstSeen[termId] = position;
+                this.runTermBytes += TERM_OVERHEAD_BYTES + 2L * term.length();
+            }
+            termCounts.add(termId, 1);
+            this.position++;
+        }
+        this.runCountBytes += termCounts.estimateBytes() - countBytes;
+        runTermCounts[categoryId] += terms.size();
+        runSentenceCounts[categoryId] += 1;
+        this.runSentenceCount++;
+
+        if (estimateRunBytes() > memoryBudgetBytes) {
+            spill();
+        }
+    }
+
+    // the heap taken by the counts of the current run
+    long estimateRunBytes() {
+        return runTerms.estimateTableBytes() + runTermBytes + runCountBytes;
+    }
+
+    // write the current run sorted by term, with postings in category order, and start an empty one
+    private void spill() throws IOException {
+        if (runSentenceCount == 0) {
+            return;
+        }
+        int termCount = runTerms.size();
+        int categoryCount = categories.size();
+        int[] postingOffsets = new int[termCount + 1];
+        for (int c = 0; c < categoryCount; c++) {
+            IntCountMap termCounts = runCounts[c];
+            for (int slot = 0; termCounts != null && slot < termCounts.capacity(); slot++) {
+                if (termCounts.keyAt(slot) >= 0) {
+                    postingOffsets[termCounts.keyAt(slot) + 1]++;
+                }
+            }
+        }
+        for (int termId = 0; termId < termCount; termId++) {
+            postingOffsets[termId + 1] += postingOffsets[termId];
+        }
+        int[] postingCategories = new int[postingOffsets[termCount]];
+        int[] postingCounts = new int[postingOffsets[termCount]];
+        int[] nextPostings = Arrays.copyOf(postingOffsets, termCount);
+        for (int c = 0; c < categoryCount; c++) {
+            IntCountMap termCounts = runCounts[c];
+            for (int slot = 0; termCounts != null && slot < termCounts.capacity(); slot++) {
+                int termId = termCounts.keyAt(slot);
+                if (termId >= 0) {
+                    int posting = nextPostings[termId]++;
+                    postingCategories[posting] = c;
+                    postingCounts[posting] = termCounts.countAt(slot);
+                }
+            }
+        }
+        this.runCounts = null;
+
+        String[] sortedTerms = new String[termCount];
+        for (int termId = 0; termId < termCount; termId++) {
+            sortedTerms[termId] = runTerms.get(termId);
+        }
+        Arrays.sort(sortedTerms);
+
+        File run = File.createTempFile("run-", ".run", spillDirectory);
+        runs.add(run);
+        int[] termCategories = new int[categoryCount];
+        int[] termCounts = new int[categoryCount];
+        try (CountRunFile.Writer writer = new CountRunFile.Writer(run)) {
+            writer.begin(new CountRunFile.Header(categories, runSentenceCounts, runTermCounts, runSentenceCount));
+            for (String term : sortedTerms) {
+                int termId = runTerms.indexOf(term);
+                int from = postingOffsets[termId];
+                int postingCount = postingOffsets[termId + 1] - from;
+                System.arraycopy(postingCategories, from, termCategories, 0, postingCount);
+                System.arraycopy(postingCounts, from, termCounts, 0, postingCount);
+                writer.accept(term, runFirstSeen[termId], termCategories, termCounts, postingCount);
+            }
+        }
+        this.spilledRunCount++;
+        this.spilledBytes += run.length();
+        startRun();
+    }
+
+    // spill what is left and merge every run into the model; the runs are deleted as they are merged
+    public CompiledNaiveBayesModel finish() throws IOException {
+        reduceRuns();
+        CompiledNaiveBayesModel model = CountRunFile.compile(runs);
+        close();
+        return model;
+    }
+
+    // spill what is left and merge every run into one run at the given path, the partial counts of
+    // this trainer's examples, which CountRunFile can merge with the partial counts of other trainers
+    public void finish(File partialCounts) throws IOException {
+        reduceRuns();
+        try (CountRunFile.Writer writer = new CountRunFile.Writer(partialCounts)) {
+            CountRunFile.merge(runs, writer);
+        }
+        close();
+    }
+
+    // leave at most maxFanIn runs to merge at the end
+    private void reduceRuns() throws IOException {
+        if (finished) {
+            throw new IllegalStateException("the trainer has already finished");
+        }
+        this.finished = true;
+        spill();
+        this.runTerms = null;
+        List<File> lastRuns = CountRunFile.reduce(new ArrayList<>(runs), maxFanIn, spillDirectory, true, null);
+        runs.clear();
+        runs.addAll(lastRuns);
+    }
+
+    // #runs written so far, including the last one written by finish()
+    public int getSpilledRunCount() {
+        return spilledRunCount;
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    // delete the runs still on disk, e.g. after a failure part way
+    @Override
+    public void close() {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    // segment and learn a stream of (sentence, category) examples in encounter order
+    // the examples are read in order and taken in batches of SEGMENT_BATCH_SIZE; a batch of a parallel stream
+    // is segmented on every core and then counted on this thread, so the heap holds one batch beyond the run,
+    // where forEachOrdered would buffer the segmented examples of every split waiting for the ones before it
+    public void learnAll(Stream<Map.Entry<String, String>> examples, TermSegmentor termSegmentor) throws IOException {
+        boolean parallel = examples.isParallel();
+        List<Map.Entry<String, String>> batch = new ArrayList<>(SEGMENT_BATCH_SIZE);
+        try {
+            // pushed rather than pulled through iterator(), which buffers everything a flatMap source expands to
+            examples.sequential().forEach(example -> {
+                batch.add(example);
+                if (batch.size() == SEGMENT_BATCH_SIZE) {
+                    learnBatch(batch, parallel, termSegmentor);
+                }
+            });
+            learnBatch(batch, parallel, termSegmentor);
+        } catch (UncheckedIOException e) {
+            // a failure to read the examples or to spill a run
+            throw e.getCause();
+        }
+    }
+
+    private void learnBatch(List<Map.Entry<String, String>> batch, boolean parallel, TermSegmentor termSegmentor) {
+        Stream<Map.Entry<String, String>> batchStream = parallel ? batch.parallelStream() : batch.stream();
+        List<List<String>> termsList = batchStream.map(example -> termSegmentor.segmentSentence(example.getKey()))
+                .collect(Collectors.toList());
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                learnTerms(termsList.get(i), batch.get(i).getValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        batch.clear();
+    }
+
+    // unit test, or train a snapshot: <corpus> <snapshot> <spill directory> <budget MB> [tokenizer]
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 4) {
+            long start = System.nanoTime();
+            TermSegmentor termSegmentor = args.length > 4
+                    ? new TermSegmentor(TokenizerEngine.valueOf(args[4]), null) : new TermSegmentor();
+            try (OutOfCoreTrainer trainer = new OutOfCoreTrainer(new File(args[2]), Long.parseLong(args[3]) << 20)) {
+                try (CorpusReader corpusReader = new CorpusReader(args[0])) {
+                    trainer.learnAll(corpusReader.stream().parallel(), termSegmentor);
+                }
+                CompiledNaiveBayesModel model = trainer.finish();
+                MappedNaiveBayesModel.write(model, args[1]);
+                System.out.println(String.format("%d sentences, %d terms, %d runs, %.1f MB spilled in %.1f s",
+                        model.getTotalSentenceCount(), model.getTermCount(), trainer.getSpilledRunCount(),
+                        trainer.getSpilledBytes() / 1048576.0, (System.nanoTime() - start) / 1e9));
+            }
+            return;
+        }
+
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(23, 20000, 40);
+        Map.Entry<List<List<String>>, List<String>> corpus = generator.generateSegmented(60000, 1, 8);
+        NaiveBayesTextClassifier inMemory = new NaiveBayesTextClassifier(new TermSegmentor(new HashSet<>()));
+        inMemory.fitSegmented(corpus.getKey(), corpus.getValue());
+
+        // a budget far below the counts, and a small fan-in so that the runs are merged in several passes
+        File spillDirectory = java.nio.file.Files.createTempDirectory("spill").toFile();
+        CompiledNaiveBayesModel model;
+        int runCount;
+        try (OutOfCoreTrainer trainer = new OutOfCoreTrainer(spillDirectory, 256 << 10, 4)) {
+            for (int i = 0; i < corpus.getKey().size(); i++) {
+                trainer.learnTerms(corpus.getKey().get(i), corpus.getValue().get(i));
+                if (trainer.estimateRunBytes() > 256 << 10) {
+                    System.out.println("X\trun of " + trainer.estimateRunBytes() + " bytes kept over the budget");
+                }
+            }
+            model = trainer.finish();
+            runCount = trainer.getSpilledRunCount();
+            System.out.println(String.format("%d runs, %.1f MB spilled", runCount, trainer.getSpilledBytes() / 1048576.0));
+        }
+        String[] leftOver = spillDirectory.list();
+        System.out.println((runCount > 16 && leftOver != null && leftOver.length == 0 ? "√\t" : "X\t")
+                + runCount + " runs merged in several passes, " + (leftOver == null ? 0 : leftOver.length) + " files left behind");
+        spillDirectory.delete();
+
+        // the same categories, terms and log-probabilities in the same order, down to the snapshot bytes
+        File expected = File.createTempFile("in-memory", ".bin");
+        File actual = File.createTempFile("out-of-core", ".bin");
+        expected.deleteOnExit();
+        actual.deleteOnExit();
+        MappedNaiveBayesModel.write((CompiledNaiveBayesModel) inMemory.getModel(), expected.getPath());
+        MappedNaiveBayesModel.write(model, actual.getPath());
+        boolean identical = Arrays.equals(java.nio.file.Files.readAllBytes(expected.toPath()),
+                java.nio.file.Files.readAllBytes(actual.toPath()));
+        System.out.println((identical ? "√\t" : "X\t") + "out-of-core model matches the in-memory fit, "
+                + model.getTermCount() + " terms and " + model.getPostingCount() + " postings in " + actual.length() + " bytes");
+
+        int mismatches = 0;
+        for (List<String> query : generator.generateSegmented(2000, 1, 4).getKey()) {
+            if (!model.predictTopK(query, 3).equals(inMemory.getModel().predictTopK(query, 3))) {
+                mismatches++;
+            }
+        }
+        System.out.println((mismatches == 0 ? "√\t" : "X\t") + mismatches + " top-3 predictions differ");
+
+        // fitOutOfCore from a data file, segmenting in parallel, publishes the model of a streaming fit
+        Map.Entry<List<String>, List<String>> examples = generator.generate(20000, 1, 8);
+        File dataFile = File.createTempFile("corpus", ".txt");
+        dataFile.deleteOnExit();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < examples.getKey().size(); i++) {
+            content.append(examples.getKey().get(i)).append(" ||| ").append(examples.getValue().get(i)).append("\n");
+        }
+        java.nio.file.Files.write(dataFile.toPath(), content.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        TermSegmentor termSegmentor = new TermSegmentor(new HashSet<>(), TokenizerEngine.CHAR_NGRAM, null);
+        NaiveBayesTextClassifier streamFit = new NaiveBayesTextClassifier(termSegmentor);
+        NaiveBayesTextClassifier outOfCoreFit = new NaiveBayesTextClassifier(termSegmentor);
+        try (CorpusReader reader = new CorpusReader(dataFile.getPath(), 4096)) {
+            streamFit.fit(reader.stream().parallel());
+        }
+        spillDirectory = java.nio.file.Files.createTempDirectory("spill").toFile();
+        try (CorpusReader reader = new CorpusReader(dataFile.getPath(), 4096)) {
+            outOfCoreFit.fitOutOfCore(reader.stream().parallel(), spillDirectory, 128 << 10);
+        }
+        spillDirectory.delete();
+        streamFit.save(expected.getPath());
+        outOfCoreFit.save(actual.getPath());
+        identical = Arrays.equals(java.nio.file.Files.readAllBytes(expected.toPath()),
+                java.nio.file.Files.readAllBytes(actual.toPath()));
+        System.out.println((identical ? "√\t" : "X\t") + "fitOutOfCore on a data file matches a streaming fit");
+
+        // a parallel stream is counted in order while at most a batch of its examples is read but not yet counted,
+        // what the heap holds beyond the run; forEachOrdered held the examples of every split ahead of the first
+        // each example is four words, so the trainer has counted position / 4 of them
+        java.util.concurrent.atomic.AtomicLong readCount = new java.util.concurrent.atomic.AtomicLong();
+        java.util.concurrent.atomic.AtomicLong maxHeldCount = new java.util.concurrent.atomic.AtomicLong();
+        TermSegmentor spaceSegmentor = new TermSegmentor(new HashSet<>(), sentence -> Arrays.asList(sentence.split(" ")), null);
+        spillDirectory = java.nio.file.Files.createTempDirectory("spill").toFile();
+        try (OutOfCoreTrainer trainer = new OutOfCoreTrainer(spillDirectory, 1 << 20)) {
+            trainer.learnAll(java.util.stream.IntStream.range(0, 400000).parallel().mapToObj(i -> {
+                long heldCount = readCount.incrementAndGet() - trainer.position / 4;
+                maxHeldCount.accumulateAndGet(heldCount, Math::max);
+                return new AbstractMap.SimpleEntry<>("w" + i % 997 + " w" + i % 991 + " w" + i % 983 + " w" + i % 977,
+                        "c" + i % 7);
+            }), spaceSegmentor);
+            model = trainer.finish();
+        }
+        spillDirectory.delete();
+        System.out.println((maxHeldCount.get() <= SEGMENT_BATCH_SIZE && model.getTotalSentenceCount() == 400000 ? "√\t" : "X\t")
+                + "a parallel stream of " + model.getTotalSentenceCount() + " examples counted with at most "
+                + maxHeldCount.get() + " read ahead");
+    }
+}
@@ -0,0 +1,41 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Overview:
+// executors to hand to NaiveBayesTextClassifier.predict(List<String>, ExecutorService)
+// the caller owns the returned executor and must shut it down
+public class PredictionExecutors {
+    private PredictionExecutors() {
+    }
+
+    // a pool with one platform thread per core, the right choice for CPU-bound segmentation and scoring
+    public static ExecutorService perCore() {
+        return fixed(Runtime.getRuntime().availableProcessors());
+    }
+
+    public static ExecutorService fixed(int threads) {
+        assert threads > 0;
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    // a new virtual thread per task on Java 21+, found reflectively so the code still compiles on older JDKs
+    // falls back to a cached pool of platform threads when virtual threads are not available
+    public static ExecutorService virtualThreadPerTask() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
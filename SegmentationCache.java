@@ -0,0 +1,267 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Overview:
+// a bounded, thread-safe cache from sentences to their segmented terms,
+// sized by entry count or by approximate bytes, with TinyLFU-style admission:
+// a full segment only replaces its least recently used entry with a newcomer that has been
+// requested more often, so a burst of one-off queries cannot flush the popular ones
+// the cache is split into independently locked segments so that concurrent lookups rarely contend
+public class SegmentationCache {
+    private static final int SEGMENT_COUNT = 16;
+    // rough per-entry cost of the map entry, list object and string headers
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final Segment[] segments;
+    private final boolean weighByBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    private SegmentationCache(long capacity, boolean weighByBytes) {
+        assert capacity > 0;
+        this.weighByBytes = weighByBytes;
+        this.segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            this.segments[i] = new Segment(Math.max(1, capacity / SEGMENT_COUNT));
+        }
+    }
+
+    // a cache holding at most about maxEntries sentences
+    public static SegmentationCache ofEntries(long maxEntries) {
+        return new SegmentationCache(maxEntries, false);
+    }
+
+    // a cache holding sentences and terms of about maxBytes in total
+    public static SegmentationCache ofBytes(long maxBytes) {
+        return new SegmentationCache(maxBytes, true);
+    }
+
+    private long weigh(String sentence, List<String> terms) {
+        if (!weighByBytes) {
+            return 1;
+        }
+        long bytes = ENTRY_OVERHEAD_BYTES + 2L * sentence.length();
+        for (String term : terms) {
+            bytes += 40 + 2L * term.length();
+        }
+        return bytes;
+    }
+
+    private Segment segmentOf(int hash) {
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENT_COUNT - 1)];
+    }
+
+    // return the cached terms of the sentence, or null
+    public List<String> get(String sentence) {
+        int hash = sentence.hashCode();
+        List<String> terms = segmentOf(hash).get(sentence, hash);
+        if (terms == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return terms;
+    }
+
+    // offer the terms of a sentence that missed; they may be rejected in favour of more popular entries
+    public void put(String sentence, List<String> terms) {
+        int hash = sentence.hashCode();
+        segmentOf(hash).put(sentence, hash, terms, weigh(sentence, terms));
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    // #newcomers not admitted because the entry they would replace was more popular
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.entries.clear();
+                segment.weight = 0;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits: %d\tmisses: %d\thit rate: %.2f\tevictions: %d\trejections: %d",
+                getHitCount(), getMissCount(), getHitRate(), getEvictionCount(), getRejectionCount());
+    }
+
+    private static class Entry {
+        final List<String> terms;
+        final long weight;
+
+        Entry(List<String> terms, long weight) {
+            this.terms = terms;
+            this.weight = weight;
+        }
+    }
+
+    private class Segment {
+        // access-ordered, so the eldest entry is the least recently used one
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final FrequencySketch sketch;
+        private final long capacity;
+        private long weight;
+
+        Segment(long capacity) {
+            this.capacity = capacity;
+            this.sketch = new FrequencySketch(weighByBytes ? Math.max(64, capacity / 256) : capacity);
+        }
+
+        synchronized List<String> get(String sentence, int hash) {
+            sketch.increment(hash);
+            Entry entry = entries.get(sentence);
+            return entry == null ? null : entry.terms;
+        }
+
+        synchronized void put(String sentence, int hash, List<String> terms, long entryWeight) {
+            if (entryWeight > capacity || entries.containsKey(sentence)) {
+                return;
+            }
+            int frequency = sketch.frequency(hash);
+            // the least recently used entries that must go to make room are only evicted if the newcomer
+            // is more popular than every one of them; otherwise the segment is left as it was
+            int victimCount = 0;
+            long freedWeight = 0;
+            for (Map.Entry<String, Entry> victim : entries.entrySet()) {
+                if (weight - freedWeight + entryWeight <= capacity) {
+                    break;
+                }
+                if (sketch.frequency(victim.getKey().hashCode()) >= frequency) {
+                    rejections.increment();
+                    return;
+                }
+                victimCount++;
+                freedWeight += victim.getValue().weight;
+            }
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            for (int i = 0; i < victimCount; i++) {
+                weight -= eldest.next().getValue().weight;
+                eldest.remove();
+                evictions.increment();
+            }
+            entries.put(sentence, new Entry(terms, entryWeight));
+            weight += entryWeight;
+        }
+    }
+
+    // a count-min sketch of 4-bit counters, halved periodically so that old popularity fades
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x97CB3127, 0x8A5CD789, 0x5B2D7E6B, 0x3C6EF372};
+
+        // 16 counters of 4 bits per long
+        private final long[] table;
+        private final int mask;
+        private final long sampleSize;
+        private long additions;
+
+        FrequencySketch(long expectedEntries) {
+            int counters = Integer.highestOneBit((int) Math.min(1 << 24, Math.max(16, expectedEntries * 4)) - 1) << 1;
+            this.table = new long[counters / 16];
+            this.mask = counters - 1;
+            this.sampleSize = 10L * counters;
+        }
+
+        private int indexOf(int hash, int depth) {
+            int h = (hash ^ SEEDS[depth]) * 0x9E3779B9;
+            return (h ^ (h >>> 15)) & mask;
+        }
+
+        private int counterAt(int index) {
+            return (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 0xF);
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int depth = 0; depth < DEPTH; depth++) {
+                frequency = Math.min(frequency, counterAt(indexOf(hash, depth)));
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            for (int depth = 0; depth < DEPTH; depth++) {
+                int index = indexOf(hash, depth);
+                if (counterAt(index) < 15) {
+                    table[index >>> 4] += 1L << ((index & 15) << 2);
+                }
+            }
+            if (++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        // halve every counter
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            additions /= 2;
+        }
+    }
+
+    // unit test
+    public static void main(String[] args) {
+        // a skewed stream of queries: a few popular ones interleaved with a long tail of one-offs
+        List<String> queries = new SyntheticCorpusGenerator(3, 50000, 10).generate(100000, 1, 3).getKey();
+        TermSegmentor segmentor = new TermSegmentor(new HashSet<>(), SegmentationCache.ofEntries(1000));
+        Random random = new Random(5);
+        for (int i = 0; i < 200000; i++) {
+            String query = i % 2 == 0 ? queries.get(random.nextInt(200)) : queries.get(random.nextInt(queries.size()));
+            segmentor.segmentSentence(query);
+        }
+        SegmentationCache cache = segmentor.getCache();
+        System.out.println(cache);
+        System.out.println((cache.size() <= 1000 + SEGMENT_COUNT && cache.getHitRate() > 0.4 ? "√\t" : "X\t")
+                + "bounded to " + cache.size() + " entries, popular queries stay cached");
+
+        // a newcomer needing two victims, the second more popular than it, evicts neither
+        Segment segment = new SegmentationCache(16 * 300, true).segments[0];
+        segment.put("unpopular", "unpopular".hashCode(), Collections.emptyList(), 100);
+        segment.put("popular", "popular".hashCode(), Collections.emptyList(), 100);
+        for (int i = 0; i < 5; i++) {
+            segment.get("popular", "popular".hashCode());
+        }
+        for (int i = 0; i < 2; i++) {
+            segment.get("large", "large".hashCode());
+        }
+        segment.put("large", "large".hashCode(), Collections.emptyList(), 250);
+        System.out.println((segment.entries.keySet().equals(new HashSet<>(Arrays.asList("unpopular", "popular")))
+                && segment.weight == 200 ? "√\t" : "X\t") + "a rejected newcomer evicts nothing, kept " + segment.entries.keySet());
+    }
+}
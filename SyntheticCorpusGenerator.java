@@ -0,0 +1,93 @@
+import java.util.*;
+
+// Overview:
+// generates a deterministic labelled corpus of Chinese-looking sentences for benchmarks,
+// so that fit and predict can be measured offline without the real data file
+// each category prefers its own band of the vocabulary, and every sentence also draws a few common terms
+public class SyntheticCorpusGenerator {
+    private static final double COMMON_TERM_RATIO = 0.3;
+
+    private final Random random;
+    private final String[] vocabulary;
+    private final String[] categories;
+
+    public SyntheticCorpusGenerator(long seed, int vocabularySize, int categoryCount) {
+        assert vocabularySize > 0 && categoryCount > 0;
+
+        this.random = new Random(seed);
+        this.vocabulary = new String[vocabularySize];
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < vocabularySize; i++) {
+            String term;
+            do {
+                // 2 to 3 characters from the CJK unified ideographs block
+                int length = 2 + random.nextInt(2);
+                StringBuilder builder = new StringBuilder(length);
+                for (int j = 0; j < length; j++) {
+                    builder.append((char) (0x4E00 + random.nextInt(0x9FA5 - 0x4E00)));
+                }
+                term = builder.toString();
+            } while (!seen.add(term));
+            this.vocabulary[i] = term;
+        }
+        this.categories = new String[categoryCount];
+        for (int i = 0; i < categoryCount; i++) {
+            this.categories[i] = "类目" + i;
+        }
+    }
+
+    // draw a rank from a log-uniform distribution, so that low ranks are much more frequent
+    private int skewedRank(int bound) {
+        return Math.min(bound - 1, (int) Math.pow(bound, random.nextDouble()) - 1);
+    }
+
+    private String nextTerm(int categoryIndex) {
+        if (random.nextDouble() < COMMON_TERM_RATIO) {
+            return vocabulary[skewedRank(vocabulary.length)];
+        }
+        int bandStart = (int) ((long) categoryIndex * vocabulary.length / categories.length);
+        return vocabulary[(bandStart + skewedRank(vocabulary.length)) % vocabulary.length];
+    }
+
+    // categories are drawn with a skew as well, like a real taxonomy
+    private int nextCategory() {
+        return skewedRank(categories.length);
+    }
+
+    // Return an entry
+    // Entry key - segmented sentences
+    // Entry value - targets
+    public Map.Entry<List<List<String>>, List<String>> generateSegmented(int sentenceCount, int minTerms, int maxTerms) {
+        assert minTerms > 0 && maxTerms >= minTerms;
+
+        List<List<String>> termsList = new ArrayList<>(sentenceCount);
+        List<String> targets = new ArrayList<>(sentenceCount);
+        for (int i = 0; i < sentenceCount; i++) {
+            int categoryIndex = nextCategory();
+            int termCount = minTerms + random.nextInt(maxTerms - minTerms + 1);
+            List<String> terms = new ArrayList<>(termCount);
+            for (int j = 0; j < termCount; j++) {
+                terms.add(nextTerm(categoryIndex));
+            }
+            termsList.add(terms);
+            targets.add(categories[categoryIndex]);
+        }
+        return new AbstractMap.SimpleEntry<>(termsList, targets);
+    }
+
+    // Return an entry
+    // Entry key - sentences, the terms of each sentence joined without separators
+    // Entry value - targets
+    public Map.Entry<List<String>, List<String>> generate(int sentenceCount, int minTerms, int maxTerms) {
+        Map.Entry<List<List<String>>, List<String>> segmented = generateSegmented(sentenceCount, minTerms, maxTerms);
+        List<String> sentences = new ArrayList<>(sentenceCount);
+        for (List<String> terms : segmented.getKey()) {
+            sentences.add(String.join("", terms));
+        }
+        return new AbstractMap.SimpleEntry<>(sentences, segmented.getValue());
+    }
+
+    public List<String> getCategories() {
+        return Arrays.asList(categories);
+    }
+}
@@ -1,28 +1,58 @@
-import org.ansj.domain.Term;
-import org.ansj.splitWord.analysis.NlpAnalysis;
-import org.ansj.splitWord.analysis.ToAnalysis;
-
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
 
 // Overview:
 // given a set of stop words,
 // a instance of the word segmentor takes input of a list of strings,
 // and for each string, produces output of a list of segmented terms
+// the tokenizer is ansj NlpAnalysis unless another TokenizerEngine is given
 public class TermSegmentor {
     // stop words
     private Set<String> stopWords;
+    // the same stop words, for the streaming segment() to look up slices in without building strings
+    private Vocabulary stopWordTable;
     private static final String ENCODING = "UTF-8";
     private static final String STOP_WORDS_PATH = ".\\data\\stopWords.txt";
+    // sentence -> filtered terms, or null if caching is off
+    private SegmentationCache cache;
+    private Tokenizer tokenizer = TokenizerEngine.NLP_ANALYSIS;
+    private final TermSegmentorMetrics metrics = new TermSegmentorMetrics(this);
 
     public TermSegmentor(Set<String> stopWords) {
         this.stopWords = new HashSet<String>(stopWords);
+        this.stopWordTable = tableOf(this.stopWords);
+    }
+
+    public TermSegmentor(Set<String> stopWords, SegmentationCache cache) {
+        this(stopWords);
+        this.cache = cache;
+    }
+
+    public TermSegmentor(SegmentationCache cache) {
+        this();
+        this.cache = cache;
+    }
+
+    // cache may be null
+    public TermSegmentor(Set<String> stopWords, Tokenizer tokenizer, SegmentationCache cache) {
+        this(stopWords, cache);
+        this.tokenizer = tokenizer;
+    }
+
+    // cache may be null
+    public TermSegmentor(Tokenizer tokenizer, SegmentationCache cache) {
+        this(cache);
+        this.tokenizer = tokenizer;
     }
 
     public TermSegmentor() {
@@ -48,6 +78,15 @@ public class TermSegmentor {
         } catch (Exception e) {
             System.out.println("failed to read stop words");
         }
+        this.stopWordTable = tableOf(this.stopWords);
+    }
+
+    private static Vocabulary tableOf(Set<String> stopWords) {
+        Vocabulary table = new Vocabulary(stopWords.size());
+        for (String stopWord : stopWords) {
+            table.intern(stopWord);
+        }
+        return table;
     }
 
     private List<String> filterStopWords(List<String> words) {
@@ -60,17 +99,90 @@ public class TermSegmentor {
         return filteredWords;
     }
 
+    // the returned list must not be modified, since it may be shared through the cache
     public List<String> segmentSentence(String sentence) {
+        if (cache == null) {
+            return segmentUncached(sentence);
+        }
+        List<String> terms = cache.get(sentence);
+        if (terms == null) {
+            terms = Collections.unmodifiableList(segmentUncached(sentence));
+            cache.put(sentence, terms);
+        }
+        return terms;
+    }
+
+    private List<String> segmentUncached(String sentence) {
         List<String> terms = new ArrayList<>();
+        long start = Instrumentation.startNanos();
         try {
-            List<Term> tokens = NlpAnalysis.parse(sentence).getTerms();
-            for (Term term : tokens) {
-                terms.add(term.getName());
+            terms = tokenizer.tokenize(sentence);
+        } catch (Exception e) {
+            System.out.println("segment failure");
+            if (Instrumentation.ENABLED) {
+                metrics.recordFailure();
             }
+        }
+        long segmented = Instrumentation.startNanos();
+        List<String> filteredTerms = filterStopWords(terms);
+        if (Instrumentation.ENABLED) {
+            metrics.recordSegment(segmented - start);
+            metrics.recordFilter(System.nanoTime() - segmented, filteredTerms.size());
+        }
+        return filteredTerms;
+    }
+
+    // hand the filtered terms of the sentence to the sink as they are found, without the cache
+    // and without building the term lists; tokenizers that find terms in place allocate nothing here
+    // if the tokenizer fails part way, the terms it already handed out stay with the sink
+    public void segment(String sentence, TermSink sink) {
+        long start = Instrumentation.startNanos();
+        try {
+            tokenizer.tokenize(sentence, stopWordTable, sink);
         } catch (Exception e) {
             System.out.println("segment failure");
+            if (Instrumentation.ENABLED) {
+                metrics.recordFailure();
+            }
+        }
+        if (Instrumentation.ENABLED) {
+            metrics.recordSegment(System.nanoTime() - start);
+        }
+    }
+
+    public SegmentationCache getCache() {
+        return cache;
+    }
+
+    public Tokenizer getTokenizer() {
+        return tokenizer;
+    }
+
+    public int getStopWordCount() {
+        return stopWords.size();
+    }
+
+    public TermSegmentorMetrics getMetrics() {
+        return metrics;
+    }
+
+    // true if the tokenizer has a name to fingerprint it by, see Tokenizer.getName()
+    public boolean hasFingerprint() {
+        return tokenizer.getName() != null;
+    }
+
+    // a hash of the stop words and the tokenizer, which together decide the segmentation of a sentence
+    public long fingerprint() {
+        if (!hasFingerprint()) {
+            throw new IllegalStateException("a tokenizer without a name cannot be fingerprinted, see Tokenizer.getName()");
+        }
+        long fingerprint = 17;
+        List<String> sortedStopWords = new ArrayList<>(stopWords);
+        Collections.sort(sortedStopWords);
+        for (String stopWord : sortedStopWords) {
+            fingerprint = 31 * fingerprint + stopWord.hashCode();
         }
-        return filterStopWords(terms);
+        return 31 * fingerprint + tokenizer.getName().hashCode();
     }
 
     public List<List<String>> segmentSentences(List<String> sentences) {
@@ -81,4 +193,65 @@ public class TermSegmentor {
         }
         return termsList;
     }
+
+    // unit test
+    public static void main(String[] args) {
+        // the streamed terms must be the filtered terms of segmentSentence, for every engine
+        Set<String> stopWords = new HashSet<>(Arrays.asList("的", "the", "油水", " "));
+        List<String> sentences = new ArrayList<>(Arrays.asList("玉兰油水的面霜", "The OLAY cream 的 2 瓶",
+                "İstanbul ΣΑΣ straße", "", "the", "玉兰油 Olay-面霜 100ml"));
+        sentences.addAll(new SyntheticCorpusGenerator(5, 2000, 10).generate(200, 1, 6).getKey());
+        for (TokenizerEngine engine : TokenizerEngine.values()) {
+            TermSegmentor termSegmentor = new TermSegmentor(stopWords, engine, null);
+            int mismatches = 0;
+            for (String sentence : sentences) {
+                List<String> streamed = new ArrayList<>();
+                termSegmentor.segment(sentence, (chars, start, end) -> streamed.add(chars.subSequence(start, end).toString()));
+                if (!streamed.equals(termSegmentor.segmentSentence(sentence))) {
+                    mismatches++;
+                }
+            }
+            System.out.println((mismatches == 0 ? "√\t" : "X\t") + engine + ": streamed terms match segmentSentence, "
+                    + mismatches + " mismatches in " + sentences.size() + " sentences");
+        }
+
+        // predicting through the stream must agree with the term list, and allocate far less per sentence
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(11, 5000, 50);
+        Map.Entry<List<String>, List<String>> corpus = generator.generate(20000, 2, 8);
+        TermSegmentor termSegmentor = new TermSegmentor(new HashSet<>(Collections.singletonList(" ")), TokenizerEngine.CHAR_NGRAM, null);
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(termSegmentor);
+        classifier.fit(corpus.getKey(), corpus.getValue());
+        List<String> queries = generator.generate(2000, 1, 6).getKey();
+        int mismatches = 0;
+        for (String query : queries) {
+            if (!classifier.predict(query).equals(classifier.predictSegmented(termSegmentor.segmentSentence(query)))
+                    || !classifier.predictTopK(query, 3).equals(classifier.predictTopKSegmented(termSegmentor.segmentSentence(query), 3))) {
+                mismatches++;
+            }
+        }
+        System.out.println((mismatches == 0 ? "√\t" : "X\t") + "streamed predictions match the term list, "
+                + mismatches + " mismatches in " + queries.size() + " queries");
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int round = 0; round < 5; round++) {
+            for (String query : queries) {
+                classifier.predict(query);
+                classifier.predictSegmented(termSegmentor.segmentSentence(query));
+            }
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (String query : queries) {
+            classifier.predict(query);
+        }
+        long streamedBytes = threads.getThreadAllocatedBytes(thread) - before;
+        before = threads.getThreadAllocatedBytes(thread);
+        for (String query : queries) {
+            classifier.predictSegmented(termSegmentor.segmentSentence(query));
+        }
+        long listBytes = threads.getThreadAllocatedBytes(thread) - before;
+        System.out.println((streamedBytes * 4 < listBytes ? "√\t" : "X\t") + String.format(
+                "%.0f bytes allocated per streamed prediction, %.0f through the term list",
+                (double) streamedBytes / queries.size(), (double) listBytes / queries.size()));
+    }
 }
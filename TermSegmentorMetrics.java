@@ -0,0 +1,84 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// Overview:
+// latency and volume of the segmentation stages of one TermSegmentor: tokenizing and stop-word filtering
+// recording allocates nothing once the counters have settled, see Instrumentation for switching it off
+public class TermSegmentorMetrics implements TermSegmentorMetricsMXBean {
+    private final TermSegmentor termSegmentor;
+    private final LatencyHistogram segmentLatency = new LatencyHistogram();
+    private final LatencyHistogram filterLatency = new LatencyHistogram();
+    private final LongAdder segmentedSentences = new LongAdder();
+    private final LongAdder terms = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    TermSegmentorMetrics(TermSegmentor termSegmentor) {
+        this.termSegmentor = termSegmentor;
+    }
+
+    void recordSegment(long nanos) {
+        segmentLatency.record(nanos);
+        segmentedSentences.increment();
+    }
+
+    void recordFilter(long nanos, int termCount) {
+        filterLatency.record(nanos);
+        terms.add(termCount);
+    }
+
+    void recordFailure() {
+        failures.increment();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getSegmentLatency() {
+        return segmentLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getFilterLatency() {
+        return filterLatency.snapshot();
+    }
+
+    @Override
+    public long getSegmentedSentenceCount() {
+        return segmentedSentences.sum();
+    }
+
+    @Override
+    public long getTermCount() {
+        return terms.sum();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        SegmentationCache cache = termSegmentor.getCache();
+        return cache == null ? 0 : cache.getHitRate();
+    }
+
+    @Override
+    public int getStopWordCount() {
+        return termSegmentor.getStopWordCount();
+    }
+
+    @Override
+    public void reset() {
+        segmentLatency.reset();
+        filterLatency.reset();
+        segmentedSentences.reset();
+        terms.reset();
+        failures.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "segment: " + getSegmentLatency() + "\n"
+                + "filter: " + getFilterLatency() + "\n"
+                + String.format("sentences segmented: %d\tterms: %d\tfailures: %d\tcache hit rate: %.2f",
+                getSegmentedSentenceCount(), getTermCount(), getFailureCount(), getCacheHitRate());
+    }
+}
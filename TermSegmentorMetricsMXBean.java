@@ -0,0 +1,25 @@
+// Overview:
+// the JMX view of TermSegmentorMetrics
+public interface TermSegmentorMetricsMXBean {
+    // latency of the tokenizer on one sentence that missed the cache
+    LatencyHistogram.Snapshot getSegmentLatency();
+
+    // latency of removing the stop words from the terms of one sentence
+    LatencyHistogram.Snapshot getFilterLatency();
+
+    // #sentences tokenized, i.e. not served by the cache
+    long getSegmentedSentenceCount();
+
+    // #terms kept after stop-word filtering
+    long getTermCount();
+
+    // #sentences the tokenizer failed on
+    long getFailureCount();
+
+    // the hit rate of the segmentation cache, or 0 if there is none
+    double getCacheHitRate();
+
+    int getStopWordCount();
+
+    void reset();
+}
@@ -0,0 +1,7 @@
+// Overview:
+// receives the terms of a sentence one at a time, as the slice [start, end) of a char sequence,
+// so that a tokenizer can hand out terms without building a String or a list for each
+// the char sequence is only valid during the call, and may be a buffer the tokenizer reuses
+public interface TermSink {
+    void accept(CharSequence chars, int start, int end);
+}
@@ -0,0 +1,355 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+// Overview:
+// a labelled corpus segmented once and kept as term ids, so that trials and cross-validation folds
+// can split, train and evaluate over and over without re-reading or re-segmenting the data file
+// the ids are cached next to the data file in two files:
+//   <data>.tokens - per example: category id, #terms, term ids
+//   <data>.vocab  - the term and category strings of the ids
+// both start with the fingerprint of what produced them: the size and modification time of the data file
+// and TermSegmentor.fingerprint(), covering the stop words and the tokenizer; a mismatch triggers a rebuild
+// each file is written aside and renamed into place, and a truncated or inconsistent file is rebuilt too
+// a tokenizer without a name, e.g. a lambda, cannot be told apart from run to run, so its segmentation is not cached
+// the term ids of all the examples are one array, so a corpus holds fewer than 2^31 terms in total
+public class TokenizedCorpus {
+    private static final int TOKENS_MAGIC = 0x4E42544B;
+    private static final int VOCAB_MAGIC = 0x4E425456;
+    private static final int VERSION = 1;
+
+    private final Vocabulary terms;
+    private final Vocabulary categories;
+    // example -> category id
+    private final int[] categoryIds;
+    // example -> offset of its first term id; example i spans [termOffsets[i], termOffsets[i + 1])
+    private final int[] termOffsets;
+    private final int[] termIds;
+
+    private TokenizedCorpus(Vocabulary terms, Vocabulary categories, int[] categoryIds, int[] termOffsets, int[] termIds) {
+        this.terms = terms;
+        this.categories = categories;
+        this.categoryIds = categoryIds;
+        this.termOffsets = termOffsets;
+        this.termIds = termIds;
+    }
+
+    // segment every example of the data file once
+    public static TokenizedCorpus build(String dataPath, TermSegmentor termSegmentor) throws IOException {
+        Vocabulary terms = new Vocabulary();
+        Vocabulary categories = new Vocabulary();
+        IntArrayBuilder categoryIds = new IntArrayBuilder();
+        IntArrayBuilder termOffsets = new IntArrayBuilder();
+        IntArrayBuilder termIds = new IntArrayBuilder();
+        termOffsets.add(0);
+        try (CorpusReader corpusReader = new CorpusReader(dataPath)) {
+            corpusReader.stream().parallel()
+                    .map(example -> new AbstractMap.SimpleEntry<>(termSegmentor.segmentSentence(example.getKey()), example.getValue()))
+                    .forEachOrdered(example -> {
+                        categoryIds.add(categories.intern(example.getValue()));
+                        for (String term : example.getKey()) {
+                            termIds.add(terms.intern(term));
+                        }
+                        termOffsets.add(termIds.size());
+                    });
+        }
+        return new TokenizedCorpus(terms, categories, categoryIds.toArray(), termOffsets.toArray(), termIds.toArray());
+    }
+
+    // read the cached ids of the data file, rebuilding and rewriting the cache if it is missing or stale
+    public static TokenizedCorpus loadOrBuild(String dataPath, TermSegmentor termSegmentor) throws IOException {
+        if (!termSegmentor.hasFingerprint()) {
+            return build(dataPath, termSegmentor);
+        }
+        long[] fingerprint = fingerprintOf(dataPath, termSegmentor);
+        String tokensPath = dataPath + ".tokens";
+        String vocabPath = dataPath + ".vocab";
+        if (new File(tokensPath).isFile() && new File(vocabPath).isFile()) {
+            TokenizedCorpus cached = read(tokensPath, vocabPath, fingerprint);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        TokenizedCorpus corpus = build(dataPath, termSegmentor);
+        corpus.write(tokensPath, vocabPath, fingerprint);
+        return corpus;
+    }
+
+    private static long[] fingerprintOf(String dataPath, TermSegmentor termSegmentor) {
+        File dataFile = new File(dataPath);
+        return new long[]{dataFile.length(), dataFile.lastModified(), termSegmentor.fingerprint()};
+    }
+
+    private static boolean readFingerprint(DataInputStream in, int magic, long[] fingerprint) throws IOException {
+        if (in.readInt() != magic || in.readInt() != VERSION) {
+            return false;
+        }
+        boolean matches = true;
+        for (long part : fingerprint) {
+            matches &= in.readLong() == part;
+        }
+        return matches;
+    }
+
+    private static void writeFingerprint(DataOutputStream out, int magic, long[] fingerprint) throws IOException {
+        out.writeInt(magic);
+        out.writeInt(VERSION);
+        for (long part : fingerprint) {
+            out.writeLong(part);
+        }
+    }
+
+    // return null if either file was produced from another data file, stop-word list or tokenizer,
+    // or was cut short or holds counts and ids that do not add up
+    private static TokenizedCorpus read(String tokensPath, String vocabPath, long[] fingerprint) throws IOException {
+        try {
+            return readChecked(tokensPath, vocabPath, fingerprint);
+        } catch (EOFException | UTFDataFormatException e) {
+            return null;
+        }
+    }
+
+    private static TokenizedCorpus readChecked(String tokensPath, String vocabPath, long[] fingerprint) throws IOException {
+        Vocabulary terms;
+        Vocabulary categories;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(vocabPath), 1 << 16))) {
+            if (!readFingerprint(in, VOCAB_MAGIC, fingerprint)) {
+                return null;
+            }
+            // every string takes at least its 2-byte length
+            long vocabBytes = new File(vocabPath).length();
+            int termCount = in.readInt();
+            if (termCount < 0 || 2L * termCount > vocabBytes) {
+                return null;
+            }
+            terms = new Vocabulary(termCount);
+            for (int i = 0; i < termCount; i++) {
+                terms.intern(in.readUTF());
+            }
+            int categoryCount = in.readInt();
+            if (categoryCount < 0 || 2L * categoryCount > vocabBytes) {
+                return null;
+            }
+            categories = new Vocabulary(categoryCount);
+            for (int i = 0; i < categoryCount; i++) {
+                categories.intern(in.readUTF());
+            }
+            if (terms.size() != termCount || categories.size() != categoryCount) {
+                return null;
+            }
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tokensPath), 1 << 16))) {
+            if (!readFingerprint(in, TOKENS_MAGIC, fingerprint)) {
+                return null;
+            }
+            int exampleCount = in.readInt();
+            int termIdCount = in.readInt();
+            // the header, then per example a category id, a term count and the term ids
+            long expectedBytes = 4 + 4 + 8L * fingerprint.length + 4 + 4 + 8L * exampleCount + 4L * termIdCount;
+            if (exampleCount < 0 || exampleCount == Integer.MAX_VALUE || termIdCount < 0
+                    || new File(tokensPath).length() != expectedBytes) {
+                return null;
+            }
+            int[] categoryIds = new int[exampleCount];
+            int[] termOffsets = new int[exampleCount + 1];
+            int[] termIds = new int[termIdCount];
+            for (int i = 0; i < exampleCount; i++) {
+                categoryIds[i] = in.readInt();
+                int termCount = in.readInt();
+                if (categoryIds[i] < 0 || categoryIds[i] >= categories.size()
+                        || termCount < 0 || termCount > termIdCount - termOffsets[i]) {
+                    return null;
+                }
+                termOffsets[i + 1] = termOffsets[i] + termCount;
+                for (int j = termOffsets[i]; j < termOffsets[i + 1]; j++) {
+                    termIds[j] = in.readInt();
+                    if (termIds[j] < 0 || termIds[j] >= terms.size()) {
+                        return null;
+                    }
+                }
+            }
+            if (termOffsets[exampleCount] != termIdCount) {
+                return null;
+            }
+            return new TokenizedCorpus(terms, categories, categoryIds, termOffsets, termIds);
+        }
+    }
+
+    // writes the content of a cache file
+    private interface CacheWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // write the file next to its final path and rename it into place, so that a reader or a crash
+    // never sees half of it under the final name
+    private static void writeAtomically(String path, CacheWriter writer) throws IOException {
+        File file = new File(path).getAbsoluteFile();
+        File temporary = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16))) {
+                writer.write(out);
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temporary.delete();
+        }
+    }
+
+    private void write(String tokensPath, String vocabPath, long[] fingerprint) throws IOException {
+        writeAtomically(vocabPath, out -> {
+            writeFingerprint(out, VOCAB_MAGIC, fingerprint);
+            out.writeInt(terms.size());
+            for (String term : terms) {
+                out.writeUTF(term);
+            }
+            out.writeInt(categories.size());
+            for (String category : categories) {
+                out.writeUTF(category);
+            }
+        });
+        writeAtomically(tokensPath, out -> {
+            writeFingerprint(out, TOKENS_MAGIC, fingerprint);
+            out.writeInt(size());
+            out.writeInt(termIds.length);
+            for (int i = 0; i < size(); i++) {
+                out.writeInt(categoryIds[i]);
+                out.writeInt(termOffsets[i + 1] - termOffsets[i]);
+                for (int j = termOffsets[i]; j < termOffsets[i + 1]; j++) {
+                    out.writeInt(termIds[j]);
+                }
+            }
+        });
+    }
+
+    public int size() {
+        return categoryIds.length;
+    }
+
+    public String getCategory(int example) {
+        return categories.get(categoryIds[example]);
+    }
+
+    // the terms of the example, read through the vocabulary without copying
+    public List<String> getTerms(int example) {
+        int from = termOffsets[example];
+        int to = termOffsets[example + 1];
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return terms.get(termIds[from + index]);
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+    }
+
+    // all examples as segmented sentences, e.g. for a TrainTestSplitter<List<String>>
+    public List<List<String>> getTermsList() {
+        return new AbstractList<List<String>>() {
+            @Override
+            public List<String> get(int index) {
+                return getTerms(index);
+            }
+
+            @Override
+            public int size() {
+                return TokenizedCorpus.this.size();
+            }
+        };
+    }
+
+    public List<String> getTargets() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return getCategory(index);
+            }
+
+            @Override
+            public int size() {
+                return TokenizedCorpus.this.size();
+            }
+        };
+    }
+
+    private static class IntArrayBuilder {
+        // the largest array most JVMs allocate
+        private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+        private int[] values = new int[1024];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                if (size == MAX_SIZE) {
+                    throw new IllegalStateException("a tokenized corpus holds at most " + MAX_SIZE + " terms");
+                }
+                values = Arrays.copyOf(values, (int) Math.min(2L * size, MAX_SIZE));
+            }
+            values[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private static boolean sameExamples(TokenizedCorpus a, TokenizedCorpus b) {
+        return a.getTermsList().equals(b.getTermsList()) && a.getTargets().equals(b.getTargets());
+    }
+
+    // unit test
+    public static void main(String[] args) throws IOException {
+        File directory = Files.createTempDirectory("tokenized").toFile();
+        File dataFile = new File(directory, "data.txt");
+        Map.Entry<List<String>, List<String>> examples = new SyntheticCorpusGenerator(17, 2000, 10).generate(3000, 1, 6);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < examples.getKey().size(); i++) {
+            content.append(examples.getKey().get(i)).append(" ||| ").append(examples.getValue().get(i)).append("\n");
+        }
+        Files.write(dataFile.toPath(), content.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        TermSegmentor termSegmentor = new TermSegmentor(TokenizerEngine.CHAR_NGRAM, null);
+
+        TokenizedCorpus built = loadOrBuild(dataFile.getPath(), termSegmentor);
+        TokenizedCorpus cached = loadOrBuild(dataFile.getPath(), termSegmentor);
+        System.out.println((built.size() == examples.getKey().size() && sameExamples(built, cached) ? "√\t" : "X\t")
+                + "the cache reads back the " + built.size() + " examples it was built from");
+
+        // a cache cut short, as by a crash in the middle of writing it, is rebuilt rather than failing
+        File tokensFile = new File(dataFile.getPath() + ".tokens");
+        byte[] tokens = Files.readAllBytes(tokensFile.toPath());
+        Files.write(tokensFile.toPath(), Arrays.copyOf(tokens, tokens.length / 2));
+        boolean rebuilt = sameExamples(built, loadOrBuild(dataFile.getPath(), termSegmentor))
+                && tokensFile.length() == tokens.length;
+        // and so is one whose example count does not match its term ids
+        tokens[4 + 4 + 3 * 8] = 0x7F;
+        Files.write(tokensFile.toPath(), tokens);
+        rebuilt &= sameExamples(built, loadOrBuild(dataFile.getPath(), termSegmentor));
+        System.out.println((rebuilt ? "√\t" : "X\t") + "a truncated or inconsistent cache is rebuilt");
+
+        String[] files = directory.list();
+        boolean clean = files != null && new HashSet<>(Arrays.asList(files))
+                .equals(new HashSet<>(Arrays.asList("data.txt", "data.txt.tokens", "data.txt.vocab")));
+        System.out.println((clean ? "√\t" : "X\t") + "no temporary files left behind");
+
+        // a tokenizer without a name is segmented afresh every time, and no cache is written for it
+        new File(dataFile.getPath() + ".tokens").delete();
+        new File(dataFile.getPath() + ".vocab").delete();
+        TermSegmentor unnamed = new TermSegmentor(sentence -> TokenizerEngine.CHAR_NGRAM.tokenize(sentence), null);
+        boolean uncached = sameExamples(built, loadOrBuild(dataFile.getPath(), unnamed))
+                && Arrays.equals(directory.list(), new String[]{"data.txt"});
+        System.out.println((uncached ? "√\t" : "X\t") + "a tokenizer without a name is not cached");
+        for (File file : Objects.requireNonNull(directory.listFiles())) {
+            file.delete();
+        }
+        directory.delete();
+    }
+}
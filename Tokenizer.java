@@ -0,0 +1,25 @@
+import java.util.List;
+
+// Overview:
+// splits a sentence into raw tokens, before stop words are filtered by TermSegmentor
+// implementations must be safe to call from several threads at once
+public interface Tokenizer {
+    List<String> tokenize(String sentence);
+
+    // hand the tokens that are not stop words to the sink, in order, without building a filtered list
+    // tokenizers that find their tokens in place override this to hand out slices of the sentence instead
+    default void tokenize(String sentence, Vocabulary stopWords, TermSink sink) {
+        for (String token : tokenize(sentence)) {
+            if (stopWords.indexOf(token) < 0) {
+                sink.accept(token, 0, token.length());
+            }
+        }
+    }
+
+    // identifies the tokenizer in cache fingerprints, so it must stay the same from run to run and change
+    // whenever the output would; null, the default, for a tokenizer without such a name, e.g. a lambda,
+    // whose segmentation is never cached
+    default String getName() {
+        return null;
+    }
+}
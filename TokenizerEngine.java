@@ -0,0 +1,52 @@
+import org.ansj.domain.Term;
+import org.ansj.splitWord.analysis.NlpAnalysis;
+import org.ansj.splitWord.analysis.ToAnalysis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Overview:
+// the tokenizers TermSegmentor can be configured with, from the most accurate to the fastest:
+// NLP_ANALYSIS - ansj NlpAnalysis, with new-word discovery, the slowest
+// TO_ANALYSIS  - ansj ToAnalysis, dictionary-based segmentation without new-word discovery
+// CHAR_NGRAM   - character unigrams and bigrams of CJK runs, no dictionary and no dependency
+public enum TokenizerEngine implements Tokenizer {
+    NLP_ANALYSIS {
+        @Override
+        public List<String> tokenize(String sentence) {
+            return namesOf(NlpAnalysis.parse(sentence).getTerms());
+        }
+    },
+    TO_ANALYSIS {
+        @Override
+        public List<String> tokenize(String sentence) {
+            return namesOf(ToAnalysis.parse(sentence).getTerms());
+        }
+    },
+    CHAR_NGRAM {
+        private final CharNGramTokenizer tokenizer = new CharNGramTokenizer();
+
+        @Override
+        public List<String> tokenize(String sentence) {
+            return tokenizer.tokenize(sentence);
+        }
+
+        @Override
+        public void tokenize(String sentence, Vocabulary stopWords, TermSink sink) {
+            tokenizer.tokenize(sentence, stopWords, sink);
+        }
+    };
+
+    @Override
+    public String getName() {
+        return name();
+    }
+
+    private static List<String> namesOf(List<Term> tokens) {
+        List<String> names = new ArrayList<>(tokens.size());
+        for (Term term : tokens) {
+            names.add(term.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.*;
+
+// Overview:
+// keeps the k highest-scoring category indices offered to it in a bounded min-heap,
+// and the log-sum-exp of every score offered, so that the kept scores can be turned into posteriors
+// a score offered to a full heap only enters if it beats the lowest kept score
+// callers that know the total probability mass of categories they never score can add it with addLogMass
+// equal scores are ranked by category index, so the result does not depend on the order of the offers
+class TopKSelector {
+    private final int k;
+    private final int[] indices;
+    private final double[] scores;
+    private int size;
+
+    // log-sum-exp of the offered scores, kept as maxScore + log(scaledSum)
+    private double maxScore = Double.NEGATIVE_INFINITY;
+    private double scaledSum;
+
+    TopKSelector(int k) {
+        assert k > 0;
+        this.k = k;
+        this.indices = new int[k];
+        this.scores = new double[k];
+    }
+
+    // count the category towards the normalizer and keep it if it ranks among the k best so far
+    void offer(int index, double score) {
+        addLogMass(score);
+        keep(index, score);
+    }
+
+    // add exp(logMass) to the normalizer of the posteriors
+    void addLogMass(double logMass) {
+        if (logMass == Double.NEGATIVE_INFINITY) {
+            return;
+        }
+        if (logMass > maxScore) {
+            scaledSum = scaledSum * Math.exp(maxScore - logMass) + 1;
+            maxScore = logMass;
+        } else {
+            scaledSum += Math.exp(logMass - maxScore);
+        }
+    }
+
+    // true if the category would rank among the k best so far
+    boolean wouldKeep(int index, double score) {
+        return size < k || score > scores[0] || (score == scores[0] && index < indices[0]);
+    }
+
+    // keep the category if it ranks among the k best so far, without counting it towards the normalizer
+    void keep(int index, double score) {
+        if (size < k) {
+            indices[size] = index;
+            scores[size] = score;
+            siftUp(size++);
+        } else if (wouldKeep(index, score)) {
+            indices[0] = index;
+            scores[0] = score;
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int child) {
+        while (child > 0) {
+            int parent = (child - 1) >>> 1;
+            if (!isWorse(child, parent)) {
+                return;
+            }
+            swap(parent, child);
+            child = parent;
+        }
+    }
+
+    private void siftDown(int parent) {
+        while (true) {
+            int left = 2 * parent + 1;
+            int right = left + 1;
+            int worst = parent;
+            if (left < size && isWorse(left, worst)) {
+                worst = left;
+            }
+            if (right < size && isWorse(right, worst)) {
+                worst = right;
+            }
+            if (worst == parent) {
+                return;
+            }
+            swap(parent, worst);
+            parent = worst;
+        }
+    }
+
+    // true if the i-th kept category ranks below the j-th
+    private boolean isWorse(int i, int j) {
+        return scores[i] < scores[j] || (scores[i] == scores[j] && indices[i] > indices[j]);
+    }
+
+    private void swap(int i, int j) {
+        int index = indices[i];
+        indices[i] = indices[j];
+        indices[j] = index;
+        double score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+
+    // the kept categories from the most to the least probable, with their posterior probabilities
+    // normalized over every score offered
+    List<Map.Entry<String, Double>> toPosteriors(NaiveBayesModel model) {
+        double logNormalizer = maxScore + Math.log(scaledSum);
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> isWorse(a, b) ? 1 : isWorse(b, a) ? -1 : 0);
+        List<Map.Entry<String, Double>> posteriors = new ArrayList<>(size);
+        for (int i : order) {
+            posteriors.add(new AbstractMap.SimpleEntry<>(model.getCategory(indices[i]), Math.exp(scores[i] - logNormalizer)));
+        }
+        return posteriors;
+    }
+
+    // score every category of the model, without pruning
+    static List<Map.Entry<String, Double>> exhaustive(NaiveBayesModel model, List<String> terms, int k) {
+        double[] scores = new double[model.getCategoryCount()];
+        model.score(terms, scores);
+        TopKSelector selector = new TopKSelector(k);
+        for (int c = 0; c < scores.length; c++) {
+            selector.offer(c, scores[c]);
+        }
+        return selector.toPosteriors(model);
+    }
+}
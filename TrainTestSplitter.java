@@ -1,18 +1,19 @@
 import java.util.*;
 
-public class TrainTestSplitter {
+// T is the type of a sentence: a String, or its segmented terms as a List<String>
+public class TrainTestSplitter<T> {
     private int testSetSize;
-    private List<Map.Entry<String, String>> sentencesWithTargets;
+    private List<Map.Entry<T, String>> sentencesWithTargets;
 
-    public TrainTestSplitter(List<String> sentences, List<String> targets, double testRatio) {
+    public TrainTestSplitter(List<T> sentences, List<String> targets, double testRatio) {
         assert sentences.size() == targets.size();
 
         this.testSetSize = (int) (testRatio * sentences.size());
         this.sentencesWithTargets = new ArrayList<>();
         for (int i = 0; i < sentences.size(); i++) {
-            String sentence = sentences.get(i);
+            T sentence = sentences.get(i);
             String target = targets.get(i);
-            Map.Entry<String, String> sentenceWithTarget = new AbstractMap.SimpleEntry(sentence, target);
+            Map.Entry<T, String> sentenceWithTarget = new AbstractMap.SimpleEntry<>(sentence, target);
             sentencesWithTargets.add(sentenceWithTarget);
         }
         Collections.shuffle(this.sentencesWithTargets);
@@ -21,8 +22,8 @@ public class TrainTestSplitter {
     // Return an entry
     // Entry key - train sentences
     // Entry value - train targets
-    public Map.Entry<List<String>, List<String>> trainSplit() {
-        List<String> trainSentences = new ArrayList<>();
+    public Map.Entry<List<T>, List<String>> trainSplit() {
+        List<T> trainSentences = new ArrayList<>();
         List<String> trainTargets = new ArrayList<>();
 
         for (int i = testSetSize; i < sentencesWithTargets.size(); i++) {
@@ -35,8 +36,8 @@ public class TrainTestSplitter {
     // Return an entry
     // Entry key - test sentences
     // Entry value - test targets
-    public Map.Entry<List<String>, List<String>> testSplit() {
-        List<String> testSentences = new ArrayList<>();
+    public Map.Entry<List<T>, List<String>> testSplit() {
+        List<T> testSentences = new ArrayList<>();
         List<String> testTargets = new ArrayList<>();
 
         // - for debugging  -
@@ -53,10 +54,10 @@ public class TrainTestSplitter {
     // Return an entry
     // Entry key - train sentences
     // Entry value - train targets
-    protected Map.Entry<List<String>, List<String>> trainSplit(int foldIndex) {
-        assert sentencesWithTargets.size() > (foldIndex + 1) * testSetSize;
+    protected Map.Entry<List<T>, List<String>> trainSplit(int foldIndex) {
+        assert sentencesWithTargets.size() >= (foldIndex + 1) * testSetSize;
 
-        List<String> trainSentences = new ArrayList<>();
+        List<T> trainSentences = new ArrayList<>();
         List<String> trainTargets = new ArrayList<>();
 
         for (int i = 0; i < sentencesWithTargets.size(); i++) {
@@ -72,10 +73,10 @@ public class TrainTestSplitter {
     // Return an entry
     // Entry key - test sentences
     // Entry value - test targets
-    protected Map.Entry<List<String>, List<String>> testSplit(int foldIndex) {
-        assert sentencesWithTargets.size() > (foldIndex + 1) * testSetSize;
+    protected Map.Entry<List<T>, List<String>> testSplit(int foldIndex) {
+        assert sentencesWithTargets.size() >= (foldIndex + 1) * testSetSize;
 
-        List<String> testSentences = new ArrayList<>();
+        List<T> testSentences = new ArrayList<>();
         List<String> testTargets = new ArrayList<>();
 
         for (int i = foldIndex * testSetSize; i < (foldIndex + 1) * testSetSize; i++) {
@@ -84,4 +85,18 @@ public class TrainTestSplitter {
         }
         return new AbstractMap.SimpleEntry<>(testSentences, testTargets);
     }
+
+    // Return an entry
+    // Entry key - sentences after the last of the folds, which are never held out
+    // Entry value - their targets
+    protected Map.Entry<List<T>, List<String>> restSplit(int foldCount) {
+        List<T> restSentences = new ArrayList<>();
+        List<String> restTargets = new ArrayList<>();
+
+        for (int i = foldCount * testSetSize; i < sentencesWithTargets.size(); i++) {
+            restSentences.add(sentencesWithTargets.get(i).getKey());
+            restTargets.add(sentencesWithTargets.get(i).getValue());
+        }
+        return new AbstractMap.SimpleEntry<>(restSentences, restTargets);
+    }
 }
@@ -0,0 +1,186 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Overview:
+// interns strings to dense int ids 0, 1, 2, ... in order of first appearance,
+// backed by an open-addressing table of ids so that a lookup touches no boxed values
+public class Vocabulary implements Iterable<String> {
+    private static final int EMPTY = -1;
+
+    // id -> string
+    private String[] strings;
+    // id -> hash of the string, kept to skip equals() on collisions and to rehash cheaply
+    private int[] hashes;
+    // slot -> id, or EMPTY; the length is a power of two
+    private int[] slots;
+    private int size;
+
+    public Vocabulary() {
+        this(16);
+    }
+
+    public Vocabulary(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        this.strings = new String[Math.max(4, expectedSize)];
+        this.hashes = new int[strings.length];
+        this.slots = new int[capacity];
+        Arrays.fill(this.slots, EMPTY);
+        this.size = 0;
+    }
+
+    private Vocabulary(Vocabulary other) {
+        this.strings = Arrays.copyOf(other.strings, other.size);
+        this.hashes = Arrays.copyOf(other.hashes, other.size);
+        this.slots = other.slots.clone();
+        this.size = other.size;
+    }
+
+    // spread the bits of String.hashCode so that the low bits index the table well
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    // the hash used to place a string in the table, shared with the snapshot format
+    static int hashOf(String string) {
+        return mix(string.hashCode());
+    }
+
+    // return the id of the string, or -1 if it has never been interned
+    public int indexOf(String string) {
+        int hash = mix(string.hashCode());
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot];
+            if (id == EMPTY) {
+                return -1;
+            }
+            if (hashes[id] == hash && strings[id].equals(string)) {
+                return id;
+            }
+        }
+    }
+
+    // return the id of the slice [start, end) of the chars, or -1, without building a String;
+    // the hash is computed like String.hashCode, so the slice finds the string it equals
+    public int indexOf(CharSequence chars, int start, int end) {
+        int stringHash = 0;
+        for (int i = start; i < end; i++) {
+            stringHash = 31 * stringHash + chars.charAt(i);
+        }
+        int hash = mix(stringHash);
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot];
+            if (id == EMPTY) {
+                return -1;
+            }
+            if (hashes[id] == hash && equals(strings[id], chars, start, end)) {
+                return id;
+            }
+        }
+    }
+
+    private static boolean equals(String string, CharSequence chars, int start, int end) {
+        if (string.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (string.charAt(i - start) != chars.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // return the id of the string, assigning the next free id if it is new
+    public int intern(String string) {
+        int hash = mix(string.hashCode());
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        for (; ; slot = (slot + 1) & mask) {
+            int id = slots[slot];
+            if (id == EMPTY) {
+                break;
+            }
+            if (hashes[id] == hash && strings[id].equals(string)) {
+                return id;
+            }
+        }
+
+        if (size == strings.length) {
+            strings = Arrays.copyOf(strings, Math.max(4, size * 2));
+            hashes = Arrays.copyOf(hashes, Math.max(4, size * 2));
+        }
+        int id = size++;
+        strings[id] = string;
+        hashes[id] = hash;
+        slots[slot] = id;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        int[] newSlots = new int[capacity];
+        Arrays.fill(newSlots, EMPTY);
+        int mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (newSlots[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots[slot] = id;
+        }
+        this.slots = newSlots;
+    }
+
+    public String get(int id) {
+        assert id >= 0 && id < size;
+        return strings[id];
+    }
+
+    public boolean contains(String string) {
+        return indexOf(string) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // an independent copy, so a read-only model can keep it while this one keeps growing
+    public Vocabulary copy() {
+        return new Vocabulary(this);
+    }
+
+    // approximate heap footprint in bytes, counting the id tables but not the strings themselves
+    public long estimateTableBytes() {
+        return 4L * (strings.length + hashes.length + slots.length);
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public String next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return strings[next++];
+            }
+        };
+    }
+}
@@ -0,0 +1,41 @@
+import naivebayes.benchmarks.TopKWorkload;
+
+import java.util.*;
+
+// Overview:
+// the classifier side of TopKBenchmark: a classifier fitted on segmented synthetic sentences,
+// queried with short segmented sentences drawn from the same categories
+public class ClassifierTopKWorkload implements TopKWorkload {
+    private static final long SEED = 20170701L;
+    private static final int QUERY_COUNT = 1000;
+
+    private NaiveBayesModel model;
+    private List<List<String>> queries;
+    private int nextQuery;
+
+    @Override
+    public void setUp(int sentenceCount, int vocabularySize, int categoryCount) {
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(SEED, vocabularySize, categoryCount);
+        Map.Entry<List<List<String>>, List<String>> corpus = generator.generateSegmented(sentenceCount, 2, 8);
+        NaiveBayesTextClassifier classifier = new NaiveBayesTextClassifier(new TermSegmentor(new HashSet<>()));
+        classifier.fitSegmented(corpus.getKey(), corpus.getValue());
+        this.model = classifier.getModel();
+        this.queries = generator.generateSegmented(QUERY_COUNT, 1, 4).getKey();
+    }
+
+    private List<String> nextQuery() {
+        List<String> query = queries.get(nextQuery);
+        nextQuery = (nextQuery + 1) % queries.size();
+        return query;
+    }
+
+    @Override
+    public Object predictTopK(int k) {
+        return model.predictTopK(nextQuery(), k);
+    }
+
+    @Override
+    public Object predictTopKExhaustive(int k) {
+        return TopKSelector.exhaustive(model, nextQuery(), k);
+    }
+}
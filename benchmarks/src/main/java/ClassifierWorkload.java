@@ -0,0 +1,74 @@
+import naivebayes.benchmarks.Workload;
+
+import java.util.*;
+
+// Overview:
+// the classifier side of the JMH benchmarks: a synthetic corpus from SyntheticCorpusGenerator,
+// a classifier fitted on it, and a separate set of short query sentences drawn from the same categories
+public class ClassifierWorkload implements Workload {
+    private static final long SEED = 20170701L;
+    private static final int QUERY_COUNT = 1000;
+
+    private TermSegmentor termSegmentor;
+    private List<String> sentences;
+    private List<List<String>> termsList;
+    private List<String> targets;
+    private NaiveBayesTextClassifier classifier;
+    private List<String> queries;
+    private List<String> queryTargets;
+    private int nextSentence;
+    private int nextQuery;
+
+    @Override
+    public void setUp(String tokenizer, int sentenceCount, int vocabularySize, int categoryCount) {
+        SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator(SEED, vocabularySize, categoryCount);
+        Map.Entry<List<String>, List<String>> corpus = generator.generate(sentenceCount, 2, 8);
+        Map.Entry<List<String>, List<String>> queryCorpus = generator.generate(QUERY_COUNT, 1, 4);
+        this.termSegmentor = new TermSegmentor(new HashSet<>(), TokenizerEngine.valueOf(tokenizer), null);
+        this.sentences = corpus.getKey();
+        this.targets = corpus.getValue();
+        this.termsList = termSegmentor.segmentSentences(sentences);
+        this.classifier = new NaiveBayesTextClassifier(termSegmentor);
+        this.classifier.fitSegmented(termsList, targets);
+        this.queries = queryCorpus.getKey();
+        this.queryTargets = queryCorpus.getValue();
+    }
+
+    @Override
+    public Object segmentSentence() {
+        String sentence = sentences.get(nextSentence);
+        nextSentence = (nextSentence + 1) % sentences.size();
+        return termSegmentor.segmentSentence(sentence);
+    }
+
+    @Override
+    public Object fit() {
+        NaiveBayesTextClassifier fitted = new NaiveBayesTextClassifier(termSegmentor);
+        fitted.fitSegmented(termsList, targets);
+        return fitted;
+    }
+
+    @Override
+    public Object predict() {
+        String query = queries.get(nextQuery);
+        nextQuery = (nextQuery + 1) % queries.size();
+        return classifier.predict(query);
+    }
+
+    @Override
+    public Object predictViaTermList() {
+        String query = queries.get(nextQuery);
+        nextQuery = (nextQuery + 1) % queries.size();
+        return classifier.predictSegmented(termSegmentor.segmentSentence(query));
+    }
+
+    @Override
+    public Object predictBatch() {
+        return classifier.predict(queries);
+    }
+
+    @Override
+    public Object score() {
+        return classifier.score(queries, queryTargets, "F1");
+    }
+}
@@ -0,0 +1,73 @@
+package naivebayes.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Overview:
+// JMH benchmarks of the hot paths: segmenting a sentence, fitting, predicting one sentence,
+// predicting a batch and scoring a batch, over a synthetic corpus so that they run offline
+// override the corpus with e.g. "-p sentenceCount=100000 -p categoryCount=1000"
+// the batch benchmarks predict 1000 query sentences per invocation
+// "-prof gc" adds the bytes allocated per operation, e.g. of predict against predictViaTermList
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dfile.encoding=UTF-8"})
+public class ClassifierBenchmark {
+    // a TokenizerEngine name
+    @Param({"CHAR_NGRAM", "NLP_ANALYSIS"})
+    public String tokenizer;
+
+    @Param({"20000"})
+    public int sentenceCount;
+
+    @Param({"20000"})
+    public int vocabularySize;
+
+    @Param({"50"})
+    public int categoryCount;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workload = Workload.create();
+        workload.setUp(tokenizer, sentenceCount, vocabularySize, categoryCount);
+    }
+
+    @Benchmark
+    public Object segmentSentence() {
+        return workload.segmentSentence();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object fit() {
+        return workload.fit();
+    }
+
+    @Benchmark
+    public Object predict() {
+        return workload.predict();
+    }
+
+    @Benchmark
+    public Object predictViaTermList() {
+        return workload.predictViaTermList();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object predictBatch() {
+        return workload.predictBatch();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object score() {
+        return workload.score();
+    }
+}
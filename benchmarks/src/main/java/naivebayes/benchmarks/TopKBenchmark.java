@@ -0,0 +1,47 @@
+package naivebayes.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Overview:
+// JMH benchmarks of predictTopK against large label sets: the pruned search of the compiled model
+// next to the exhaustive search that scores every category, from 100 up to 10000 categories
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dfile.encoding=UTF-8", "-Xmx3g"})
+public class TopKBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int categoryCount;
+
+    @Param({"100000"})
+    public int sentenceCount;
+
+    // the dense model holds #terms * #categories log-likelihoods, so the vocabulary is kept small
+    @Param({"2000"})
+    public int vocabularySize;
+
+    @Param({"5"})
+    public int k;
+
+    private TopKWorkload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workload = TopKWorkload.create();
+        workload.setUp(sentenceCount, vocabularySize, categoryCount);
+    }
+
+    @Benchmark
+    public Object predictTopK() {
+        return workload.predictTopK(k);
+    }
+
+    @Benchmark
+    public Object predictTopKExhaustive() {
+        return workload.predictTopKExhaustive(k);
+    }
+}
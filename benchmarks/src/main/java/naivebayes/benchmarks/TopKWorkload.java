@@ -0,0 +1,23 @@
+package naivebayes.benchmarks;
+
+// Overview:
+// the operations measured by TopKBenchmark, implemented by ClassifierTopKWorkload in the default package,
+// see Workload for why the benchmarks go through an interface
+public interface TopKWorkload {
+    // fit a classifier on a synthetic corpus that is already segmented, so that large label sets fit in memory
+    void setUp(int sentenceCount, int vocabularySize, int categoryCount);
+
+    // the k most probable categories of the next query, by the model's pruned search
+    Object predictTopK(int k);
+
+    // the same, scoring every category
+    Object predictTopKExhaustive(int k);
+
+    static TopKWorkload create() {
+        try {
+            return (TopKWorkload) Class.forName("ClassifierTopKWorkload").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("ClassifierTopKWorkload is not on the class path", e);
+        }
+    }
+}
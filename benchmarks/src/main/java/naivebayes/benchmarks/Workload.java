@@ -0,0 +1,37 @@
+package naivebayes.benchmarks;
+
+// Overview:
+// the operations measured by ClassifierBenchmark
+// JMH does not accept benchmarks in the default package, and a named package cannot refer to the classifier
+// classes in the default package, so the benchmarks reach them through this interface,
+// implemented by ClassifierWorkload in the default package and loaded by name once per trial
+public interface Workload {
+    // generate the synthetic corpus, segment it and fit the classifier measured by predict and score
+    void setUp(String tokenizer, int sentenceCount, int vocabularySize, int categoryCount);
+
+    // segment the next training sentence, uncached
+    Object segmentSentence();
+
+    // fit a new classifier on the segmented training sentences; segmentation is measured by segmentSentence
+    Object fit();
+
+    // predict the next query sentence
+    Object predict();
+
+    // predict the next query sentence through its list of terms, the path predict() takes with a cache
+    Object predictViaTermList();
+
+    // predict every query sentence in one call
+    Object predictBatch();
+
+    // predict and score every query sentence against its target
+    Object score();
+
+    static Workload create() {
+        try {
+            return (Workload) Class.forName("ClassifierWorkload").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("ClassifierWorkload is not on the class path", e);
+        }
+    }
+}